@@ -20,17 +20,60 @@
 package org.jsl.collider;
 
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 
 public abstract class Acceptor extends SessionEmitter
 {
+    /* Maximum length of the pending connections queue,
+     * should be increased for the servers expecting a lot
+     * of clients connecting at the same time.
+     * 0 - use default value.
+     */
+    public int backlog;
+
+    /* Admission control, 0 - no limit.
+     * maxSessions         - maximum number of concurrent sessions,
+     * maxAcceptRate       - maximum number of connections accepted per second,
+     * maxPendingReaders   - collider wide number of sessions having received
+     *                       data waiting for processing in the thread pool,
+     * maxInputBlocksInUse - number of input queue data blocks in use
+     *                       (shared by emitters with the same block size).
+     * When a limit is reached new connections are closed right after accept,
+     * or are left in the kernel backlog if deferAccept is true,
+     * acceptor retries to accept them a bit later.
+     */
+    public int maxSessions;
+    public int maxAcceptRate;
+    public int maxPendingReaders;
+    public int maxInputBlocksInUse;
+    public boolean deferAccept;
+
     public Acceptor()
     {
         this( new InetSocketAddress(0) );
     }
 
     public Acceptor( InetSocketAddress addr )
+    {
+        this( (SocketAddress) addr );
+    }
+
+    /**
+     * For unix domain socket address <tt>reuseAddr</tt> means
+     * the socket file left by a previous server will be removed,
+     * if anything else exists at the path (a regular file, a directory
+     * or a symbolic link) <tt>addAcceptor()</tt> throws an IOException.
+     * <tt>onAcceptorStarted()</tt> receives 0 as a local port.
+     */
+    public Acceptor( SocketAddress addr )
     {
         super( addr );
+        backlog = 0;
+        maxSessions = 0;
+        maxAcceptRate = 0;
+        maxPendingReaders = 0;
+        maxInputBlocksInUse = 0;
+        deferAccept = false;
     }
 
     /**
@@ -22,12 +22,15 @@ package org.jsl.collider;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.channels.Selector;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.ServerSocketChannel;
 import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
@@ -37,12 +40,140 @@ import java.util.logging.Logger;
 class AcceptorImpl extends SessionEmitterImpl
         implements ColliderImpl.ChannelHandler
 {
+    /* Accepted socket channels are registered in the selector
+     * by batches to avoid flooding the selector thread with
+     * a separate runnable for each socket on connection storms,
+     * sessions are started in parallel then.
+     */
+    private static final int ACCEPT_BATCH_MAX_SIZE = 64;
+    private static final int STARTER_MAX_SESSIONS = 4;
+
+    /* Delay before the next accept attempt
+     * when connections are deferred by admission control.
+     */
+    private static final long DEFER_DELAY = 10; /* milliseconds */
+
     private class ChannelAcceptor extends ThreadPool.Runnable
     {
+        private long m_rateTime;
+        private int m_rateAccepted;
+
+        /* Returns 0 if a new connection can be admitted,
+         * otherwise a delay (milliseconds) after which it
+         * makes sense to try again.
+         */
+        private long checkAdmission()
+        {
+            if ((m_sessionCounter != null) && (m_sessionCounter.get() >= m_acceptor.maxSessions))
+                return DEFER_DELAY;
+
+            if ((m_acceptor.maxPendingReaders > 0) &&
+                (m_collider.getPendingReaders() >= m_acceptor.maxPendingReaders))
+                return DEFER_DELAY;
+
+            if ((m_acceptor.maxInputBlocksInUse > 0) &&
+                (m_inputQueueDataBlockCache.getBlocksInUse() >= m_acceptor.maxInputBlocksInUse))
+                return DEFER_DELAY;
+
+            if (m_acceptor.maxAcceptRate > 0)
+            {
+                final long currentTime = System.currentTimeMillis();
+                if ((currentTime - m_rateTime) >= 1000)
+                {
+                    m_rateTime = currentTime;
+                    m_rateAccepted = 0;
+                }
+                else if (m_rateAccepted >= m_acceptor.maxAcceptRate)
+                    return (m_rateTime + 1000 - currentTime);
+            }
+
+            return 0;
+        }
+
+        private void deferAccept( long delay )
+        {
+            m_lock.lock();
+            try
+            {
+                if (m_stop)
+                {
+                    m_stopped = true;
+                    return;
+                }
+                m_deferred = true;
+            }
+            finally
+            {
+                m_lock.unlock();
+            }
+
+            if (s_logger.isLoggable(Level.FINE))
+                s_logger.fine( m_localAddr + ": accept deferred for " + delay + " ms." );
+
+            /* TimerQueue keeps one shot timer registered while the task is running,
+             * so the same task instance could not be rescheduled right after fire.
+             */
+            m_collider.getTimerQueue().schedule( new AcceptResumer(), delay, TimeUnit.MILLISECONDS );
+        }
+
+        private boolean registerSockets( SocketChannel [] socketChannels, int count )
+        {
+            boolean stop;
+            m_lock.lock();
+            try
+            {
+                stop = m_stop;
+                if (stop)
+                    m_stopped = true;
+                else
+                    m_pendingOps += count;
+            }
+            finally
+            {
+                m_lock.unlock();
+            }
+
+            if (stop)
+            {
+                /* Acceptor is being closed, socket channels not needed. */
+                for (int idx=0; idx<count; idx++)
+                {
+                    if (m_sessionCounter != null)
+                        m_sessionCounter.decrementAndGet();
+                    try
+                    {
+                        socketChannels[idx].close();
+                    }
+                    catch (final IOException ex)
+                    {
+                        if (s_logger.isLoggable(Level.FINE))
+                            s_logger.fine( m_localAddr + ": " + ex.toString() + "." );
+                    }
+                }
+                return false;
+            }
+
+            m_collider.executeInSelectorThread( new SessionStarter1(socketChannels, count) );
+            return true;
+        }
+
         public void runInThreadPool()
         {
+            SocketChannel [] socketChannels = null;
+            int count = 0;
+
             for (;;)
             {
+                final long delay = checkAdmission();
+                if ((delay > 0) && m_acceptor.deferAccept)
+                {
+                    /* Leave connections in the kernel backlog. */
+                    if ((count > 0) && !registerSockets(socketChannels, count))
+                        return;
+                    deferAccept( delay );
+                    return;
+                }
+
                 SocketChannel socketChannel;
 
                 try
@@ -58,6 +189,23 @@ class AcceptorImpl extends SessionEmitterImpl
                     break;
                 }
 
+                if (delay > 0)
+                {
+                    if (s_logger.isLoggable(Level.FINE))
+                        s_logger.fine( m_localAddr + ": connection rejected by admission control." );
+
+                    try
+                    {
+                        socketChannel.close();
+                    }
+                    catch (final IOException ex)
+                    {
+                        if (s_logger.isLoggable(Level.FINE))
+                            s_logger.fine( m_localAddr + ": " + ex.toString() );
+                    }
+                    continue;
+                }
+
                 try
                 {
                     socketChannel.configureBlocking( false );
@@ -82,67 +230,69 @@ class AcceptorImpl extends SessionEmitterImpl
                     continue;
                 }
 
-                boolean stop;
-                m_lock.lock();
-                try
-                {
-                    stop = m_stop;
-                    if (stop)
-                        m_stopped = true;
-                    else
-                        m_pendingOps++;
-                }
-                finally
-                {
-                    m_lock.unlock();
-                }
+                m_rateAccepted++;
+                if (m_sessionCounter != null)
+                    m_sessionCounter.incrementAndGet();
 
-                if (stop)
+                if (socketChannels == null)
+                    socketChannels = new SocketChannel[ACCEPT_BATCH_MAX_SIZE];
+
+                socketChannels[count] = socketChannel;
+                if (++count == ACCEPT_BATCH_MAX_SIZE)
                 {
-                    /* Acceptor is being closed, socket channel not needed. */
-                    try
-                    {
-                        socketChannel.close();
-                    }
-                    catch (final IOException ex)
-                    {
-                        if (s_logger.isLoggable(Level.FINE))
-                            s_logger.fine( m_localAddr + ": " + ex.toString() + "." );
-                    }
-                    return;
+                    if (!registerSockets(socketChannels, count))
+                        return;
+                    socketChannels = null;
+                    count = 0;
                 }
-
-                m_collider.executeInSelectorThread( new SessionStarter1(socketChannel) );
             }
 
+            if ((count > 0) && !registerSockets(socketChannels, count))
+                return;
+
             m_collider.executeInSelectorThread( m_starter3 );
         }
     }
 
     private class SessionStarter1 extends ColliderImpl.SelectorThreadRunnable
     {
-        private final SocketChannel m_socketChannel;
+        private final SocketChannel [] m_socketChannels;
+        private final int m_count;
 
-        public SessionStarter1( SocketChannel socketChannel )
+        public SessionStarter1( SocketChannel [] socketChannels, int count )
         {
-            m_socketChannel = socketChannel;
+            m_socketChannels = socketChannels;
+            m_count = count;
         }
 
         public int runInSelectorThread()
         {
-            try
+            final SelectionKey [] selectionKeys = new SelectionKey[m_count];
+            for (int idx=0; idx<m_count; idx++)
             {
-                final SelectionKey selectionKey = m_socketChannel.register( m_selector, 0, null );
-                m_collider.executeInThreadPool( new SessionStarter2(m_socketChannel, selectionKey) );
+                try
+                {
+                    selectionKeys[idx] = m_socketChannels[idx].register( m_selector, 0, null );
+                }
+                catch (final IOException ex)
+                {
+                    /* Not necessary a framework problem,
+                     * can happen in a case if peer closed connection.
+                     */
+                    if (s_logger.isLoggable(Level.FINE))
+                        s_logger.fine( m_localAddr + ": " + ex );
+                    m_socketChannels[idx] = null;
+                    if (m_sessionCounter != null)
+                        m_sessionCounter.decrementAndGet();
+                    releaseMonitor();
+                }
             }
-            catch (final IOException ex)
+
+            for (int idx=0; idx<m_count; idx+=STARTER_MAX_SESSIONS)
             {
-                /* Not necessary a framework problem,
-                 * can happen in a case if peer closed connection.
-                 */
-                if (s_logger.isLoggable(Level.FINE))
-                    s_logger.fine( m_localAddr + ": " + ex );
-                releaseMonitor();
+                final int endIdx = Math.min( idx+STARTER_MAX_SESSIONS, m_count );
+                m_collider.executeInThreadPool(
+                        new SessionStarter2(m_socketChannels, selectionKeys, idx, endIdx) );
             }
             return 0;
         }
@@ -150,18 +300,49 @@ class AcceptorImpl extends SessionEmitterImpl
 
     private class SessionStarter2 extends ThreadPool.Runnable
     {
-        private final SocketChannel m_socketChannel;
-        private final SelectionKey m_selectionKey;
+        private final SocketChannel [] m_socketChannels;
+        private final SelectionKey [] m_selectionKeys;
+        private final int m_startIdx;
+        private final int m_endIdx;
 
-        public SessionStarter2( SocketChannel socketChannel, SelectionKey selectionKey )
+        public SessionStarter2(
+                SocketChannel [] socketChannels, SelectionKey [] selectionKeys, int startIdx, int endIdx )
         {
-            m_socketChannel = socketChannel;
-            m_selectionKey = selectionKey;
+            m_socketChannels = socketChannels;
+            m_selectionKeys = selectionKeys;
+            m_startIdx = startIdx;
+            m_endIdx = endIdx;
         }
 
         public void runInThreadPool()
         {
-            startSession( m_socketChannel, m_selectionKey );
+            for (int idx=m_startIdx; idx<m_endIdx; idx++)
+            {
+                if (m_socketChannels[idx] != null)
+                    startSession( m_socketChannels[idx], m_selectionKeys[idx] );
+            }
+        }
+    }
+
+    private class AcceptResumer implements Runnable
+    {
+        public void run()
+        {
+            /* Stopper does not wait for the timer,
+             * acceptor could be already closed.
+             */
+            m_lock.lock();
+            try
+            {
+                if (m_stop)
+                    return;
+                m_deferred = false;
+            }
+            finally
+            {
+                m_lock.unlock();
+            }
+            m_collider.executeInSelectorThread( m_starter3 );
         }
     }
 
@@ -206,6 +387,7 @@ class AcceptorImpl extends SessionEmitterImpl
                     s_logger.warning( m_localAddr + ": " + ex1 + "." );
             }
             m_serverChannel = null;
+            removeSocketFile();
 
             m_lock.lock();
             try
@@ -236,6 +418,7 @@ class AcceptorImpl extends SessionEmitterImpl
             try { m_serverChannel.close(); }
             catch (final IOException ex) { logException(ex); }
             m_serverChannel = null;
+            removeSocketFile();
 
             m_lock.lock();
             try
@@ -302,7 +485,9 @@ class AcceptorImpl extends SessionEmitterImpl
             final Thread currentThread = Thread.currentThread();
             if (setStarting2(currentThread))
             {
-                m_acceptor.onAcceptorStarted( m_collider, m_serverChannel.socket().getLocalPort() );
+                final int localPort =
+                        (m_localAddr instanceof InetSocketAddress) ? ((InetSocketAddress) m_localAddr).getPort() : 0;
+                m_acceptor.onAcceptorStarted( m_collider, localPort );
                 if (setRunning(currentThread))
                     m_collider.executeInSelectorThread( m_starter3 );
             }
@@ -329,11 +514,16 @@ class AcceptorImpl extends SessionEmitterImpl
 
             if ((interestOps & SelectionKey.OP_ACCEPT) == 0)
             {
+                /* Accept deferred by the admission control
+                 * will not be resumed after stop,
+                 * no need to wait for the timer.
+                 */
                 boolean stopped;
                 m_lock.lock();
                 try
                 {
-                    stopped = m_stopped;
+                    stopped = (m_stopped || m_deferred);
+                    m_deferred = false;
                 }
                 finally
                 {
@@ -364,6 +554,7 @@ class AcceptorImpl extends SessionEmitterImpl
                     s_logger.warning( m_localAddr + ": " + ex.toString() + "." );
             }
             m_serverChannel = null;
+            removeSocketFile();
 
             /* It is better to release monitor after ServerSocketChannel close
              * to avoid possible race if caller of stopAndWait() will try
@@ -434,6 +625,40 @@ class AcceptorImpl extends SessionEmitterImpl
         m_collider.removeEmitterNoWait( m_acceptor );
     }
 
+    private static SocketAddress getLocalAddress( ServerSocketChannel serverChannel, Acceptor acceptor )
+    {
+        try
+        {
+            return serverChannel.getLocalAddress();
+        }
+        catch (final IOException ex)
+        {
+            /* Should never happen, channel is bound. */
+            return acceptor.getSocketAddress();
+        }
+    }
+
+    private void removeSocketFile()
+    {
+        if (UnixDomainSocket.isUnixAddress(m_localAddr))
+        {
+            try
+            {
+                UnixDomainSocket.deleteFile( m_localAddr );
+            }
+            catch (final IOException ex)
+            {
+                if (s_logger.isLoggable(Level.WARNING))
+                    s_logger.warning( m_localAddr + ": " + ex.toString() );
+            }
+        }
+    }
+
+    protected AtomicInteger getSessionCounter()
+    {
+        return m_sessionCounter;
+    }
+
     protected void logException( Exception ex )
     {
         if (s_logger.isLoggable(Level.WARNING))
@@ -453,6 +678,7 @@ class AcceptorImpl extends SessionEmitterImpl
     private SelectionKey m_selectionKey;
     private final ChannelAcceptor m_channelAcceptor;
     private final Starter3 m_starter3;
+    private final AtomicInteger m_sessionCounter;
 
     private final ReentrantLock m_lock;
     private final Condition m_cond;
@@ -460,6 +686,7 @@ class AcceptorImpl extends SessionEmitterImpl
     private int m_pendingOps;
     private boolean m_stop;
     private boolean m_stopped;
+    private boolean m_deferred;
     private int m_state;
 
     private static final int STARTING_0 = 0;
@@ -480,11 +707,12 @@ class AcceptorImpl extends SessionEmitterImpl
 
         m_acceptor = acceptor;
         m_selector = selector;
-        m_localAddr = serverChannel.socket().getLocalSocketAddress();
+        m_localAddr = getLocalAddress( serverChannel, acceptor );
 
         m_serverChannel = serverChannel;
         m_channelAcceptor = new ChannelAcceptor();
         m_starter3 = new Starter3();
+        m_sessionCounter = ((acceptor.maxSessions > 0) ? new AtomicInteger() : null);
 
         m_lock = new ReentrantLock();
         m_cond = m_lock.newCondition();
@@ -492,6 +720,7 @@ class AcceptorImpl extends SessionEmitterImpl
         m_pendingOps = 0;
         m_stop = false;
         m_stopped = false;
+        m_deferred = false;
         m_state = STARTING_0;
     }
 
@@ -607,6 +836,7 @@ class AcceptorImpl extends SessionEmitterImpl
                     s_logger.warning( m_localAddr + ": " + ex + "." );
             }
             m_serverChannel = null;
+            removeSocketFile();
 
             m_collider.removeEmitterNoWait( m_acceptor );
 
@@ -638,6 +868,7 @@ class AcceptorImpl extends SessionEmitterImpl
                     s_logger.warning( m_localAddr + ": " + ex + "." );
             }
             m_serverChannel = null;
+            removeSocketFile();
 
             m_collider.removeEmitterNoWait( m_acceptor );
 
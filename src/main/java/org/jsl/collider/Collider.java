@@ -20,7 +20,9 @@
 package org.jsl.collider;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
+import java.net.SocketAddress;
 
 /* Collider public API. Typical usage example:
  * <pre>{@code
@@ -54,6 +56,24 @@ public abstract class Collider
         public int joinMessageMaxSize;
         public int datagramReadMinSize;
 
+        /* Copy heap buffers being sent to the direct buffers
+         * from the collider pool instead of letting JDK
+         * to use its temporary direct buffers.
+         */
+        public boolean stageHeapBuffers;
+
+        /* Busy poll: the selector thread never blocks in the select(),
+         * it polls with selectNow() and backs off when idle:
+         * spins selectorSpins iterations, then yields selectorYields
+         * iterations, then parks for selectorParkTime nanoseconds
+         * (keeps yielding if 0). Selector.wakeup() is never called then.
+         * Makes sense only if the selector thread has a dedicated core.
+         */
+        public boolean selectorBusyPoll;
+        public int selectorSpins;
+        public int selectorYields;
+        public int selectorParkTime;
+
         public Config()
         {
             threadPoolThreads = 0; /* by default = number of cores */
@@ -67,6 +87,12 @@ public abstract class Collider
             inputQueueCacheMaxSize = 128;
             joinMessageMaxSize     = 0;
             datagramReadMinSize    = (2 * 1024);
+            stageHeapBuffers       = true;
+
+            selectorBusyPoll = false;
+            selectorSpins    = 10000;
+            selectorYields   = 1000;
+            selectorParkTime = 0;
         }
     }
 
@@ -132,8 +158,30 @@ public abstract class Collider
     public abstract void removeDatagramListener(
             DatagramListener datagramListener ) throws InterruptedException;
 
+    /**
+     * Creates a <tt>DatagramSender</tt> bound to the given local address
+     * (can be null to use an ephemeral port). Network interface is used
+     * to send multicast datagrams, can be null.
+     * Additionally to the datagram socket exceptions
+     * throws an IOException in a case if collider already stopped.
+     */
+    public abstract DatagramSender createDatagramSender(
+            InetSocketAddress localAddr,
+            NetworkInterface networkInterface ) throws IOException;
+
     public abstract ThreadPool getThreadPool();
 
+    /**
+     * Creates an unix domain socket address to be used with
+     * <tt>Acceptor</tt> and <tt>Connector</tt>.
+     * Throws an IOException if unix domain sockets
+     * are not supported by the Java runtime (available since Java 16).
+     */
+    public static SocketAddress createUnixSocketAddress( String path ) throws IOException
+    {
+        return UnixDomainSocket.createAddress( path );
+    }
+
     /**
      * Create a Collider instance with default configuration.
      */
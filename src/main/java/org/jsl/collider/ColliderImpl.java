@@ -23,6 +23,8 @@ import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.NetworkInterface;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketOption;
 import java.net.DatagramSocket;
 import java.net.StandardSocketOptions;
 import java.net.StandardProtocolFamily;
@@ -34,9 +36,11 @@ import java.nio.channels.MembershipKey;
 import java.util.Set;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -145,6 +149,8 @@ class ColliderImpl extends Collider
                 final Object attachment = key.attachment();
                 if (attachment instanceof SessionImpl)
                     ((SessionImpl)attachment).closeConnection();
+                else if (attachment instanceof DatagramSenderImpl)
+                    ((DatagramSenderImpl)attachment).close();
                 /*
                  * else if (attachment instanceof AcceptorImpl)
                  * {
@@ -155,6 +161,22 @@ class ColliderImpl extends Collider
                  * }
                  */
             }
+
+            /* Local sessions will be removed when the close is delivered. */
+            LocalSessionImpl [] localSessions;
+            m_lock.lock();
+            try
+            {
+                localSessions = m_localSessions.toArray( new LocalSessionImpl[m_localSessions.size()] );
+            }
+            finally
+            {
+                m_lock.unlock();
+            }
+
+            for (LocalSessionImpl localSession : localSessions)
+                localSession.closeConnection();
+
             m_run = false;
             return 0;
         }
@@ -240,8 +262,9 @@ class ColliderImpl extends Collider
                 m_dataBlockCache.put( inputQueueBlockSize, cache );
             }
 
+            /* The same pool is used to stage heap buffers being sent. */
             RetainableByteBufferPool joinPool = null;
-            if (joinMessageMaxSize > 0)
+            if ((joinMessageMaxSize > 0) || config.stageHeapBuffers)
             {
                 if (m_joinPool == null)
                 {
@@ -270,6 +293,25 @@ class ColliderImpl extends Collider
         }
     }
 
+    RetainableByteBufferPool getFramePool()
+    {
+        /* Pool for the messages split between input queue blocks. */
+        m_lock.lock();
+        try
+        {
+            if (m_framePool == null)
+            {
+                final Config config = getConfig();
+                m_framePool = new RetainableByteBufferPool( config.inputQueueBlockSize, config.useDirectBuffers );
+            }
+            return m_framePool;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
     private void removeEmitter( SessionEmitter sessionEmitter ) throws InterruptedException
     {
         SessionEmitterImpl emitterImpl;
@@ -289,6 +331,7 @@ class ColliderImpl extends Collider
         {
             m_lock.unlock();
         }
+        emitterImpl.stopNegotiations();
         emitterImpl.stopAndWait();
     }
 
@@ -333,13 +376,18 @@ class ColliderImpl extends Collider
 
     private final Selector m_selector;
     private final ThreadPool m_threadPool;
+    private final TimerQueue m_timerQueue;
+    private volatile int m_pendingReaders;
     private boolean m_run;
 
     private final ReentrantLock m_lock;
     private final Map<SessionEmitter, SessionEmitterImpl> m_emitters;
-    private final Map<DatagramListener, DatagramListenerImpl> m_datagramListeners;
+    private final Map<DatagramListener, DatagramListenerImpl[]> m_datagramListeners;
     private final Map<Integer, RetainableDataBlockCache> m_dataBlockCache;
+    private final Map<LocalSocketAddress, LocalAcceptorImpl> m_localAcceptors;
+    private final Set<LocalSessionImpl> m_localSessions;
     private RetainableByteBufferPool m_joinPool;
+    private RetainableByteBufferPool m_framePool;
     private boolean m_stop;
 
     private volatile SelectorThreadRunnable m_strHead;
@@ -347,6 +395,11 @@ class ColliderImpl extends Collider
     private SelectorThreadRunnable m_strLater;
     private final AtomicReference<SelectorAlarm> m_alarm;
 
+    private final boolean m_busyPoll;
+    private final int m_spins;
+    private final int m_yields;
+    private final int m_parkTime;
+
     public ColliderImpl( Config config ) throws IOException
     {
         super( config );
@@ -359,6 +412,8 @@ class ColliderImpl extends Collider
         if (threadPoolThreads < 4)
             threadPoolThreads = 4;
         m_threadPool = new ThreadPool( "CTP", threadPoolThreads );
+        m_timerQueue = new TimerQueue( m_threadPool );
+        m_pendingReaders = 0;
 
         if (config.inputQueueCacheMaxSize == 0)
             config.inputQueueCacheMaxSize = (threadPoolThreads * 3);
@@ -367,11 +422,36 @@ class ColliderImpl extends Collider
 
         m_lock = new ReentrantLock();
         m_emitters = new HashMap<SessionEmitter, SessionEmitterImpl>();
-        m_datagramListeners = new HashMap<DatagramListener, DatagramListenerImpl>();
+        m_datagramListeners = new HashMap<DatagramListener, DatagramListenerImpl[]>();
         m_dataBlockCache = new HashMap<Integer, RetainableDataBlockCache>();
+        m_localAcceptors = new HashMap<LocalSocketAddress, LocalAcceptorImpl>();
+        m_localSessions = new HashSet<LocalSessionImpl>();
         m_stop = false;
 
         m_alarm = new AtomicReference<SelectorAlarm>( new SelectorAlarm(null) );
+
+        m_busyPoll = config.selectorBusyPoll;
+        m_spins = config.selectorSpins;
+        m_yields = (config.selectorSpins + config.selectorYields);
+        m_parkTime = config.selectorParkTime;
+    }
+
+    private int busyPoll( int idle ) throws IOException
+    {
+        /* Returns the number of idle iterations. */
+        if ((m_selector.selectNow() > 0) || (m_strTail != null))
+            return 0;
+
+        if (idle < m_spins)
+        {
+            /* Just spin. */
+        }
+        else if ((idle < m_yields) || (m_parkTime == 0))
+            Thread.yield();
+        else
+            LockSupport.parkNanos( m_parkTime );
+
+        return ((idle == Integer.MAX_VALUE) ? idle : (idle + 1));
     }
 
     public void run()
@@ -385,6 +465,7 @@ class ColliderImpl extends Collider
         int statLoopIt = 0;
         int statLoopReadersG0 = 0;
         int readers = 0;
+        int idle = 0;
 
         try
         {
@@ -393,7 +474,13 @@ class ColliderImpl extends Collider
                 statLoopIt++;
                 if (m_run)
                 {
-                    if (readers > 0)
+                    if (m_busyPoll)
+                    {
+                        idle = busyPoll( idle );
+                        if (idle > 0)
+                            continue;
+                    }
+                    else if (readers > 0)
                     {
                         statLoopReadersG0++;
                         m_selector.selectNow();
@@ -403,12 +490,13 @@ class ColliderImpl extends Collider
                 }
                 else
                 {
+                    /* Reader sets CLOSE before it posts the Suspender,
+                     * so the session can be stopped and its key cancelled
+                     * while the readers counter is not decremented yet.
+                     */
                     m_selector.selectNow();
-                    if (m_selector.keys().size() == 0)
-                    {
-                        assert( readers == 0 );
+                    if ((m_selector.keys().size() == 0) && (readers == 0) && !hasLocalSessions())
                         break;
-                    }
                 }
 
                 if (s_strTailUpdater.compareAndSet(this, null, dummyRunnable))
@@ -452,6 +540,12 @@ class ColliderImpl extends Collider
                     }
                 }
 
+                /* Number of channels with received data
+                 * waiting for processing in the thread pool.
+                 */
+                if (m_pendingReaders != readers)
+                    m_pendingReaders = readers;
+
                 SelectorThreadRunnable strLater = m_strLater;
                 m_strLater = null;
                 while (strLater != null)
@@ -509,6 +603,13 @@ class ColliderImpl extends Collider
 
     public final void executeInSelectorThread( SelectorThreadRunnable runnable )
     {
+        if (m_busyPoll)
+        {
+            /* Selector thread never sleeps. */
+            executeInSelectorThreadNoWakeup( runnable );
+            return;
+        }
+
         assert( runnable.nextSelectorThreadRunnable == null );
         final SelectorThreadRunnable tail = s_strTailUpdater.getAndSet( this, runnable );
         if (tail == null)
@@ -552,19 +653,189 @@ class ColliderImpl extends Collider
         m_strLater = runnable;
     }
 
+    public final TimerQueue getTimerQueue()
+    {
+        return m_timerQueue;
+    }
+
+    public final int getPendingReaders()
+    {
+        return m_pendingReaders;
+    }
+
     public final void executeInThreadPool( ThreadPool.Runnable runnable )
     {
         m_threadPool.execute( runnable );
     }
 
+    private boolean hasLocalSessions()
+    {
+        m_lock.lock();
+        try
+        {
+            return !m_localSessions.isEmpty();
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    boolean addLocalSessions( LocalSessionImpl session1, LocalSessionImpl session2 )
+    {
+        m_lock.lock();
+        try
+        {
+            if (m_stop)
+                return false;
+            m_localSessions.add( session1 );
+            m_localSessions.add( session2 );
+            return true;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    void removeLocalSession( LocalSessionImpl session )
+    {
+        m_lock.lock();
+        try
+        {
+            m_localSessions.remove( session );
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    LocalAcceptorImpl getLocalAcceptor( LocalSocketAddress addr )
+    {
+        m_lock.lock();
+        try
+        {
+            return m_localAcceptors.get( addr );
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    void removeLocalAcceptor( LocalAcceptorImpl acceptorImpl )
+    {
+        m_lock.lock();
+        try
+        {
+            final LocalSocketAddress addr = acceptorImpl.getLocalAddress();
+            if (m_localAcceptors.get(addr) == acceptorImpl)
+                m_localAcceptors.remove( addr );
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    private void addLocalAcceptor( Acceptor acceptor, LocalSocketAddress addr ) throws IOException
+    {
+        final SessionSharedData sessionSharedData = getSessionSharedData( acceptor );
+
+        final LocalAcceptorImpl acceptorImpl = new LocalAcceptorImpl(
+                this,
+                sessionSharedData.getInputQueueDataBlockCache(),
+                acceptor,
+                sessionSharedData.getJoinMessageMaxSize(),
+                sessionSharedData.getJoinPool() );
+
+        m_lock.lock();
+        try
+        {
+            if (m_stop)
+                throw new IOException( "Collider stopped." );
+            else if (m_emitters.containsKey(acceptor))
+                throw new IOException( "Acceptor already registered." );
+            else if (m_localAcceptors.containsKey(addr))
+                throw new IOException( addr + ": address already in use." );
+
+            m_emitters.put( acceptor, acceptorImpl );
+            m_localAcceptors.put( addr, acceptorImpl );
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        acceptorImpl.start();
+    }
+
+    private void addLocalConnector( Connector connector )
+    {
+        final SessionSharedData sessionSharedData = getSessionSharedData( connector );
+
+        final LocalConnectorImpl connectorImpl = new LocalConnectorImpl(
+                this,
+                sessionSharedData.getInputQueueDataBlockCache(),
+                connector,
+                sessionSharedData.getJoinMessageMaxSize(),
+                sessionSharedData.getJoinPool() );
+
+        m_lock.lock();
+        try
+        {
+            if (m_stop)
+                throw new RuntimeException( "Collider is stopped." );
+            else if (m_emitters.containsKey(connector))
+                throw new RuntimeException( "Connector already registered." );
+            else
+                m_emitters.put( connector, connectorImpl );
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        connectorImpl.start();
+    }
+
     public void addAcceptor( Acceptor acceptor ) throws IOException
     {
-        final ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
-        serverSocketChannel.configureBlocking( false );
+        final SocketAddress addr = acceptor.getSocketAddress();
+        if (addr instanceof LocalSocketAddress)
+        {
+            addLocalAcceptor( acceptor, (LocalSocketAddress) addr );
+            return;
+        }
 
-        final ServerSocket socket = serverSocketChannel.socket();
-        socket.setReuseAddress( acceptor.reuseAddr );
-        socket.bind( acceptor.getAddr() );
+        final ServerSocketChannel serverSocketChannel;
+
+        if (UnixDomainSocket.isUnixAddress(addr))
+        {
+            serverSocketChannel = UnixDomainSocket.openServerSocketChannel();
+            try
+            {
+                serverSocketChannel.configureBlocking( false );
+                if (acceptor.reuseAddr)
+                    UnixDomainSocket.deleteFile( addr );
+                serverSocketChannel.bind( addr, acceptor.backlog );
+            }
+            catch (final IOException ex)
+            {
+                serverSocketChannel.close();
+                throw ex;
+            }
+        }
+        else
+        {
+            serverSocketChannel = ServerSocketChannel.open();
+            serverSocketChannel.configureBlocking( false );
+
+            final ServerSocket socket = serverSocketChannel.socket();
+            socket.setReuseAddress( acceptor.reuseAddr );
+            socket.bind( addr, acceptor.backlog );
+        }
 
         SessionSharedData sessionSharedData = getSessionSharedData( acceptor );
 
@@ -619,6 +890,12 @@ class ColliderImpl extends Collider
 
     public void addConnector( Connector connector )
     {
+        if (connector.getSocketAddress() instanceof LocalSocketAddress)
+        {
+            addLocalConnector( connector );
+            return;
+        }
+
         SessionSharedData sessionSharedData = getSessionSharedData( connector );
 
         ConnectorImpl connectorImpl = new ConnectorImpl(
@@ -657,42 +934,124 @@ class ColliderImpl extends Collider
         addDatagramListener( datagramListener, null );
     }
 
-    public void addDatagramListener(
-            DatagramListener datagramListener, NetworkInterface networkInterface ) throws IOException
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> getReusePortOption()
+    {
+        /* StandardSocketOptions.SO_REUSEPORT is available since Java 9 */
+        try
+        {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField( "SO_REUSEPORT" ).get( null );
+        }
+        catch (final Exception ex)
+        {
+            return null;
+        }
+    }
+
+    private static void closeDatagramChannels(
+            DatagramChannel [] datagramChannels, MembershipKey [] membershipKeys )
+    {
+        for (int idx=0; idx<datagramChannels.length; idx++)
+        {
+            if (membershipKeys[idx] != null)
+                membershipKeys[idx].drop();
+
+            if (datagramChannels[idx] != null)
+            {
+                try
+                {
+                    datagramChannels[idx].close();
+                }
+                catch (final IOException ex)
+                {
+                    /* Should never happen */
+                    if (s_logger.isLoggable(Level.WARNING))
+                        s_logger.warning( ex.toString() );
+                }
+            }
+        }
+    }
+
+    private static void openDatagramChannel(
+            DatagramListener datagramListener, NetworkInterface networkInterface, Config config,
+            DatagramChannel [] datagramChannels, MembershipKey [] membershipKeys, int idx ) throws IOException
     {
         final InetSocketAddress addr = datagramListener.getAddr();
         final DatagramChannel datagramChannel = DatagramChannel.open( StandardProtocolFamily.INET );
         final DatagramSocket socket = datagramChannel.socket();
-        final Config config = getConfig();
+        datagramChannels[idx] = datagramChannel;
 
         datagramChannel.configureBlocking( false );
         socket.setReuseAddress( true );
 
+        if (datagramChannels.length > 1)
+        {
+            final SocketOption<Boolean> reusePortOption = getReusePortOption();
+            if ((reusePortOption == null) || !datagramChannel.supportedOptions().contains(reusePortOption))
+            {
+                throw new IOException( "addDatagramListener(" + addr + "): " +
+                                       "SO_REUSEPORT is not supported, can not open " +
+                                       datagramChannels.length + " channels." );
+            }
+            datagramChannel.setOption( reusePortOption, true );
+        }
+
         int socketRecvBufSize = datagramListener.socketRecvBufSize;
         if (socketRecvBufSize == 0)
             socketRecvBufSize = config.socketRecvBufSize;
         if (socketRecvBufSize > 0)
             socket.setReceiveBufferSize( socketRecvBufSize );
 
-        MembershipKey membershipKey = null;
-
         if (networkInterface == null)
         {
             if (addr.getAddress().isMulticastAddress())
             {
-                datagramChannel.close();
                 throw new IOException( "addDatagramListener(" + addr + "): " +
                                        "addDatagramListener(DatagramListener, NetworkInterface) " +
                                        "should be used for multicast addresses." );
             }
             datagramChannel.bind( addr );
-            datagramChannel.connect( addr );
+
+            /* Connected sockets with the same address would not be balanced by the kernel,
+             * so multiple channels receive packets from any source,
+             * see DatagramListener.channels.
+             */
+            if (datagramChannels.length == 1)
+                datagramChannel.connect( addr );
         }
         else
         {
+            if (datagramChannels.length > 1)
+            {
+                throw new IOException( "addDatagramListener(" + addr + "): " +
+                                       "multiple channels are not supported for multicast addresses." );
+            }
             datagramChannel.bind( new InetSocketAddress( addr.getPort() ) );
             datagramChannel.setOption( StandardSocketOptions.IP_MULTICAST_IF, networkInterface );
-            membershipKey = datagramChannel.join( addr.getAddress(), networkInterface );
+            membershipKeys[idx] = datagramChannel.join( addr.getAddress(), networkInterface );
+        }
+    }
+
+    public void addDatagramListener(
+            DatagramListener datagramListener, NetworkInterface networkInterface ) throws IOException
+    {
+        final Config config = getConfig();
+        final int channels = (datagramListener.channels > 1) ? datagramListener.channels : 1;
+        final DatagramChannel [] datagramChannels = new DatagramChannel[channels];
+        final MembershipKey [] membershipKeys = new MembershipKey[channels];
+
+        try
+        {
+            for (int idx=0; idx<channels; idx++)
+            {
+                openDatagramChannel(
+                        datagramListener, networkInterface, config, datagramChannels, membershipKeys, idx );
+            }
+        }
+        catch (final IOException ex)
+        {
+            closeDatagramChannels( datagramChannels, membershipKeys );
+            throw ex;
         }
 
         int inputQueueBlockSize = datagramListener.inputQueueBlockSize;
@@ -722,8 +1081,13 @@ class ColliderImpl extends Collider
             m_lock.unlock();
         }
 
-        DatagramListenerImpl datagramListenerImpl = new DatagramListenerImpl(
-                this, m_selector, dataBlockCache, datagramListener, datagramChannel, membershipKey );
+        final DatagramListenerImpl [] datagramListenerImpls = new DatagramListenerImpl[channels];
+        for (int idx=0; idx<channels; idx++)
+        {
+            datagramListenerImpls[idx] = new DatagramListenerImpl(
+                    this, m_selector, dataBlockCache, datagramListener,
+                    datagramChannels[idx], membershipKeys[idx], idx );
+        }
 
         IOException ex = null;
 
@@ -735,7 +1099,7 @@ class ColliderImpl extends Collider
             else if (m_datagramListeners.containsKey(datagramListener))
                 ex = new IOException( "DatagramListener already registered." );
             else
-                m_datagramListeners.put( datagramListener, datagramListenerImpl );
+                m_datagramListeners.put( datagramListener, datagramListenerImpls );
         }
         finally
         {
@@ -743,41 +1107,103 @@ class ColliderImpl extends Collider
         }
 
         if (ex == null)
-            datagramListenerImpl.start();
+        {
+            for (DatagramListenerImpl datagramListenerImpl : datagramListenerImpls)
+                datagramListenerImpl.start();
+        }
         else
         {
-            if (membershipKey != null)
-                membershipKey.drop();
+            for (DatagramListenerImpl datagramListenerImpl : datagramListenerImpls)
+                datagramListenerImpl.releaseDataBlock();
+            closeDatagramChannels( datagramChannels, membershipKeys );
+            throw ex;
+        }
+    }
 
-            try
+    public void removeDatagramListener( DatagramListener datagramListener) throws InterruptedException
+    {
+        DatagramListenerImpl [] datagramListenerImpls;
+        m_lock.lock();
+        try
+        {
+            datagramListenerImpls = m_datagramListeners.get( datagramListener );
+            if (datagramListenerImpls == null)
+                return;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        if (datagramListenerImpls.length == 1)
+            datagramListenerImpls[0].stopAndWait();
+        else
+        {
+            /* Waiting for the other channels while running in the
+             * onDataReceived() of one of them could result in a deadlock.
+             */
+            boolean wait = true;
+            for (DatagramListenerImpl datagramListenerImpl : datagramListenerImpls)
             {
-                datagramChannel.close();
+                if (datagramListenerImpl.isCallbackThread())
+                    wait = false;
+                datagramListenerImpl.stop();
             }
-            catch (final IOException ex1)
+
+            if (wait)
             {
-                /* Should never happen */
-                if (s_logger.isLoggable(Level.WARNING))
-                    s_logger.warning( ex1.toString() );
+                for (DatagramListenerImpl datagramListenerImpl : datagramListenerImpls)
+                    datagramListenerImpl.waitStopped();
             }
-            throw ex;
         }
     }
 
-    public void removeDatagramListener( DatagramListener datagramListener) throws InterruptedException
+    public DatagramSender createDatagramSender(
+            InetSocketAddress localAddr, NetworkInterface networkInterface ) throws IOException
     {
-        DatagramListenerImpl datagramListenerImpl;
+        final DatagramChannel datagramChannel = DatagramChannel.open( StandardProtocolFamily.INET );
+        try
+        {
+            datagramChannel.configureBlocking( false );
+
+            final int socketSendBufSize = getConfig().socketSendBufSize;
+            if (socketSendBufSize > 0)
+                datagramChannel.socket().setSendBufferSize( socketSendBufSize );
+
+            if (localAddr != null)
+                datagramChannel.socket().setReuseAddress( true );
+            datagramChannel.bind( localAddr );
+            if (networkInterface != null)
+                datagramChannel.setOption( StandardSocketOptions.IP_MULTICAST_IF, networkInterface );
+        }
+        catch (final IOException ex)
+        {
+            datagramChannel.close();
+            throw ex;
+        }
+
+        final DatagramSenderImpl datagramSenderImpl =
+                new DatagramSenderImpl( this, m_selector, datagramChannel );
+
         m_lock.lock();
         try
         {
-            datagramListenerImpl = m_datagramListeners.get( datagramListener );
-            if (datagramListenerImpl == null)
-                return;
+            /* Registration is scheduled under the lock,
+             * so it will be done before the collider stop.
+             */
+            if (!m_stop)
+            {
+                datagramSenderImpl.start();
+                return datagramSenderImpl;
+            }
         }
         finally
         {
             m_lock.unlock();
         }
-        datagramListenerImpl.stopAndWait();
+
+        datagramChannel.close();
+        throw new IOException( "Collider stopped" );
     }
 
     public ThreadPool getThreadPool()
@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-Collider framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.collider;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Read-only buffer presenting a sequence of retainable buffers
+ * as one logical buffer without copying. Each part is retained
+ * by the composite buffer and released when the composite buffer
+ * is released, so the caller keeps the ownership of the buffers
+ * given to the constructor.
+ * <p>
+ * It is not a <tt>RetainableByteBuffer</tt> and there is no NIO
+ * buffer behind it, so it is received only by the listeners
+ * implementing <tt>Session.CompositeListener</tt>.
+ * Indexed and relative getters work across part boundaries,
+ * <tt>Session.sendData(CompositeByteBuffer)</tt> writes parts
+ * with a gathering write.
+ */
+public final class CompositeByteBuffer
+{
+    private final static AtomicIntegerFieldUpdater<CompositeByteBuffer> s_retainCountUpdater =
+            AtomicIntegerFieldUpdater.newUpdater( CompositeByteBuffer.class, "m_retainCount" );
+
+    private final RetainableByteBuffer [] m_parts;
+    private final ByteBuffer [] m_bufs;
+    private final int [] m_offs;
+    private int m_position;
+    private int m_limit;
+    private volatile int m_retainCount;
+
+    private CompositeByteBuffer( RetainableByteBuffer [] parts, CompositeByteBuffer src )
+    {
+        /* Parts are already retained for this instance,
+         * each part data is the whole part buffer [0, limit),
+         * position and limit are taken from the src if any.
+         */
+        m_parts = parts;
+        m_bufs = new ByteBuffer[parts.length];
+        m_offs = new int[parts.length+1];
+        int offs = 0;
+        for (int idx=0; idx<parts.length; idx++)
+        {
+            final ByteBuffer buf = parts[idx].getNioByteBuffer();
+            assert( buf.position() == 0 );
+            m_bufs[idx] = buf;
+            m_offs[idx] = offs;
+            offs += buf.limit();
+        }
+        m_offs[parts.length] = offs;
+        if (src == null)
+        {
+            m_position = 0;
+            m_limit = offs;
+        }
+        else
+        {
+            m_position = src.m_position;
+            m_limit = src.m_limit;
+        }
+        s_retainCountUpdater.lazySet( this, 1 );
+    }
+
+    private static RetainableByteBuffer [] sliceParts( RetainableByteBuffer [] buffers )
+    {
+        final RetainableByteBuffer [] parts = new RetainableByteBuffer[buffers.length];
+        for (int idx=0; idx<buffers.length; idx++)
+            parts[idx] = buffers[idx].slice();
+        return parts;
+    }
+
+    /**
+     * Creates a composite buffer of the remaining bytes of the given buffers,
+     * positions and limits of the buffers are not changed.
+     */
+    public CompositeByteBuffer( RetainableByteBuffer [] buffers )
+    {
+        this( sliceParts(buffers), null );
+    }
+
+    private int getPart( int index )
+    {
+        /* Binary search of the part containing the byte at index */
+        int lo = 0;
+        int hi = (m_bufs.length - 1);
+        while (lo < hi)
+        {
+            final int mid = ((lo + hi + 1) >>> 1);
+            if (m_offs[mid] <= index)
+                lo = mid;
+            else
+                hi = (mid - 1);
+        }
+        return lo;
+    }
+
+    private void checkIndex( int index, int size )
+    {
+        if ((index < 0) || (size > (m_limit - index)))
+            throw new IndexOutOfBoundsException();
+    }
+
+    private long getBytes( int index, int size )
+    {
+        /* Big endian as ByteBuffer by default */
+        int part = getPart( index );
+        int partOffs = (index - m_offs[part]);
+        long ret = 0;
+        for (int idx=0; idx<size; idx++)
+        {
+            while (partOffs == m_bufs[part].limit())
+            {
+                part++;
+                partOffs = 0;
+            }
+            ret = ((ret << 8) | (m_bufs[part].get(partOffs) & 0xFF));
+            partOffs++;
+        }
+        return ret;
+    }
+
+    private int nextPosition( int size )
+    {
+        final int position = m_position;
+        if (size > (m_limit - position))
+            throw new BufferUnderflowException();
+        m_position = (position + size);
+        return position;
+    }
+
+    public void retain()
+    {
+        for (;;)
+        {
+            final int retainCount = m_retainCount;
+            assert( retainCount > 0 );
+            if (s_retainCountUpdater.compareAndSet(this, retainCount, retainCount+1))
+                break;
+        }
+    }
+
+    public void release()
+    {
+        for (;;)
+        {
+            final int retainCount = m_retainCount;
+            assert( retainCount > 0 );
+            if (s_retainCountUpdater.compareAndSet(this, retainCount, retainCount-1))
+            {
+                if (retainCount == 1)
+                {
+                    for (RetainableByteBuffer part : m_parts)
+                        part.release();
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of parts.
+     */
+    public int getPartCount()
+    {
+        return m_parts.length;
+    }
+
+    /*
+     * Returns buffers covering the bytes between position and limit,
+     * used for the gathering write.
+     */
+    ByteBuffer [] getNioByteBuffers()
+    {
+        if (m_position == m_limit)
+            return new ByteBuffer[0];
+
+        final int first = getPart( m_position );
+        final int last = getPart( m_limit - 1 );
+        final ByteBuffer [] ret = new ByteBuffer[last-first+1];
+        for (int idx=first; idx<=last; idx++)
+        {
+            final ByteBuffer buf = m_bufs[idx].duplicate();
+            if (idx == last)
+                buf.limit( m_limit - m_offs[idx] );
+            if (idx == first)
+                buf.position( m_position - m_offs[idx] );
+            ret[idx-first] = buf;
+        }
+        return ret;
+    }
+
+    /*
+     * Returns parts owning the buffers returned by getNioByteBuffers().
+     */
+    RetainableByteBuffer [] getParts()
+    {
+        if (m_position == m_limit)
+            return new RetainableByteBuffer[0];
+
+        final int first = getPart( m_position );
+        final int last = getPart( m_limit - 1 );
+        final RetainableByteBuffer [] ret = new RetainableByteBuffer[last-first+1];
+        System.arraycopy( m_parts, first, ret, 0, ret.length );
+        return ret;
+    }
+
+    public CompositeByteBuffer slice()
+    {
+        final ByteBuffer [] bufs = getNioByteBuffers();
+        final RetainableByteBuffer [] parts = getParts();
+        for (int idx=0; idx<bufs.length; idx++)
+        {
+            final RetainableByteBuffer dup = parts[idx].duplicate();
+            dup.limit( bufs[idx].limit() );
+            dup.position( bufs[idx].position() );
+            parts[idx] = dup.slice();
+            dup.release();
+        }
+        return new CompositeByteBuffer( parts, null );
+    }
+
+    public CompositeByteBuffer duplicate()
+    {
+        for (RetainableByteBuffer part : m_parts)
+            part.retain();
+        return new CompositeByteBuffer( m_parts.clone(), this );
+    }
+
+    public CompositeByteBuffer clear()
+    {
+        m_position = 0;
+        m_limit = capacity();
+        return this;
+    }
+
+    public CompositeByteBuffer flip()
+    {
+        m_limit = m_position;
+        m_position = 0;
+        return this;
+    }
+
+    public int capacity()
+    {
+        return m_offs[m_offs.length-1];
+    }
+
+    public int limit()
+    {
+        return m_limit;
+    }
+
+    public CompositeByteBuffer limit( int limit )
+    {
+        if ((limit < 0) || (limit > capacity()))
+            throw new IllegalArgumentException();
+        m_limit = limit;
+        if (m_position > limit)
+            m_position = limit;
+        return this;
+    }
+
+    public int position()
+    {
+        return m_position;
+    }
+
+    public CompositeByteBuffer position( int position )
+    {
+        if ((position < 0) || (position > m_limit))
+            throw new IllegalArgumentException();
+        m_position = position;
+        return this;
+    }
+
+    public int remaining()
+    {
+        return (m_limit - m_position);
+    }
+
+    public byte get( int index )
+    {
+        checkIndex( index, 1 );
+        final int part = getPart( index );
+        return m_bufs[part].get( index - m_offs[part] );
+    }
+
+    public int getInt( int index )
+    {
+        checkIndex( index, 4 );
+        final int part = getPart( index );
+        final int partOffs = (index - m_offs[part]);
+        if (partOffs + 4 <= m_bufs[part].limit())
+            return m_bufs[part].getInt( partOffs );
+        return (int) getBytes( index, 4 );
+    }
+
+    public short getShort( int index )
+    {
+        checkIndex( index, 2 );
+        final int part = getPart( index );
+        final int partOffs = (index - m_offs[part]);
+        if (partOffs + 2 <= m_bufs[part].limit())
+            return m_bufs[part].getShort( partOffs );
+        return (short) getBytes( index, 2 );
+    }
+
+    public double getDouble( int index )
+    {
+        checkIndex( index, 8 );
+        final int part = getPart( index );
+        final int partOffs = (index - m_offs[part]);
+        if (partOffs + 8 <= m_bufs[part].limit())
+            return m_bufs[part].getDouble( partOffs );
+        return Double.longBitsToDouble( getBytes(index, 8) );
+    }
+
+    public byte get()
+    {
+        return get( nextPosition(1) );
+    }
+
+    public int getInt()
+    {
+        return getInt( nextPosition(4) );
+    }
+
+    public short getShort()
+    {
+        return getShort( nextPosition(2) );
+    }
+
+    public double getDouble()
+    {
+        return getDouble( nextPosition(8) );
+    }
+
+    public CompositeByteBuffer get( ByteBuffer dst )
+    {
+        if (dst.remaining() < remaining())
+            throw new BufferOverflowException();
+        for (ByteBuffer buf : getNioByteBuffers())
+            dst.put( buf );
+        m_position = m_limit;
+        return this;
+    }
+}
@@ -21,6 +21,7 @@ package org.jsl.collider;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 
 public abstract class Connector extends SessionEmitter
 {
@@ -29,6 +30,11 @@ public abstract class Connector extends SessionEmitter
         super( addr );
     }
 
+    public Connector( SocketAddress addr )
+    {
+        super( addr );
+    }
+
     /**
      * Creates <tt>Session.Listener</tt> instance to be linked with the session.
      * Called by framework, derived class supposed to override the method.
@@ -22,6 +22,7 @@ package org.jsl.collider;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.net.SocketAddress;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.concurrent.locks.Condition;
@@ -84,16 +85,19 @@ class ConnectorImpl
                 IOException thrown;
                 try
                 {
-                    m_socketChannel = SocketChannel.open();
+                    final SocketAddress addr = m_connector.getSocketAddress();
+                    m_socketChannel = UnixDomainSocket.isUnixAddress(addr)
+                            ? UnixDomainSocket.openSocketChannel()
+                            : SocketChannel.open();
                     m_socketChannel.configureBlocking( false );
-                    final boolean connected = m_socketChannel.connect( m_connector.getAddr() );
+                    final boolean connected = m_socketChannel.connect( m_connector.getSocketAddress() );
                     m_collider.executeInSelectorThread( new Starter2(connected) );
                     return;
                 }
                 catch (final IOException ex)
                 {
                     if (s_logger.isLoggable(Level.WARNING))
-                        s_logger.log(Level.WARNING, m_connector.getAddr() + ": " + ex + ".");
+                        s_logger.log(Level.WARNING, m_connector.getSocketAddress() + ": " + ex + ".");
                     thrown = ex;
                 }
 
@@ -113,7 +117,7 @@ class ConnectorImpl
             {
                 /* Nothing to cleanup here */
                 if (s_logger.isLoggable(Level.FINE))
-                    s_logger.log( Level.FINE, m_connector.getAddr() + ": stop STARTING_0->STARTING_1" );
+                    s_logger.log( Level.FINE, m_connector.getSocketAddress() + ": stop STARTING_0->STARTING_1" );
             }
         }
     }
@@ -139,7 +143,7 @@ class ConnectorImpl
                 catch (final IOException ex)
                 {
                     if (s_logger.isLoggable(Level.WARNING))
-                        s_logger.warning( m_connector.getAddr() + ": " + ex + "." );
+                        s_logger.warning( m_connector.getSocketAddress() + ": " + ex + "." );
                     thrown = ex;
                 }
 
@@ -187,7 +191,7 @@ class ConnectorImpl
                 m_socketChannel = null;
 
                 if (s_logger.isLoggable(Level.FINE))
-                    s_logger.log( Level.FINE, m_connector.getAddr() + ": stop STARTING_1->STARTING_2" );
+                    s_logger.log( Level.FINE, m_connector.getSocketAddress() + ": stop STARTING_1->STARTING_2" );
             }
             return 0;
         }
@@ -223,7 +227,7 @@ class ConnectorImpl
 
             if (s_logger.isLoggable(Level.FINE))
             {
-                s_logger.log( Level.FINE, m_connector.getAddr() + ": " +
+                s_logger.log( Level.FINE, m_connector.getSocketAddress() + ": " +
                         ConnectorImpl.this.toString() + ": " +
                         " connected=" + connected + " thrown=" + thrown );
             }
@@ -269,7 +273,7 @@ class ConnectorImpl
             if (s_logger.isLoggable(Level.FINE))
             {
                 s_logger.log( Level.FINE,
-                    m_connector.getAddr() + ": " + ConnectorImpl.this.toString() );
+                    m_connector.getSocketAddress() + ": " + ConnectorImpl.this.toString() );
             }
 
             if (m_selectionKey != null)
@@ -340,7 +344,7 @@ class ConnectorImpl
         {
             final StringWriter sw = new StringWriter();
             ex.printStackTrace( new PrintWriter(sw) );
-            s_logger.log( Level.WARNING, m_connector.getAddr() + ":\n" + sw.toString() );
+            s_logger.log( Level.WARNING, m_connector.getSocketAddress() + ":\n" + sw.toString() );
         }
     }
 
@@ -365,7 +369,7 @@ class ConnectorImpl
     public void start()
     {
         if (s_logger.isLoggable(Level.FINE))
-            s_logger.log( Level.FINE, m_connector.getAddr().toString() );
+            s_logger.log( Level.FINE, m_connector.getSocketAddress().toString() );
         m_collider.executeInThreadPool( new Starter1() );
     }
 
@@ -382,7 +386,7 @@ class ConnectorImpl
         {
             if (s_logger.isLoggable(Level.FINE))
             {
-                s_logger.log( Level.FINE, m_connector.getAddr() +
+                s_logger.log( Level.FINE, m_connector.getSocketAddress() +
                         ": " + this.toString() + ": state=" + m_state + " stop=" + m_stop );
             }
 
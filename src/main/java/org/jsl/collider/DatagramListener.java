@@ -31,6 +31,9 @@ public abstract class DatagramListener
     public int inputQueueBlockSize;
     public int forwardReadMaxSize;
     public int readMinSize;
+    public int batchMaxPackets;
+    public int channels;
+    public int sourceAddrCacheSize;
 
     public DatagramListener( InetSocketAddress addr )
     {
@@ -41,6 +44,31 @@ public abstract class DatagramListener
         inputQueueBlockSize = 0;
         forwardReadMaxSize = 0;
         readMinSize = 0;
+
+        /* 0 - batch delivery is disabled,
+         * onDataReceived() is called for each packet.
+         */
+        batchMaxPackets = 0;
+
+        /* Number of channels bound to the address with SO_REUSEPORT
+         * (requires Java 9+, not supported for multicast addresses).
+         * Channels are read independently, data from the different
+         * channels can be processed concurrently, data from each channel
+         * is processed serially. 0 or 1 - one channel.
+         * Note the single channel is connected to the listener address,
+         * so it receives only packets sent from that address,
+         * while multiple channels are not connected (the kernel does not
+         * balance packets between connected channels) and receive
+         * packets from any source.
+         */
+        channels = 0;
+
+        /* Maximum number of source addresses cached by each channel
+         * not connected to the listener address (multicast or multiple
+         * channels), packets from the same sender get the same
+         * SocketAddress instance then. 0 - cache is disabled.
+         */
+        sourceAddrCacheSize = 256;
     }
 
     public InetSocketAddress getAddr()
@@ -48,5 +76,46 @@ public abstract class DatagramListener
         return m_addr;
     }
 
+    /**
+     * Called by framework when a packet is received.
+     * Packets from the same sender get the same <tt>sourceAddr</tt> instance
+     * while the sender is in the source address cache
+     * (see <tt>sourceAddrCacheSize</tt>), so the listener can keep
+     * per sender state in an <tt>IdentityHashMap</tt> and does not retain
+     * an address object per packet. The JDK still allocates an address
+     * each time the sender changes, the cached instance is returned instead.
+     */
     public abstract void onDataReceived( RetainableByteBuffer data, SocketAddress sourceAddr );
+
+    /**
+     * Called by framework when a packet is received on the channel <tt>channel</tt>,
+     * default implementation calls <tt>onDataReceived(data, sourceAddr)</tt>.
+     */
+    public void onDataReceived( RetainableByteBuffer data, SocketAddress sourceAddr, int channel )
+    {
+        onDataReceived( data, sourceAddr );
+    }
+
+    /**
+     * Called by framework instead of the <tt>onDataReceived(data, sourceAddr, channel)</tt>
+     * if <tt>batchMaxPackets</tt> is greater than 0, receives a number of packets
+     * located in the same data buffer. Packet <tt>idx</tt> starts at position
+     * <tt>offsets[idx]</tt> of the data buffer and has <tt>lengths[idx]</tt> bytes.
+     * Arrays are reused by the framework, should not be retained.
+     * Default implementation calls <tt>onDataReceived(data, sourceAddr, channel)</tt>
+     * for each packet.
+     */
+    public void onDataReceived(
+            RetainableByteBuffer data, int [] offsets, int [] lengths,
+            SocketAddress [] sourceAddrs, int packets, int channel )
+    {
+        final int limit = data.limit();
+        for (int idx=0; idx<packets; idx++)
+        {
+            data.limit( limit );
+            data.position( offsets[idx] );
+            data.limit( offsets[idx] + lengths[idx] );
+            onDataReceived( data, sourceAddrs[idx], channel );
+        }
+    }
 }
@@ -22,12 +22,16 @@ package org.jsl.collider;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.Selector;
 import java.nio.channels.MembershipKey;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.ClosedChannelException;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
@@ -41,6 +45,10 @@ public class DatagramListenerImpl extends ThreadPool.Runnable
     private static final AtomicIntegerFieldUpdater<DatagramListenerImpl>
         s_stateUpdater = AtomicIntegerFieldUpdater.newUpdater( DatagramListenerImpl.class, "m_state" );
 
+    private static final AtomicReferenceFieldUpdater<DatagramListenerImpl, PacketInfo>
+        s_packetInfoHeadUpdater = AtomicReferenceFieldUpdater.newUpdater(
+            DatagramListenerImpl.class, PacketInfo.class, "m_packetInfoHead" );
+
     private static final DummyListener s_dummyListener = new DummyListener();
 
     private static final int STATE_MASK  = 0x30000000;
@@ -60,17 +68,32 @@ public class DatagramListenerImpl extends ThreadPool.Runnable
     private final Suspender m_suspender;
     private final int m_readMinSize;
     private final InetSocketAddress m_addr;
+    private final SocketAddress m_connectedAddr;
     private final int m_forwardReadMaxSize;
+    private final int m_channel;
+
+    /* Source addresses of the not connected channel by address bytes
+     * and port (InetSocketAddress.equals()), used by the reader only.
+     */
+    private final HashMap<SocketAddress, SocketAddress> m_sourceAddrCache;
+    private final int m_sourceAddrCacheSize;
 
     private volatile DatagramListener m_listener;
     private SelectionKey m_selectionKey;
     private volatile int m_state;
-    private PacketInfo m_packetInfoHead;
+    private volatile PacketInfo m_packetInfoHead;
     private PacketInfo m_packetInfoTail;
+    private PacketInfo m_packetInfoFree;
+    private PacketInfo m_packetInfoHeadCache;
     private RetainableDataBlock m_dataBlockHead;
     private RetainableDataBlock m_dataBlockTail;
     private long m_threadID;
 
+    private final int [] m_batchOffsets;
+    private final int [] m_batchLengths;
+    private final SocketAddress [] m_batchAddrs;
+    private int m_batchPackets;
+
     /* Collider.removeDatagramListener() definitely should guarantee
      * that no one thread process input data on return.
      * There is one more resource: socket, but not sure we need to wait it's close.
@@ -79,17 +102,15 @@ public class DatagramListenerImpl extends ThreadPool.Runnable
     private final Condition m_cond;
     private boolean m_run;
 
+    /* PacketInfo instances are recycled: nodes in the list before
+     * the m_packetInfoHead are already processed and can be reused
+     * by the reader, so there is no allocation per packet.
+     */
     private static class PacketInfo
     {
-        public final int length;
-        public final SocketAddress addr;
+        public int length;
+        public SocketAddress addr;
         public PacketInfo next;
-
-        public PacketInfo( int length, SocketAddress addr )
-        {
-            this.length = length;
-            this.addr = addr;
-        }
     }
 
     private static class DummyListener extends DatagramListener
@@ -252,6 +273,21 @@ public class DatagramListenerImpl extends ThreadPool.Runnable
         m_datagramChannel = null;
     }
 
+    private void flushBatch( RetainableByteBuffer rw )
+    {
+        final int packets = m_batchPackets;
+        if (packets > 0)
+        {
+            final int lastIdx = (packets - 1);
+            rw.limit( m_batchOffsets[lastIdx] + m_batchLengths[lastIdx] );
+            rw.position( m_batchOffsets[0] );
+            m_listener.onDataReceived( rw, m_batchOffsets, m_batchLengths, m_batchAddrs, packets, m_channel );
+            /* Do not retain the source addresses until the next batch. */
+            Arrays.fill( m_batchAddrs, 0, packets, null );
+            m_batchPackets = 0;
+        }
+    }
+
     private void handleData( int state )
     {
         assert( m_threadID == -1 );
@@ -268,12 +304,13 @@ public class DatagramListenerImpl extends ThreadPool.Runnable
         for (;;)
         {
             final PacketInfo packetInfo = m_packetInfoHead.next;
-            m_packetInfoHead.next = null;
-            m_packetInfoHead = packetInfo;
+            m_packetInfoHead.addr = null;
+            s_packetInfoHeadUpdater.lazySet( this, packetInfo );
 
             position = (position + 3) & -4;
             if ((capacity - position) < m_readMinSize)
             {
+                flushBatch( rw );
                 final RetainableDataBlock next = dataBlock.next;
                 dataBlock.next = null;
                 dataBlock.release();
@@ -285,10 +322,22 @@ public class DatagramListenerImpl extends ThreadPool.Runnable
             }
 
             final int limit = (position + packetInfo.length);
-            rw.position( position );
-            rw.limit( limit );
-
-            m_listener.onDataReceived( rw, packetInfo.addr );
+            if (m_batchOffsets == null)
+            {
+                /* Aligned position can be beyond the previous packet limit. */
+                rw.limit( limit );
+                rw.position( position );
+                m_listener.onDataReceived( rw, packetInfo.addr, m_channel );
+            }
+            else
+            {
+                final int idx = m_batchPackets++;
+                m_batchOffsets[idx] = position;
+                m_batchLengths[idx] = packetInfo.length;
+                m_batchAddrs[idx] = packetInfo.addr;
+                if (m_batchPackets == m_batchOffsets.length)
+                    flushBatch( rw );
+            }
 
             position = limit;
 
@@ -297,8 +346,9 @@ public class DatagramListenerImpl extends ThreadPool.Runnable
             if (bytesRemaining > 0)
                 continue;
 
-            rw.position( position );
+            flushBatch( rw );
             rw.limit( capacity );
+            rw.position( position );
 
             for (;;)
             {
@@ -380,7 +430,8 @@ public class DatagramListenerImpl extends ThreadPool.Runnable
             RetainableDataBlockCache dataBlockCache,
             DatagramListener datagramListener,
             DatagramChannel datagramChannel,
-            MembershipKey membershipKey )
+            MembershipKey membershipKey,
+            int channel )
     {
         m_collider = collider;
         m_selector = selector;
@@ -388,6 +439,7 @@ public class DatagramListenerImpl extends ThreadPool.Runnable
         m_datagramListener = datagramListener;
         m_datagramChannel = datagramChannel;
         m_membershipKey = membershipKey;
+        m_channel = channel;
         m_starter0 = new Starter0();
         m_starter1 = new Starter1();
         m_suspender = new Suspender();
@@ -398,16 +450,50 @@ public class DatagramListenerImpl extends ThreadPool.Runnable
         m_readMinSize = readMinSize;
         m_addr = datagramListener.getAddr();
 
+        /* Source address of the connected channel is always the same,
+         * let's not allocate it for each received packet.
+         */
+        m_connectedAddr = datagramChannel.isConnected() ? m_addr : null;
+
+        final int sourceAddrCacheSize = datagramListener.sourceAddrCacheSize;
+        if ((m_connectedAddr == null) && (sourceAddrCacheSize > 0))
+        {
+            m_sourceAddrCache = new HashMap<SocketAddress, SocketAddress>();
+            m_sourceAddrCacheSize = sourceAddrCacheSize;
+        }
+        else
+        {
+            m_sourceAddrCache = null;
+            m_sourceAddrCacheSize = 0;
+        }
+
         int forwardReadMaxSize = datagramListener.forwardReadMaxSize;
         if (forwardReadMaxSize == 0)
             forwardReadMaxSize = collider.getConfig().forwardReadMaxSize;
         m_forwardReadMaxSize = forwardReadMaxSize;
 
+        final int batchMaxPackets = datagramListener.batchMaxPackets;
+        if (batchMaxPackets > 0)
+        {
+            m_batchOffsets = new int[batchMaxPackets];
+            m_batchLengths = new int[batchMaxPackets];
+            m_batchAddrs = new SocketAddress[batchMaxPackets];
+        }
+        else
+        {
+            m_batchOffsets = null;
+            m_batchLengths = null;
+            m_batchAddrs = null;
+        }
+        m_batchPackets = 0;
+
         m_listener = datagramListener;
         m_selectionKey = null;
         m_state = ST_STARTING;
-        m_packetInfoHead = new PacketInfo( 0, null );
+        m_packetInfoHead = new PacketInfo();
         m_packetInfoTail = m_packetInfoHead;
+        m_packetInfoFree = m_packetInfoHead;
+        m_packetInfoHeadCache = m_packetInfoHead;
         m_dataBlockHead = dataBlockCache.get(1);
         m_dataBlockTail = m_dataBlockHead;
         m_threadID = -1;
@@ -417,12 +503,64 @@ public class DatagramListenerImpl extends ThreadPool.Runnable
         m_run = true;
     }
 
+    private PacketInfo getPacketInfo()
+    {
+        final PacketInfo packetInfo = m_packetInfoFree;
+        if (packetInfo == m_packetInfoHeadCache)
+        {
+            m_packetInfoHeadCache = m_packetInfoHead;
+            if (packetInfo == m_packetInfoHeadCache)
+                return new PacketInfo();
+        }
+        m_packetInfoFree = packetInfo.next;
+        packetInfo.next = null;
+        return packetInfo;
+    }
+
+    private SocketAddress receive( ByteBuffer buf ) throws IOException
+    {
+        /* Not connected channel has to use receive(),
+         * JDK reuses the returned address while the packets come
+         * from the same sender, but allocates a new one each time
+         * the sender changes, there is no API to avoid it,
+         * the address is replaced with the cached instance then.
+         */
+        if (m_connectedAddr != null)
+            return (m_datagramChannel.read(buf) > 0) ? m_connectedAddr : null;
+
+        final SocketAddress sourceAddr = m_datagramChannel.receive( buf );
+        if ((sourceAddr == null) || (m_sourceAddrCache == null))
+            return sourceAddr;
+
+        final SocketAddress cachedAddr = m_sourceAddrCache.get( sourceAddr );
+        if (cachedAddr != null)
+            return cachedAddr;
+
+        if (m_sourceAddrCache.size() < m_sourceAddrCacheSize)
+            m_sourceAddrCache.put( sourceAddr, sourceAddr );
+        return sourceAddr;
+    }
+
     public void start()
     {
         m_collider.executeInSelectorThread( new SelectorRegistrator() );
     }
 
-    public void stopAndWait() throws InterruptedException
+    public void releaseDataBlock()
+    {
+        /* Listener was not started */
+        assert( m_dataBlockHead == m_dataBlockTail );
+        m_dataBlockHead.release();
+        m_dataBlockHead = null;
+        m_dataBlockTail = null;
+    }
+
+    public boolean isCallbackThread()
+    {
+        return (Thread.currentThread().getId() == m_threadID);
+    }
+
+    public void stop()
     {
         /* Not a problem if each possible stopping thread will change the value. */
         m_listener = s_dummyListener;
@@ -502,20 +640,30 @@ public class DatagramListenerImpl extends ThreadPool.Runnable
                 else
                     break;
             }
+        }
+    }
 
-            m_lock.lock();
-            try
-            {
-                while (m_run)
-                    m_cond.await();
-            }
-            finally
-            {
-                m_lock.unlock();
-            }
+    public void waitStopped() throws InterruptedException
+    {
+        m_lock.lock();
+        try
+        {
+            while (m_run)
+                m_cond.await();
+        }
+        finally
+        {
+            m_lock.unlock();
         }
     }
 
+    public void stopAndWait() throws InterruptedException
+    {
+        stop();
+        if (!isCallbackThread())
+            waitStopped();
+    }
+
     public void runInThreadPool()
     {
         RetainableDataBlock dataBlock = m_dataBlockTail;
@@ -531,7 +679,7 @@ public class DatagramListenerImpl extends ThreadPool.Runnable
 
         try
         {
-            SocketAddress sourceAddr = m_datagramChannel.receive( dataBlock.ww );
+            SocketAddress sourceAddr = receive( dataBlock.ww );
 
             int bytesReceived = dataBlock.ww.position() - pos;
             if ((sourceAddr == null) || (bytesReceived == 0))
@@ -558,7 +706,9 @@ public class DatagramListenerImpl extends ThreadPool.Runnable
                     m_dataBlockTail = dataBlock;
                 }
 
-                final PacketInfo packetInfo = new PacketInfo( bytesReceived, sourceAddr );
+                final PacketInfo packetInfo = getPacketInfo();
+                packetInfo.length = bytesReceived;
+                packetInfo.addr = sourceAddr;
                 m_packetInfoTail.next = packetInfo;
                 m_packetInfoTail = packetInfo;
 
@@ -599,7 +749,7 @@ public class DatagramListenerImpl extends ThreadPool.Runnable
                 else
                     dataBlock.ww.position( pos );
 
-                sourceAddr = m_datagramChannel.receive( dataBlock.ww );
+                sourceAddr = receive( dataBlock.ww );
 
                 bytesReceived = (dataBlock.ww.position() - pos);
                 if ((sourceAddr == null) || (bytesReceived == 0))
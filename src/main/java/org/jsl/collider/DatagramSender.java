@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-Collider framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.collider;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+public interface DatagramSender
+{
+    /**
+     * Returns local socket address of the sender.
+     */
+    public SocketAddress getLocalAddress();
+
+    /**
+     * Schedules a datagram to be sent to the given address.
+     * Byte buffer remaining bytes are sent as a single datagram,
+     * buffer attributes remain unchanged, but content of the buffer
+     * should not be modified while datagram is not sent.
+     * RetainableByteBuffer is retained by the framework
+     * and released after the datagram is sent.
+     * @return >=0 - datagram is scheduled, will be sent as soon as possible
+     *          -1 - the sender is closed
+     */
+    public int sendData( ByteBuffer data, SocketAddress addr );
+    public int sendData( RetainableByteBuffer data, SocketAddress addr );
+
+    /**
+     * Closes the sender. Works asynchronously,
+     * datagrams scheduled before will be sent,
+     * underlying channel is closed after that.
+     * @return  0 - sender is closed
+     *         -1 - sender already closed
+     */
+    public int close();
+}
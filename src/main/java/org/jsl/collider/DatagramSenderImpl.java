@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-Collider framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.collider;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+class DatagramSenderImpl implements DatagramSender, ColliderImpl.ChannelHandler
+{
+    private static final Logger s_logger = Logger.getLogger( "org.jsl.collider.Datagram" );
+    private static final Node CLOSE_MARKER = new Node( null, null, null );
+
+    private static final AtomicReferenceFieldUpdater<Node, Node> s_nodeNextUpdater =
+            AtomicReferenceFieldUpdater.newUpdater( Node.class, Node.class, "next" );
+
+    /* Maximum number of datagrams sent by one writer run,
+     * writer is rescheduled after that to let other tasks run.
+     */
+    private static final int WRITE_MAX_PACKETS = 64;
+
+    private final ColliderImpl m_collider;
+    private final Selector m_selector;
+    private final DatagramChannel m_datagramChannel;
+    private final SocketAddress m_localAddress;
+    private SelectionKey m_selectionKey;
+
+    private final Starter m_starter;
+    private final Writer m_writer;
+
+    private Node m_head;
+    private final AtomicReference<Node> m_tail;
+
+    private static class Node
+    {
+        public volatile Node next;
+        public ByteBuffer buf;
+        public RetainableByteBuffer rbuf;
+        public SocketAddress addr;
+
+        public Node( ByteBuffer buf, RetainableByteBuffer rbuf, SocketAddress addr )
+        {
+            this.buf = buf;
+            this.rbuf = rbuf;
+            this.addr = addr;
+        }
+    }
+
+    private class SelectorRegistrator extends ColliderImpl.SelectorThreadRunnable
+    {
+        public int runInSelectorThread()
+        {
+            try
+            {
+                m_selectionKey = m_datagramChannel.register( m_selector, 0, DatagramSenderImpl.this );
+            }
+            catch (final ClosedChannelException ex)
+            {
+                /* Should not happen, means a bug in the framework. */
+                if (s_logger.isLoggable(Level.WARNING))
+                    s_logger.warning( m_localAddress + ": " + ex.toString() );
+            }
+            return 0;
+        }
+    }
+
+    private class SelectorDeregistrator extends ColliderImpl.SelectorThreadRunnable
+    {
+        public int runInSelectorThread()
+        {
+            if (s_logger.isLoggable(Level.FINE))
+                s_logger.fine( m_localAddress.toString() );
+
+            if (m_selectionKey != null)
+            {
+                m_selectionKey.cancel();
+                m_selectionKey = null;
+            }
+
+            try
+            {
+                m_datagramChannel.close();
+            }
+            catch (final IOException ex)
+            {
+                if (s_logger.isLoggable(Level.WARNING))
+                    s_logger.warning( m_localAddress + ": " + ex.toString() );
+            }
+            return 0;
+        }
+    }
+
+    private class Starter extends ColliderImpl.SelectorThreadRunnable
+    {
+        public int runInSelectorThread()
+        {
+            m_selectionKey.interestOps( SelectionKey.OP_WRITE );
+            return 0;
+        }
+    }
+
+    private class Writer extends ThreadPool.Runnable
+    {
+        public void runInThreadPool()
+        {
+            Node node = m_head;
+            for (int packets=0;;)
+            {
+                try
+                {
+                    if (m_datagramChannel.send(node.buf, node.addr) == 0)
+                    {
+                        /* Socket send buffer is full. */
+                        m_collider.executeInSelectorThread( m_starter );
+                        return;
+                    }
+                }
+                catch (final IOException ex)
+                {
+                    /* Datagram is lost, but the sender is still usable. */
+                    if (s_logger.isLoggable(Level.WARNING))
+                        s_logger.warning( m_localAddress + " -> " + node.addr + ": " + ex.toString() );
+                }
+
+                node.buf = null;
+                node.addr = null;
+                if (node.rbuf != null)
+                {
+                    node.rbuf.release();
+                    node.rbuf = null;
+                }
+
+                Node next = node.next;
+                if (next == null)
+                {
+                    m_head = null;
+                    if (m_tail.compareAndSet(node, null))
+                        return;
+                    while ((next = node.next) == null);
+                }
+                s_nodeNextUpdater.lazySet( node, null );
+
+                if (next == CLOSE_MARKER)
+                {
+                    m_head = null;
+                    m_collider.executeInSelectorThread( new SelectorDeregistrator() );
+                    return;
+                }
+
+                m_head = next;
+                if (++packets == WRITE_MAX_PACKETS)
+                {
+                    m_collider.executeInThreadPool( this );
+                    return;
+                }
+                node = next;
+            }
+        }
+    }
+
+    private int addNode( Node node )
+    {
+        for (;;)
+        {
+            final Node tail = m_tail.get();
+            if (tail == CLOSE_MARKER)
+            {
+                if (node.rbuf != null)
+                    node.rbuf.release();
+                return -1;
+            }
+
+            if (m_tail.compareAndSet(tail, node))
+            {
+                if (tail == null)
+                {
+                    m_head = node;
+                    m_collider.executeInThreadPool( m_writer );
+                }
+                else
+                    tail.next = node;
+                return 1;
+            }
+        }
+    }
+
+    public DatagramSenderImpl( ColliderImpl collider, Selector selector, DatagramChannel datagramChannel )
+    {
+        m_collider = collider;
+        m_selector = selector;
+        m_datagramChannel = datagramChannel;
+        m_localAddress = datagramChannel.socket().getLocalSocketAddress();
+        m_starter = new Starter();
+        m_writer = new Writer();
+        m_head = null;
+        m_tail = new AtomicReference<Node>();
+    }
+
+    public void start()
+    {
+        m_collider.executeInSelectorThread( new SelectorRegistrator() );
+    }
+
+    public SocketAddress getLocalAddress()
+    {
+        return m_localAddress;
+    }
+
+    public int sendData( ByteBuffer data, SocketAddress addr )
+    {
+        assert( data.remaining() > 0 );
+        return addNode( new Node(data.duplicate(), null, addr) );
+    }
+
+    public int sendData( RetainableByteBuffer data, SocketAddress addr )
+    {
+        assert( data.remaining() > 0 );
+        data.retain();
+        return addNode( new Node(data.getNioByteBuffer().duplicate(), data, addr) );
+    }
+
+    public int close()
+    {
+        for (;;)
+        {
+            final Node tail = m_tail.get();
+            if (tail == CLOSE_MARKER)
+                return -1;
+
+            if (m_tail.compareAndSet(tail, CLOSE_MARKER))
+            {
+                if (tail == null)
+                    m_collider.executeInSelectorThread( new SelectorDeregistrator() );
+                else
+                    tail.next = CLOSE_MARKER;
+                return 0;
+            }
+        }
+    }
+
+    public int handleReadyOps( ThreadPool threadPool )
+    {
+        assert( m_selectionKey.readyOps() == SelectionKey.OP_WRITE );
+        m_selectionKey.interestOps( 0 );
+        threadPool.execute( m_writer );
+        return 0;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-Collider framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.collider;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decoder of the length-prefixed message header
+ * used by the framework to split the session input stream
+ * into messages (see <tt>SessionEmitter.frameDecoder</tt>).
+ * The same instance is used for all sessions of the emitter,
+ * so it should not keep any state.
+ */
+public interface FrameDecoder
+{
+    /**
+     * Called when the whole header is available, header position
+     * points to the beginning of the message and can be changed by the method.
+     * Should return the length of the whole message including header,
+     * a value less than the header size means the header is invalid,
+     * session will be closed in this case.
+     */
+    public int getFrameLength( ByteBuffer header );
+}
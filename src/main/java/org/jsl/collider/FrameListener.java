@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-Collider framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.collider;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Session listener wrapper splitting the input stream into messages.
+ * Messages available in the data block as a whole are delivered
+ * as a part of the data block without copying, only messages
+ * split between data blocks are copied into the buffer from the pool.
+ * Messages larger than the data block are not copied, but delivered
+ * as a CompositeByteBuffer referencing the data blocks, if the listener
+ * is a Session.CompositeListener.
+ * Called serially, so does not need any synchronization.
+ */
+
+class FrameListener implements Session.Listener
+{
+    private static final Logger s_logger = Logger.getLogger( "org.jsl.collider.Session" );
+
+    private final Session m_session;
+    private final int m_headerSize;
+    private final FrameDecoder m_decoder;
+    private final int m_frameMaxSize;
+    private final RetainableByteBufferPool m_pool;
+    private final int m_compositeMinSize;
+    private final ByteBuffer m_header;
+    private final ArrayList<RetainableByteBuffer> m_parts;
+    private Session.Listener m_listener;
+    private Session.CompositeListener m_compositeListener;
+    private boolean m_bypass;
+    private boolean m_invalid;
+    private RetainableByteBuffer m_buf;
+    private int m_partsBytes;
+    private int m_frameLength;
+
+    private static void copyData( ByteBuffer dst, ByteBuffer src, int bytes )
+    {
+        final int limit = src.limit();
+        src.limit( src.position() + bytes );
+        dst.put( src );
+        src.limit( limit );
+    }
+
+    private int getFrameLength( ByteBuffer header )
+    {
+        final int pos = header.position();
+        final int frameLength = m_decoder.getFrameLength( header );
+        header.position( pos );
+
+        if (frameLength < m_headerSize)
+        {
+            if (s_logger.isLoggable(Level.WARNING))
+            {
+                s_logger.warning(
+                        m_session.getLocalAddress() + " -> " + m_session.getRemoteAddress() +
+                        ": invalid frame header (" + frameLength + "), closing session." );
+            }
+            m_invalid = true;
+            m_session.closeConnection();
+            return -1;
+        }
+
+        if ((m_frameMaxSize > 0) && (frameLength > m_frameMaxSize))
+        {
+            if (s_logger.isLoggable(Level.WARNING))
+            {
+                s_logger.warning(
+                        m_session.getLocalAddress() + " -> " + m_session.getRemoteAddress() +
+                        ": frame length " + frameLength + " exceeds the limit " +
+                        m_frameMaxSize + ", closing session." );
+            }
+            m_invalid = true;
+            m_session.closeConnection();
+            return -1;
+        }
+        return frameLength;
+    }
+
+    private void addPart( RetainableByteBuffer data, ByteBuffer buf, int bytes )
+    {
+        /* buf is a data NIO buffer, indexes are the same for the duplicate. */
+        final int pos = buf.position();
+        final RetainableByteBuffer part = data.duplicate();
+        part.limit( pos + bytes );
+        part.position( pos );
+        m_parts.add( part );
+        m_partsBytes += bytes;
+        buf.position( pos + bytes );
+    }
+
+    private void releaseParts()
+    {
+        for (RetainableByteBuffer part : m_parts)
+            part.release();
+        m_parts.clear();
+        m_partsBytes = 0;
+    }
+
+    private void handleParts()
+    {
+        if (m_compositeListener == null)
+        {
+            /* Listener was replaced in the middle of the message. */
+            final RetainableByteBuffer msg = m_pool.alloc( m_partsBytes );
+            for (RetainableByteBuffer part : m_parts)
+                msg.put( part );
+            releaseParts();
+            msg.flip();
+            m_listener.onDataReceived( msg );
+            msg.release();
+            return;
+        }
+
+        final RetainableByteBuffer [] parts = m_parts.toArray( new RetainableByteBuffer[m_parts.size()] );
+        final CompositeByteBuffer msg = new CompositeByteBuffer( parts );
+        releaseParts();
+        m_compositeListener.onDataReceived( msg );
+        msg.release();
+    }
+
+    public FrameListener(
+            Session session, int headerSize, FrameDecoder decoder, int frameMaxSize,
+            RetainableByteBufferPool pool, int compositeMinSize )
+    {
+        m_session = session;
+        m_headerSize = headerSize;
+        m_decoder = decoder;
+        m_frameMaxSize = frameMaxSize;
+        m_pool = pool;
+        m_compositeMinSize = compositeMinSize;
+        m_header = ByteBuffer.allocate( headerSize );
+        m_parts = new ArrayList<RetainableByteBuffer>();
+    }
+
+    public final Session.Listener replaceListener( Session.Listener listener )
+    {
+        /* Shared memory IPC negotiation listener expects raw data. */
+        final Session.Listener ret = m_listener;
+        m_listener = listener;
+        m_compositeListener =
+                (listener instanceof Session.CompositeListener) ? (Session.CompositeListener) listener : null;
+        m_bypass = (listener instanceof ShMemNegotiator);
+        return ret;
+    }
+
+    public void onDataReceived( RetainableByteBuffer data )
+    {
+        if (m_bypass)
+        {
+            m_listener.onDataReceived( data );
+            return;
+        }
+
+        if (m_invalid)
+            return;
+
+        final ByteBuffer buf = data.getNioByteBuffer();
+        final int limit = buf.limit();
+
+        if (m_buf != null)
+        {
+            /* Continue the message split between data blocks. */
+            final int bytes = Math.min( m_frameLength - m_buf.position(), buf.remaining() );
+            copyData( m_buf.getNioByteBuffer(), buf, bytes );
+            if (m_buf.position() < m_frameLength)
+                return;
+
+            final RetainableByteBuffer msg = m_buf;
+            m_buf = null;
+            msg.flip();
+            m_listener.onDataReceived( msg );
+            msg.release();
+        }
+        else if (m_partsBytes > 0)
+        {
+            /* Continue the message delivered as a composite buffer. */
+            final int bytes = Math.min( m_frameLength - m_partsBytes, buf.remaining() );
+            addPart( data, buf, bytes );
+            if (m_partsBytes < m_frameLength)
+                return;
+            handleParts();
+        }
+        else if (m_header.position() > 0)
+        {
+            final int bytes = Math.min( m_headerSize - m_header.position(), buf.remaining() );
+            copyData( m_header, buf, bytes );
+            if (m_header.position() < m_headerSize)
+                return;
+
+            m_header.flip();
+            m_frameLength = getFrameLength( m_header );
+            if (m_frameLength < 0)
+                return;
+
+            final int dataBytes = Math.min( m_frameLength - m_headerSize, buf.remaining() );
+            if ((m_compositeListener != null) && (m_frameLength > m_compositeMinSize))
+            {
+                final RetainableByteBuffer header = m_pool.alloc( m_headerSize );
+                header.put( m_header );
+                header.flip();
+                m_header.clear();
+                m_parts.add( header );
+                m_partsBytes = m_headerSize;
+
+                if (dataBytes > 0)
+                    addPart( data, buf, dataBytes );
+                if (m_partsBytes < m_frameLength)
+                    return;
+                handleParts();
+            }
+            else
+            {
+                m_buf = m_pool.alloc( m_frameLength );
+                m_buf.put( m_header );
+                m_header.clear();
+
+                copyData( m_buf.getNioByteBuffer(), buf, dataBytes );
+                if (m_buf.position() < m_frameLength)
+                    return;
+
+                final RetainableByteBuffer msg = m_buf;
+                m_buf = null;
+                msg.flip();
+                m_listener.onDataReceived( msg );
+                msg.release();
+            }
+        }
+
+        int pos = buf.position();
+        for (;;)
+        {
+            final int bytesRemaining = (limit - pos);
+            if (bytesRemaining == 0)
+                break;
+
+            buf.limit( limit );
+            buf.position( pos );
+
+            if (bytesRemaining < m_headerSize)
+            {
+                m_header.put( buf );
+                break;
+            }
+
+            final int frameLength = getFrameLength( buf );
+            if (frameLength < 0)
+                break;
+
+            if (bytesRemaining < frameLength)
+            {
+                if ((m_compositeListener != null) && (frameLength > m_compositeMinSize))
+                    addPart( data, buf, bytesRemaining );
+                else
+                {
+                    m_buf = m_pool.alloc( frameLength );
+                    m_buf.put( buf );
+                }
+                m_frameLength = frameLength;
+                break;
+            }
+
+            buf.limit( pos + frameLength );
+            m_listener.onDataReceived( data );
+            pos += frameLength;
+        }
+    }
+
+    public void onConnectionClosed()
+    {
+        if (m_buf != null)
+        {
+            m_buf.release();
+            m_buf = null;
+        }
+        releaseParts();
+        m_listener.onConnectionClosed();
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-Collider framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.collider;
+
+import java.util.ArrayList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+class LocalAcceptorImpl extends SessionEmitterImpl
+{
+    private static final Logger s_logger = Logger.getLogger( "org.jsl.collider.Acceptor" );
+
+    private final Acceptor m_acceptor;
+    private final LocalSocketAddress m_localAddr;
+    private final ReentrantLock m_lock;
+    private final Condition m_cond;
+    private final ArrayList<Thread> m_callbackThreads;
+    private boolean m_stop;
+    private int m_sessions;
+
+    private class Starter extends ThreadPool.Runnable
+    {
+        public void runInThreadPool()
+        {
+            final Thread currentThread = Thread.currentThread();
+            m_lock.lock();
+            try
+            {
+                if (m_stop)
+                    return;
+                m_callbackThreads.add( currentThread );
+            }
+            finally
+            {
+                m_lock.unlock();
+            }
+
+            m_acceptor.onAcceptorStarted( m_collider, 0 );
+            removeThreadAndReleaseMonitor( currentThread );
+        }
+    }
+
+    public LocalAcceptorImpl(
+            ColliderImpl collider,
+            RetainableDataBlockCache inputQueueDataBlockCache,
+            Acceptor acceptor,
+            int joinMessageMaxSize,
+            RetainableByteBufferPool joinPool )
+    {
+        super( collider, inputQueueDataBlockCache, acceptor, joinMessageMaxSize, joinPool );
+        m_acceptor = acceptor;
+        m_localAddr = (LocalSocketAddress) acceptor.getSocketAddress();
+        m_lock = new ReentrantLock();
+        m_cond = m_lock.newCondition();
+        m_callbackThreads = new ArrayList<Thread>();
+    }
+
+    public final LocalSocketAddress getLocalAddress()
+    {
+        return m_localAddr;
+    }
+
+    public void start()
+    {
+        if (s_logger.isLoggable(Level.FINE))
+            s_logger.fine( m_localAddr.toString() );
+        m_collider.executeInThreadPool( new Starter() );
+    }
+
+    /**
+     * Creates a pair of linked sessions and starts the acceptor side one.
+     * Returns a connector side session, or null if the acceptor is stopped.
+     */
+    public LocalSessionImpl connect()
+    {
+        final Thread currentThread = Thread.currentThread();
+        final int sessionId;
+
+        m_lock.lock();
+        try
+        {
+            if (m_stop)
+                return null;
+            sessionId = ++m_sessions;
+            m_callbackThreads.add( currentThread );
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        final LocalSocketAddress remoteAddr = new LocalSocketAddress( m_localAddr.getName() + "#" + sessionId );
+        final LocalSessionImpl session = new LocalSessionImpl( m_collider, m_localAddr, remoteAddr );
+        final LocalSessionImpl peerSession = new LocalSessionImpl( m_collider, remoteAddr, m_localAddr );
+        LocalSessionImpl.link( session, peerSession );
+
+        if (!m_collider.addLocalSessions(session, peerSession))
+        {
+            removeThreadAndReleaseMonitor( currentThread );
+            return null;
+        }
+
+        final Session.Listener sessionListener = m_acceptor.createSessionListener( session );
+        removeThreadAndReleaseMonitor( currentThread );
+        session.start( sessionListener, createFrameListener(session) );
+        return peerSession;
+    }
+
+    protected void addThread( Thread thread )
+    {
+        m_lock.lock();
+        try
+        {
+            assert( !m_callbackThreads.contains(thread) );
+            m_callbackThreads.add( thread );
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    protected void removeThreadAndReleaseMonitor( Thread thread )
+    {
+        m_lock.lock();
+        try
+        {
+            m_callbackThreads.remove( thread );
+            if (m_stop)
+                m_cond.signalAll();
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    protected void logException( Exception ex )
+    {
+        if (s_logger.isLoggable(Level.WARNING))
+            s_logger.warning( m_localAddr + ": " + ex.toString() );
+    }
+
+    public void stopAndWait() throws InterruptedException
+    {
+        final Thread currentThread = Thread.currentThread();
+        m_collider.removeLocalAcceptor( this );
+
+        m_lock.lock();
+        try
+        {
+            if (s_logger.isLoggable(Level.FINE))
+                s_logger.fine( m_localAddr + ": stop=" + m_stop + " callbacks=" + m_callbackThreads.size() );
+
+            m_stop = true;
+
+            /* Stop could be called from the acceptor callback. */
+            final int threads = (m_callbackThreads.contains(currentThread) ? 1 : 0);
+            while (m_callbackThreads.size() > threads)
+                m_cond.await();
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        m_collider.removeEmitterNoWait( m_acceptor );
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-Collider framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.collider;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+class LocalConnectorImpl extends SessionEmitterImpl
+{
+    private static final Logger s_logger = Logger.getLogger( Connector.class.getName() );
+
+    private final Connector m_connector;
+    private final ReentrantLock m_lock;
+    private final Condition m_cond;
+    private Thread m_callbackThread;
+    private int m_state;
+
+    private final static int STARTING = 0;
+    private final static int RUNNING  = 1;
+    private final static int STOPPED  = 2;
+
+    private class Starter extends ThreadPool.Runnable
+    {
+        public void runInThreadPool()
+        {
+            m_lock.lock();
+            try
+            {
+                if (m_state != STARTING)
+                    return;
+                m_state = RUNNING;
+            }
+            finally
+            {
+                m_lock.unlock();
+            }
+
+            final SocketAddress addr = m_connector.getSocketAddress();
+            final LocalAcceptorImpl acceptorImpl = m_collider.getLocalAcceptor( (LocalSocketAddress) addr );
+            final LocalSessionImpl session = ((acceptorImpl == null) ? null : acceptorImpl.connect());
+
+            if (session == null)
+            {
+                final Thread currentThread = Thread.currentThread();
+                addThread( currentThread );
+                m_connector.onException( new IOException(addr + ": connection refused.") );
+                removeThreadAndReleaseMonitor( currentThread );
+            }
+            else
+                session.start( createSessionListener(session), createFrameListener(session) );
+        }
+    }
+
+    public LocalConnectorImpl(
+            ColliderImpl collider,
+            RetainableDataBlockCache inputQueueDataBlockCache,
+            Connector connector,
+            int joinMessageMaxSize,
+            RetainableByteBufferPool joinPool )
+    {
+        super( collider, inputQueueDataBlockCache, connector, joinMessageMaxSize, joinPool );
+        m_connector = connector;
+        m_lock = new ReentrantLock();
+        m_cond = m_lock.newCondition();
+        m_state = STARTING;
+    }
+
+    public void start()
+    {
+        if (s_logger.isLoggable(Level.FINE))
+            s_logger.fine( m_connector.getSocketAddress().toString() );
+        m_collider.executeInThreadPool( new Starter() );
+    }
+
+    protected void addThread( Thread thread )
+    {
+        m_lock.lock();
+        try
+        {
+            assert( m_callbackThread == null );
+            m_callbackThread = thread;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    protected void removeThreadAndReleaseMonitor( Thread thread )
+    {
+        m_lock.lock();
+        try
+        {
+            assert( m_callbackThread == thread );
+            m_callbackThread = null;
+            m_state = STOPPED;
+            m_cond.signalAll();
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        m_collider.removeEmitterNoWait( m_connector );
+    }
+
+    protected void logException( Exception ex )
+    {
+        if (s_logger.isLoggable(Level.WARNING))
+            s_logger.warning( m_connector.getSocketAddress() + ": " + ex.toString() );
+    }
+
+    public void stopAndWait() throws InterruptedException
+    {
+        m_lock.lock();
+        try
+        {
+            if (s_logger.isLoggable(Level.FINE))
+                s_logger.fine( m_connector.getSocketAddress() + ": state=" + m_state );
+
+            if (m_state == STARTING)
+            {
+                /* Starter will do nothing. */
+                m_state = STOPPED;
+            }
+            else if (m_callbackThread != Thread.currentThread())
+            {
+                while (m_state != STOPPED)
+                    m_cond.await();
+            }
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        m_collider.removeEmitterNoWait( m_connector );
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-Collider framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.collider;
+
+import java.net.SocketAddress;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Session of the in-process transport.
+ * Data sent by the session is put directly to the input queue of the peer,
+ * the queue is processed in the thread pool, so the Session.Listener
+ * contract is the same as for the socket sessions.
+ */
+
+class LocalSessionImpl implements Session
+{
+    private static final Logger s_logger = Logger.getLogger( "org.jsl.collider.Session" );
+
+    private static final AtomicReferenceFieldUpdater<LocalSessionImpl, Node> s_tailUpdater =
+            AtomicReferenceFieldUpdater.newUpdater( LocalSessionImpl.class, Node.class, "m_tail" );
+
+    private static final AtomicIntegerFieldUpdater<LocalSessionImpl> s_pendingUpdater =
+            AtomicIntegerFieldUpdater.newUpdater( LocalSessionImpl.class, "m_pending" );
+
+    /* m_pending keeps a number of nodes in the input queue
+     * and a delivery suspension state, the deliverer is running
+     * while there are nodes and it is not PAUSED.
+     */
+    private static final int COUNT_MASK = 0x1FFFFFFF;
+    private static final int PAUSED     = 0x20000000;
+    private static final int SUSPENDED  = 0x40000000;
+
+    private static class Node
+    {
+        public volatile Node next;
+        public final RetainableByteBuffer buf;
+
+        public Node( RetainableByteBuffer buf )
+        {
+            this.buf = buf;
+        }
+    }
+
+    private static class WrappedByteBuffer extends RetainableByteBufferImpl
+    {
+        public WrappedByteBuffer( ByteBuffer buf )
+        {
+            super( buf );
+        }
+
+        protected void finalRelease()
+        {
+            /* Buffer belongs to the user. */
+        }
+    }
+
+    private class Deliverer extends ThreadPool.Runnable
+    {
+        public void runInThreadPool()
+        {
+            int pending = m_pending;
+            for (;;)
+            {
+                if ((pending & SUSPENDED) != 0)
+                {
+                    if (s_pendingUpdater.compareAndSet(LocalSessionImpl.this, pending, pending|PAUSED))
+                        break;
+                    pending = m_pending;
+                    continue;
+                }
+
+                final int count = (pending & COUNT_MASK);
+                for (int idx=0; idx<count; idx++)
+                {
+                    final Node node = m_head.next;
+                    m_head = node;
+                    deliver( node.buf );
+                }
+
+                pending = s_pendingUpdater.addAndGet( LocalSessionImpl.this, -count );
+                if (pending == 0)
+                    break;
+            }
+        }
+    }
+
+    private final ColliderImpl m_collider;
+    private final SocketAddress m_localAddr;
+    private final SocketAddress m_remoteAddr;
+    private final Deliverer m_deliverer;
+    private LocalSessionImpl m_peer;
+    private AtomicBoolean m_closed;
+    private Listener m_listener;
+    private FrameListener m_frameListener;
+    private boolean m_closeReceived;
+    private volatile boolean m_inputClosed;
+    private Node m_head;
+    private volatile Node m_tail;
+    private volatile int m_pending;
+
+    private void deliver( RetainableByteBuffer buf )
+    {
+        if (buf == null)
+        {
+            /* Close marker, any data after it is dropped. */
+            if (!m_closeReceived)
+            {
+                m_closeReceived = true;
+                if (m_listener != null)
+                    m_listener.onConnectionClosed();
+                m_collider.removeLocalSession( this );
+            }
+        }
+        else
+        {
+            if (!m_closeReceived && !m_inputClosed && (m_listener != null))
+                m_listener.onDataReceived( buf );
+            buf.release();
+        }
+    }
+
+    private void enqueue( RetainableByteBuffer buf )
+    {
+        final Node node = new Node( buf );
+        final Node tail = s_tailUpdater.getAndSet( this, node );
+        tail.next = node;
+        if (s_pendingUpdater.getAndIncrement(this) == 0)
+            m_collider.executeInThreadPool( m_deliverer );
+    }
+
+    private void enqueue( Node first, Node last, int count )
+    {
+        /* Nodes are linked already, the chain is added at once. */
+        final Node tail = s_tailUpdater.getAndSet( this, last );
+        tail.next = first;
+        if (s_pendingUpdater.getAndAdd(this, count) == 0)
+            m_collider.executeInThreadPool( m_deliverer );
+    }
+
+    public LocalSessionImpl( ColliderImpl collider, SocketAddress localAddr, SocketAddress remoteAddr )
+    {
+        m_collider = collider;
+        m_localAddr = localAddr;
+        m_remoteAddr = remoteAddr;
+        m_deliverer = new Deliverer();
+        m_head = new Node( null );
+        m_tail = m_head;
+        /* Data will not be delivered till start() */
+        m_pending = 1;
+    }
+
+    public static void link( LocalSessionImpl session1, LocalSessionImpl session2 )
+    {
+        final AtomicBoolean closed = new AtomicBoolean( false );
+        session1.m_peer = session2;
+        session1.m_closed = closed;
+        session2.m_peer = session1;
+        session2.m_closed = closed;
+    }
+
+    public void start( Listener listener, FrameListener frameListener )
+    {
+        if ((listener != null) && (frameListener != null))
+        {
+            frameListener.replaceListener( listener );
+            m_frameListener = frameListener;
+            listener = frameListener;
+        }
+
+        m_listener = listener;
+        if (listener == null)
+        {
+            if (s_logger.isLoggable(Level.FINE))
+                s_logger.fine( m_localAddr + " -> " + m_remoteAddr + ": null listener, closing session." );
+            closeConnection();
+        }
+
+        if (s_pendingUpdater.decrementAndGet(this) > 0)
+            m_collider.executeInThreadPool( m_deliverer );
+    }
+
+    public Collider getCollider()
+    {
+        return m_collider;
+    }
+
+    public SocketAddress getLocalAddress()
+    {
+        return m_localAddr;
+    }
+
+    public SocketAddress getRemoteAddress()
+    {
+        return m_remoteAddr;
+    }
+
+    public int sendData( ByteBuffer data )
+    {
+        assert( data.remaining() > 0 );
+        if (m_closed.get())
+            return -1;
+        m_peer.enqueue( new WrappedByteBuffer(data.duplicate()) );
+        return 1;
+    }
+
+    public int sendData( RetainableByteBuffer data )
+    {
+        assert( data.remaining() > 0 );
+        if (m_closed.get())
+            return -1;
+        m_peer.enqueue( data.duplicate() );
+        return 1;
+    }
+
+    public int sendData( CompositeByteBuffer data )
+    {
+        /* Peer receives the parts one by one, like the chunks of a stream. */
+        assert( data.remaining() > 0 );
+        if (m_closed.get())
+            return -1;
+
+        final ByteBuffer [] bufs = data.getNioByteBuffers();
+        final RetainableByteBuffer [] parts = data.getParts();
+        Node first = null;
+        Node last = null;
+        for (int idx=0; idx<bufs.length; idx++)
+        {
+            final RetainableByteBuffer part = parts[idx].duplicate();
+            part.limit( bufs[idx].limit() );
+            part.position( bufs[idx].position() );
+            final Node node = new Node( part );
+            if (first == null)
+                first = node;
+            else
+                last.next = node;
+            last = node;
+        }
+        m_peer.enqueue( first, last, bufs.length );
+        return 1;
+    }
+
+    public int sendData( ByteBuffer data, int lane )
+    {
+        /* Data is delivered to the peer immediately, lanes make no sense. */
+        return sendData( data );
+    }
+
+    public int sendData( RetainableByteBuffer data, int lane )
+    {
+        return sendData( data );
+    }
+
+    public int sendConflated( Object key, ByteBuffer data )
+    {
+        /* Nothing waits in the queue to be replaced. */
+        return sendData( data );
+    }
+
+    public int sendConflated( Object key, RetainableByteBuffer data )
+    {
+        return sendData( data );
+    }
+
+    public RetainableByteBuffer reserve( int size )
+    {
+        /* Peer receives the buffer itself, nothing to copy. */
+        return new WrappedByteBuffer( ByteBuffer.allocate(size) );
+    }
+
+    public int commit( RetainableByteBuffer data )
+    {
+        data.flip();
+        int rc = 0;
+        if (data.remaining() > 0)
+            rc = sendData( data );
+        data.release();
+        return rc;
+    }
+
+    public int sendFile( FileChannel fileChannel, long position, long count )
+    {
+        /* Peer gets the mapped file region. */
+        assert( count > 0 );
+        int rc = -1;
+        try
+        {
+            while (count > 0)
+            {
+                final int bytes = (int) Math.min( count, Integer.MAX_VALUE );
+                rc = sendData( fileChannel.map(FileChannel.MapMode.READ_ONLY, position, bytes) );
+                if (rc < 0)
+                    break;
+                position += bytes;
+                count -= bytes;
+            }
+        }
+        catch (final IOException ex)
+        {
+            if (s_logger.isLoggable(Level.WARNING))
+                s_logger.warning( m_localAddr + " -> " + m_remoteAddr + ": " + ex.toString() );
+        }
+        return rc;
+    }
+
+    public int sendDataSync( ByteBuffer data )
+    {
+        /* There is no socket to write to, data is always retained. */
+        return sendData( data );
+    }
+
+    public void suspendRead()
+    {
+        for (;;)
+        {
+            final int pending = m_pending;
+            if ((pending & SUSPENDED) != 0)
+                break;
+
+            int newPending = (pending | SUSPENDED);
+            if ((pending & COUNT_MASK) == 0)
+                newPending |= PAUSED;
+
+            if (s_pendingUpdater.compareAndSet(this, pending, newPending))
+                break;
+        }
+    }
+
+    public void resumeRead()
+    {
+        for (;;)
+        {
+            final int pending = m_pending;
+            if ((pending & SUSPENDED) == 0)
+                break;
+
+            final int newPending = (pending & COUNT_MASK);
+            if (s_pendingUpdater.compareAndSet(this, pending, newPending))
+            {
+                if (((pending & PAUSED) != 0) && (newPending > 0))
+                    m_collider.executeInThreadPool( m_deliverer );
+                break;
+            }
+        }
+    }
+
+    public void cork()
+    {
+        /* Data is delivered to the peer directly, nothing to batch. */
+    }
+
+    public void uncork()
+    {
+    }
+
+    public int closeConnection()
+    {
+        /* Same as a socket session stops reading the socket:
+         * data not delivered yet is dropped, close should be delivered
+         * even if the session is suspended.
+         */
+        m_inputClosed = true;
+        resumeRead();
+
+        if (!m_closed.compareAndSet(false, true))
+            return -1;
+
+        if (s_logger.isLoggable(Level.FINE))
+            s_logger.fine( m_localAddr + " -> " + m_remoteAddr );
+
+        m_peer.enqueue( null );
+        enqueue( null );
+        return 0;
+    }
+
+    public Listener replaceListener( Listener newListener )
+    {
+        if (m_frameListener != null)
+            return m_frameListener.replaceListener( newListener );
+
+        final Listener listener = m_listener;
+        m_listener = newListener;
+        return listener;
+    }
+
+    public int accelerate( ShMem shMem, ByteBuffer message )
+    {
+        /* Nothing to accelerate. */
+        return -1;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-Collider framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.collider;
+
+import java.net.SocketAddress;
+
+/**
+ * Address of the in-process transport. An <tt>Acceptor</tt> created with
+ * such address does not open any socket, a <tt>Connector</tt> with the same
+ * address registered in the same <tt>Collider</tt> instance will be linked
+ * with it directly, data is passed between sessions without copying.
+ */
+public final class LocalSocketAddress extends SocketAddress
+{
+    private static final long serialVersionUID = 1L;
+
+    private final String m_name;
+
+    public LocalSocketAddress( String name )
+    {
+        if (name == null)
+            throw new NullPointerException();
+        m_name = name;
+    }
+
+    public String getName()
+    {
+        return m_name;
+    }
+
+    public boolean equals( Object obj )
+    {
+        return (obj instanceof LocalSocketAddress) && m_name.equals( ((LocalSocketAddress)obj).m_name );
+    }
+
+    public int hashCode()
+    {
+        return m_name.hashCode();
+    }
+
+    public String toString()
+    {
+        return "local:" + m_name;
+    }
+}
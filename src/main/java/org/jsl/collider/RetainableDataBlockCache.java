@@ -100,6 +100,19 @@ public class RetainableDataBlockCache
         return m_blockSize;
     }
 
+    public final int getBlocksInUse()
+    {
+        m_lock.lock();
+        try
+        {
+            return (m_gets - m_puts);
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
     public final RetainableDataBlock get( int cnt )
     {
         assert( cnt >= 0 );
@@ -21,6 +21,7 @@ package org.jsl.collider;
 
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 public interface Session
 {
@@ -41,6 +42,18 @@ public interface Session
         public abstract void onConnectionClosed();
     }
 
+    /**
+     * Listener receiving the messages larger than the input queue block
+     * as a <tt>CompositeByteBuffer</tt> referencing the data blocks
+     * instead of a copy, used only if the framing is enabled
+     * (see <tt>SessionEmitter.frameDecoder</tt>).
+     * Other messages are delivered to <em>onDataReceived(RetainableByteBuffer)</em>.
+     */
+    public interface CompositeListener extends Listener
+    {
+        public abstract void onDataReceived( CompositeByteBuffer data );
+    }
+
     /**
      * Returns Collider instance the session is linked with.
      */
@@ -68,6 +81,46 @@ public interface Session
     public int sendData( ByteBuffer data );
     public int sendData( RetainableByteBuffer data );
 
+    /**
+     * Schedules all parts of the composite buffer to be sent at once,
+     * the data of other <em>sendData</em> calls does not get in between.
+     * Parts are written with a gathering write without copying.
+     * @return same as <em>sendData</em>
+     */
+    public int sendData( CompositeByteBuffer data );
+
+    /**
+     * Number of the send priority lanes, lane 0 is the one
+     * used by the <em>sendData</em> without a lane argument.
+     */
+    public static final int SEND_LANES = 4;
+
+    /**
+     * Schedules data to be sent in the priority lane (0 to SEND_LANES-1).
+     * Data of the higher lane is written before the data of the lower lanes
+     * scheduled but not started to be written yet, lanes are switched
+     * only at the message boundary, so a message is never split.
+     * Order of the messages is kept only within a lane.
+     * Shared memory IPC and in-process sessions send everything in lane 0.
+     * @return same as <em>sendData</em>
+     */
+    public int sendData( ByteBuffer data, int lane );
+    public int sendData( RetainableByteBuffer data, int lane );
+
+    /**
+     * Schedules data to be sent with conflation: if the data scheduled
+     * by a previous call with an equal key was not started to be written yet,
+     * it is replaced with the new one keeping its place in the queue,
+     * the replaced data is released (retained byte buffer) or just dropped.
+     * Useful when only the latest value per key is needed by a slow peer,
+     * the amount of data waiting in the queue is bounded then by the number of keys.
+     * Keys should implement <tt>equals()</tt> and <tt>hashCode()</tt>.
+     * Shared memory IPC and in-process sessions send all the data.
+     * @return same as <em>sendData</em>
+     */
+    public int sendConflated( Object key, ByteBuffer data );
+    public int sendConflated( Object key, RetainableByteBuffer data );
+
     /**
      * Method makes an attempt to write data synchronously to the underlying socket channel.
      * It can happen if it is the single thread calling the <em>sendData</em> or <em>sendDataSync</em>.
@@ -78,6 +131,32 @@ public interface Session
      */
     public int sendDataSync( ByteBuffer data );
 
+    /**
+     * Returns a buffer of <em>size</em> bytes taken from the framework pool,
+     * the message can be encoded directly into it and sent
+     * with <em>commit</em>, so it is not copied by the framework.
+     * Can be called from any thread, each call returns a new buffer.
+     */
+    public RetainableByteBuffer reserve( int size );
+
+    /**
+     * Schedules the data written to the buffer returned by <em>reserve</em>
+     * (from the beginning up to the current position) to be sent.
+     * The buffer is released and should not be used after the call.
+     * @return same as <em>sendData</em>
+     */
+    public int commit( RetainableByteBuffer data );
+
+    /**
+     * Schedules <em>count</em> bytes of the file starting from the <em>position</em>
+     * to be sent to the underlying socket channel with <tt>FileChannel.transferTo()</tt>,
+     * so the data is not copied to the user space. Order with the data scheduled
+     * by <em>sendData</em> calls is kept. File channel should not be closed
+     * until the session is closed or all the data sent.
+     * @return same as <em>sendData</em>
+     */
+    public int sendFile( FileChannel fileChannel, long position, long count );
+
     /**
      * Method to be used to close the session.
      * Works asynchronously so connection will not be closed immediately
@@ -92,6 +171,38 @@ public interface Session
      */
     public int closeConnection();
 
+    /**
+     * Suspends reading from the underlying socket channel, so the TCP
+     * flow control will push back on the peer. Data already read
+     * from the socket will still be delivered to the listener.
+     * Can be called from any thread (including <tt>createSessionListener()</tt>),
+     * repeated calls have the same effect as a single one.
+     * Suspension is ignored after <em>closeConnection</em> call.
+     */
+    public void suspendRead();
+
+    /**
+     * Resumes reading suspended by <em>suspendRead</em>.
+     * Can be called from any thread.
+     */
+    public void resumeRead();
+
+    /**
+     * Holds the data sent after the call in the session queue
+     * until <em>uncork</em> is called, so the data sent by several
+     * <em>sendData</em> calls is written to the socket at once.
+     * Does not stop the data already being written.
+     * <em>closeConnection</em> does not drop the data kept in the queue,
+     * it is written before the socket is closed.
+     * Has no effect for the in-process sessions.
+     */
+    public void cork();
+
+    /**
+     * Releases the data held by <em>cork</em>.
+     */
+    public void uncork();
+
     /**
      * Replaces the current session listener with a new one.
      * Supposed to be called only from the <tt>onDataReceived()</tt> callback.
@@ -19,12 +19,14 @@
 
 package org.jsl.collider;
 
+import java.io.File;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 
 
 public abstract class SessionEmitter
 {
-    private final InetSocketAddress m_addr;
+    private final SocketAddress m_addr;
 
     public boolean reuseAddr;
     public boolean tcpNoDelay;
@@ -36,7 +38,93 @@ public abstract class SessionEmitter
 
     public int joinMessageMaxSize;
 
+    /* Both sides of the connection are supposed to use the same value,
+     * the connector sends a shared memory IPC request right after
+     * the connection is established and the acceptor expects it
+     * to be the first message of the session. Sessions between
+     * different hosts stay on TCP.
+     */
+    public boolean useShMem;
+    public int shMemBlockSize;
+
+    /* If frameDecoder is set the session input stream is split
+     * into messages by the framework, the session listener receives
+     * exactly one message per onDataReceived() call.
+     * Messages are delivered without copying unless a message
+     * is split between two input queue blocks.
+     * Session receiving a frame header with the length greater
+     * than frameMaxSize is closed, 0 means no limit.
+     */
+    public int frameHeaderSize;
+    public FrameDecoder frameDecoder;
+    public int frameMaxSize;
+
+    /* Options below control the socket I/O of the session,
+     * shared memory IPC and in-process sessions ignore them.
+     */
+
+    /* Outbound rate limit of each session in bytes per second,
+     * 0 means no limit. The writer defers the write when the
+     * tokens are exhausted and resumes by timer.
+     * Burst size 0 means 1/10 of the rate.
+     */
+    public int sendRateLimit;
+    public int sendBurstSize;
+
+    /* Write coalescing: if writeCoalesceDelay (microseconds) is set
+     * the writer waits up to the delay for more messages
+     * unless there are writeCoalesceSize bytes ready to be sent
+     * (socket send buffer size by default), so more messages
+     * are sent with one system call. Disabled by default.
+     * While waiting the writer re-runs itself in the thread pool,
+     * so a waiting session keeps one worker thread busy up to the delay,
+     * use it with short delays and a thread pool having spare threads.
+     */
+    public int writeCoalesceDelay;
+    public int writeCoalesceSize;
+
+    /* Inbound quota of each session: rate in bytes per second
+     * (burst size 0 means 1/10 of the rate) and maximum bytes
+     * read at once, 0 means no limit. A session exceeding the rate
+     * stops reading until the quota is refilled, a session reading
+     * more than the round size yields to other sessions after each read.
+     */
+    public int readRateLimit;
+    public int readBurstSize;
+    public int readRoundMaxSize;
+
+    /* Spill to disk: when more than spillThreshold bytes are waiting
+     * to be sent by the session in memory, further data is copied
+     * to a temporary file in the spillDirectory (default temporary
+     * directory if null) and sent from it as the socket drains,
+     * so a slow peer does not consume the memory. 0 means disabled.
+     */
+    public int spillThreshold;
+    public File spillDirectory;
+
+    /* Inline read: the selector thread reads the socket itself
+     * and calls onDataReceived() if not more than inlineReadMaxSize
+     * bytes were received, larger data is handled in the thread pool.
+     * Saves a thread switch per message, but the listener blocks
+     * all other sessions of the collider meanwhile, so the session
+     * switches to the thread pool for good if the listener
+     * takes more than inlineReadMaxTime microseconds in most of the calls.
+     * 0 means disabled.
+     */
+    public int inlineReadMaxSize;
+    public int inlineReadMaxTime;
+
     public SessionEmitter( InetSocketAddress addr )
+    {
+        this( (SocketAddress) addr );
+    }
+
+    /**
+     * Address can be an <tt>InetSocketAddress</tt>, an unix domain
+     * socket address (see <tt>Collider.createUnixSocketAddress</tt>)
+     * or a <tt>LocalSocketAddress</tt> for the in-process transport.
+     */
+    public SessionEmitter( SocketAddress addr )
     {
         m_addr = addr;
 
@@ -53,9 +141,41 @@ public abstract class SessionEmitter
          *  0 - disable message join,
          */
         joinMessageMaxSize = -1;
+
+        useShMem = false;
+        shMemBlockSize = (64 * 1024);
+
+        frameHeaderSize = 0;
+        frameDecoder = null;
+        frameMaxSize = (16 * 1024 * 1024);
+
+        sendRateLimit = 0;
+        sendBurstSize = 0;
+
+        writeCoalesceDelay = 0;
+        writeCoalesceSize = 0;
+
+        readRateLimit = 0;
+        readBurstSize = 0;
+        readRoundMaxSize = 0;
+
+        spillThreshold = 0;
+        spillDirectory = null;
+
+        inlineReadMaxSize = 0;
+        inlineReadMaxTime = 100;
     }
 
+    /**
+     * Returns the emitter address,
+     * or null if it is not an <tt>InetSocketAddress</tt>.
+     */
     public InetSocketAddress getAddr()
+    {
+        return (m_addr instanceof InetSocketAddress) ? (InetSocketAddress) m_addr : null;
+    }
+
+    public SocketAddress getSocketAddress()
     {
         return m_addr;
     }
@@ -19,10 +19,14 @@
 
 package org.jsl.collider;
 
+import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.StandardSocketOptions;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 abstract class SessionEmitterImpl
 {
@@ -32,6 +36,15 @@ abstract class SessionEmitterImpl
     private final int m_joinMessageMaxSize;
     private final RetainableByteBufferPool m_joinPool;
     private final int m_forwardReadMaxSize;
+    private final boolean m_unixSocket;
+    private final RetainableByteBufferPool m_framePool;
+
+    /* Sessions running the shared memory IPC negotiation,
+     * each keeps the emitter monitor until the negotiation is done,
+     * so they are closed when the emitter is being stopped.
+     */
+    private final ConcurrentHashMap<ShMemNegotiator, Boolean> m_negotiators;
+    private volatile boolean m_stopNegotiations;
 
     protected SessionEmitterImpl(
             ColliderImpl collider,
@@ -50,6 +63,40 @@ abstract class SessionEmitterImpl
                 ((sessionEmitter.forwardReadMaxSize == 0)
                         ? collider.getConfig().forwardReadMaxSize
                         : sessionEmitter.forwardReadMaxSize);
+
+        final int forwardReadMaxSizeLimit =
+                SocketChannelReader.getForwardReadMaxSizeLimit( inputQueueDataBlockCache.getBlockSize() );
+        if ((m_forwardReadMaxSize <= 0) || (m_forwardReadMaxSize > forwardReadMaxSizeLimit))
+        {
+            throw new IllegalArgumentException(
+                    "SessionEmitter.forwardReadMaxSize " + m_forwardReadMaxSize +
+                    " should be in range (0, " + forwardReadMaxSizeLimit + "]." );
+        }
+
+        m_unixSocket = UnixDomainSocket.isUnixAddress( sessionEmitter.getSocketAddress() );
+
+        if (sessionEmitter.frameDecoder == null)
+            m_framePool = null;
+        else
+        {
+            if (sessionEmitter.frameHeaderSize <= 0)
+                throw new IllegalArgumentException( "SessionEmitter.frameHeaderSize should be positive." );
+            if (sessionEmitter.frameMaxSize < 0)
+                throw new IllegalArgumentException( "SessionEmitter.frameMaxSize should not be negative." );
+            m_framePool = collider.getFramePool();
+        }
+
+        m_negotiators = (sessionEmitter.useShMem ? new ConcurrentHashMap<ShMemNegotiator, Boolean>() : null);
+        m_stopNegotiations = false;
+    }
+
+    protected final FrameListener createFrameListener( Session session )
+    {
+        if (m_framePool == null)
+            return null;
+        return new FrameListener(
+                session, m_sessionEmitter.frameHeaderSize, m_sessionEmitter.frameDecoder,
+                m_sessionEmitter.frameMaxSize, m_framePool, m_inputQueueDataBlockCache.getBlockSize() );
     }
 
     protected final void startSession( SocketChannel socketChannel, SelectionKey selectionKey )
@@ -57,22 +104,121 @@ abstract class SessionEmitterImpl
         final int socketSendBufferSize = configureSocketChannel( socketChannel );
 
         final SessionImpl sessionImpl = new SessionImpl(
-                m_collider, socketChannel, selectionKey, socketSendBufferSize, m_joinMessageMaxSize, m_joinPool );
+                m_collider, socketChannel, selectionKey, socketSendBufferSize,
+                m_joinMessageMaxSize, m_joinPool, m_sessionEmitter, getSessionCounter() );
 
-        final Thread currentThread = Thread.currentThread();
-        addThread( currentThread );
-        final Session.Listener sessionListener = m_sessionEmitter.createSessionListener( sessionImpl );
-        removeThreadAndReleaseMonitor( currentThread );
+        Session.Listener sessionListener = null;
+        if (m_sessionEmitter.useShMem)
+        {
+            /* Session listener will be created
+             * when shared memory IPC negotiation is done.
+             */
+            final ShMemNegotiator negotiator = ShMemNegotiator.start(
+                    this, sessionImpl, (m_sessionEmitter instanceof Connector), m_sessionEmitter.shMemBlockSize );
+            if (negotiator != null)
+            {
+                m_negotiators.put( negotiator, Boolean.TRUE );
+                if (m_stopNegotiations && (m_negotiators.remove(negotiator) != null))
+                    negotiator.abort();
+                sessionListener = negotiator;
+            }
+        }
+
+        if (sessionListener == null)
+            sessionListener = createSessionListener( sessionImpl );
 
         /* Case when a sessionListener is null
          * will be handled inside the SessionImpl.initialize()
          */
         sessionImpl.initialize(
-                   m_forwardReadMaxSize, m_inputQueueDataBlockCache, sessionListener );
+                   m_forwardReadMaxSize, m_inputQueueDataBlockCache,
+                   sessionListener, createFrameListener(sessionImpl), m_sessionEmitter );
+    }
+
+    final Session.Listener createSessionListener( Session session )
+    {
+        final Thread currentThread = Thread.currentThread();
+        addThread( currentThread );
+        final Session.Listener sessionListener = m_sessionEmitter.createSessionListener( session );
+        removeThreadAndReleaseMonitor( currentThread );
+        return sessionListener;
+    }
+
+    /* Returns false if the negotiation was aborted by the stopNegotiations(). */
+    final boolean removeNegotiator( ShMemNegotiator negotiator )
+    {
+        return (m_negotiators.remove(negotiator) != null);
+    }
+
+    /* Closes the sessions still running the shared memory IPC negotiation,
+     * otherwise a peer never sending the request would block stopAndWait().
+     */
+    final void stopNegotiations()
+    {
+        if (m_negotiators != null)
+        {
+            m_stopNegotiations = true;
+            for (ShMemNegotiator negotiator : m_negotiators.keySet())
+            {
+                if (m_negotiators.remove(negotiator) != null)
+                    negotiator.abort();
+            }
+        }
+    }
+
+    final void releaseSessionMonitor()
+    {
+        /* Session was closed before the session listener was created. */
+        final Thread currentThread = Thread.currentThread();
+        addThread( currentThread );
+        removeThreadAndReleaseMonitor( currentThread );
+    }
+
+    private int configureUnixSocketChannel( SocketChannel socketChannel )
+    {
+        /* TCP specific options are not applicable. */
+        int recvBufferSize = m_sessionEmitter.socketRecvBufSize;
+        if (recvBufferSize == 0)
+            recvBufferSize = m_collider.getConfig().socketRecvBufSize;
+
+        if (recvBufferSize > 0)
+        {
+            try
+            {
+                socketChannel.setOption( StandardSocketOptions.SO_RCVBUF, recvBufferSize );
+            }
+            catch (final IOException ex)
+            {
+                logException( ex );
+            }
+        }
+
+        int sendBufferSize = m_sessionEmitter.socketSendBufSize;
+        if (sendBufferSize == 0)
+            sendBufferSize = m_collider.getConfig().socketSendBufSize;
+
+        if (sendBufferSize > 0)
+        {
+            try
+            {
+                socketChannel.setOption( StandardSocketOptions.SO_SNDBUF, sendBufferSize );
+            }
+            catch (final IOException ex)
+            {
+                logException( ex );
+            }
+        }
+        else
+            sendBufferSize = (64 * 1024);
+
+        return sendBufferSize;
     }
 
     private int configureSocketChannel( SocketChannel socketChannel )
     {
+        if (m_unixSocket)
+            return configureUnixSocketChannel( socketChannel );
+
         final Socket socket = socketChannel.socket();
         try
         {
@@ -129,6 +275,14 @@ abstract class SessionEmitterImpl
         return sendBufferSize;
     }
 
+    /* Counter of the sessions alive, decremented on session socket close,
+     * null if the emitter does not need it.
+     */
+    protected AtomicInteger getSessionCounter()
+    {
+        return null;
+    }
+
     protected abstract void addThread( Thread thread );
     protected abstract void removeThreadAndReleaseMonitor( Thread thread );
     protected abstract void logException( Exception ex );
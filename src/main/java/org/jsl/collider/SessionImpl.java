@@ -19,14 +19,22 @@
 
 package org.jsl.collider;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.NotYetConnectedException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -36,10 +44,39 @@ class SessionImpl implements Session, ColliderImpl.ChannelHandler
 {
     private static final Logger s_logger = Logger.getLogger( "org.jsl.collider.Session" );
     private static final Node CLOSE_MARKER = new Node( (ByteBuffer) null );
+    private static final Node LANE_CLOSED = new Node( (ByteBuffer) null );
+    private static final Node CLAIMED = new Node( (ByteBuffer) null );
+    private static final Node SPILL_APPENDED = new Node( (ByteBuffer) null );
+    private static final ByteBuffer LANE_MARKER = ByteBuffer.allocateDirect( 0 );
+    private static final SpillFile SPILL_CLOSED = new SpillFile();
 
     private static final AtomicReferenceFieldUpdater<Node, Node> s_nodeNextUpdater =
             AtomicReferenceFieldUpdater.newUpdater( Node.class, Node.class, "next" );
 
+    private static final AtomicReferenceFieldUpdater<Node, Node> s_nodeUpdateUpdater =
+            AtomicReferenceFieldUpdater.newUpdater( Node.class, Node.class, "update" );
+
+    private static final AtomicLongFieldUpdater<Node> s_nodeSpillLimitUpdater =
+            AtomicLongFieldUpdater.newUpdater( Node.class, "spillLimit" );
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<SessionImpl, ConcurrentHashMap> s_conflationUpdater =
+            AtomicReferenceFieldUpdater.newUpdater( SessionImpl.class, ConcurrentHashMap.class, "m_conflation" );
+
+    private static final AtomicReferenceFieldUpdater<SessionImpl, SpillFile> s_spillFileUpdater =
+            AtomicReferenceFieldUpdater.newUpdater( SessionImpl.class, SpillFile.class, "m_spillFile" );
+
+    private static final AtomicIntegerFieldUpdater<SessionImpl> s_corkUpdater =
+            AtomicIntegerFieldUpdater.newUpdater( SessionImpl.class, "m_cork" );
+
+    private static final AtomicIntegerFieldUpdater<SessionImpl> s_readSuspendReasonsUpdater =
+            AtomicIntegerFieldUpdater.newUpdater( SessionImpl.class, "m_readSuspendReasons" );
+
+    /* Set in the m_readSuspendReasons when the socket channel reader
+     * is created, suspension is passed to the reader then.
+     */
+    private static final int READER_READY = 0x0001;
+
     private static final int STATE_MASK   = 0x0003;
     private static final int ST_STARTING  = 0x0000;
     private static final int ST_RUNNING   = 0x0001;
@@ -56,12 +93,51 @@ class SessionImpl implements Session, ColliderImpl.ChannelHandler
 
     private final Starter m_starter;
     private final AtomicInteger m_state;
+    private final AtomicInteger m_sessionCounter;
 
     private Node m_head;
     private final AtomicReference<Node> m_tail;
 
+    /* m_socketChannelReader is published by the m_readSuspendReasons update. */
     private SocketChannelReader m_socketChannelReader;
+    private volatile int m_readSuspendReasons;
     private ThreadPool.Runnable m_writer;
+    private final RetainableByteBufferPool m_reservePool;
+
+    /* Priority lanes 1..SEND_LANES-1 are the stacks of nodes
+     * spliced by the writer to the head of the queue
+     * at the message boundary, lane 0 is the queue itself.
+     * Spliced nodes not sent yet stay at the head of the queue
+     * ordered by lane, new nodes of a lane are spliced after them.
+     * Each push to a lane adds an empty LANE_MARKER node
+     * to the queue to be sure the writer will see it.
+     */
+    private final AtomicReferenceArray<Node> m_lanes;
+
+    /* Conflated nodes not claimed by the writer yet, by key.
+     * Created on the first sendConflated() call.
+     */
+    private volatile ConcurrentHashMap<Object, Node> m_conflation;
+
+    /* Data sent while more than m_spillThreshold bytes are waiting
+     * in memory is written to the spill file and sent from it
+     * with FileChannel.transferTo(). m_pendingBytes is null
+     * if the spill is disabled, spill file is created on demand.
+     */
+    private final int m_spillThreshold;
+    private final File m_spillDirectory;
+    private final AtomicLong m_pendingBytes;
+    private volatile SpillFile m_spillFile;
+
+    /* CORK_PENDING is set instead of the writer start
+     * by the one who added the first node to the empty queue
+     * while the session is corked, the writer is started
+     * by the one who clears the flag.
+     */
+    private static final int CORKED       = 0x0001;
+    private static final int CORK_PENDING = 0x0002;
+    private static final int CORK_CLOSED  = 0x0004;
+    private volatile int m_cork;
 
     private class SelectorDeregistrator extends ColliderImpl.SelectorThreadRunnable
     {
@@ -87,6 +163,11 @@ class SessionImpl implements Session, ColliderImpl.ChannelHandler
                 }
             }
             m_socketChannel = null;
+            releaseLanes();
+            closeSpillFile();
+
+            if (m_sessionCounter != null)
+                m_sessionCounter.decrementAndGet();
             return 0;
         }
     }
@@ -107,6 +188,33 @@ class SessionImpl implements Session, ColliderImpl.ChannelHandler
         public volatile Node next;
         public ByteBuffer buf;
         public RetainableByteBuffer rbuf;
+        public FileChannel file;
+        public long position;
+        public long count;
+        public boolean reserved;
+
+        /* Node is not a start of the message:
+         * a part of the composite buffer or partially written,
+         * priority lanes can not be spliced before it.
+         */
+        public boolean partial;
+
+        /* File region is in the spill file. Data spilled while
+         * the node is the tail of the queue is appended to the region
+         * by moving the spillLimit, the writer sets it to -1
+         * when starts sending the node, so the region can not grow then.
+         */
+        public boolean spill;
+        public volatile long spillLimit;
+
+        /* Priority lane the node was sent to. */
+        public int lane;
+
+        /* Conflated node gets the data from the latest update
+         * when claimed by the writer.
+         */
+        public Object key;
+        public volatile Node update;
 
         public Node( ByteBuffer buf )
         {
@@ -114,12 +222,36 @@ class SessionImpl implements Session, ColliderImpl.ChannelHandler
             this.rbuf = null;
         }
 
+        public Node( FileChannel file, long position, long count )
+        {
+            this.buf = null;
+            this.rbuf = null;
+            this.file = file;
+            this.position = position;
+            this.count = count;
+        }
+
         public Node( RetainableByteBuffer rbuf )
         {
             this.buf = rbuf.getNioByteBuffer();
             this.rbuf = rbuf;
             rbuf.retain();
         }
+
+        public Node( ByteBuffer buf, RetainableByteBuffer rbuf )
+        {
+            this.buf = buf;
+            this.rbuf = rbuf;
+            rbuf.retain();
+        }
+
+        public Node( Object key, Node update )
+        {
+            this.buf = null;
+            this.rbuf = null;
+            this.key = key;
+            this.update = update;
+        }
     }
 
     private class SocketWriter extends ThreadPool.Runnable
@@ -127,9 +259,259 @@ class SessionImpl implements Session, ColliderImpl.ChannelHandler
         private final int m_socketSendBufferSize;
         private final int m_joinMessageMaxSize;
         private final RetainableByteBufferPool m_pool;
+        private final boolean m_stageHeapBuffers;
         private final ByteBuffer [] m_iov;
         private int m_iovc;
 
+        /* Token bucket limiting the send rate, m_tokens can be negative
+         * because at least one message is always written at once.
+         */
+        private final int m_sendRate;
+        private final long m_sendBurst;
+        private final double m_tokensPerNano;
+        private long m_tokens;
+        private long m_refillTime;
+
+        /* Write coalescing: writer waits for more messages
+         * until the threshold or the deadline is reached,
+         * rescheduling itself in the thread pool.
+         * Each pass counts only the nodes added after the previous one.
+         */
+        private final long m_coalesceDelay;
+        private final int m_coalesceSize;
+        private boolean m_coalescing;
+        private long m_coalesceDeadline;
+        private Node m_coalesceNode;
+        private int m_coalesceBytes;
+
+        private class Resumer implements Runnable
+        {
+            public void run()
+            {
+                m_collider.executeInThreadPool( SocketWriter.this );
+            }
+        }
+
+        private boolean acquireTokens()
+        {
+            final long currentTime = System.nanoTime();
+            final long elapsed = (currentTime - m_refillTime);
+            if (elapsed > 0)
+            {
+                m_tokens = Math.min( m_sendBurst, m_tokens + (long) (elapsed * m_tokensPerNano) );
+                m_refillTime = currentTime;
+            }
+
+            if (m_tokens > 0)
+                return true;
+
+            /* Writer stays owned by this session until resumed,
+             * nobody else will start it while the queue is not empty.
+             */
+            final long delay = ((-m_tokens * 1000 / m_sendRate) + 1);
+            m_collider.getTimerQueue().schedule( new Resumer(), delay, TimeUnit.MILLISECONDS );
+            return false;
+        }
+
+        private boolean isLargeHeapBuffer( Node node )
+        {
+            return m_stageHeapBuffers && !node.buf.isDirect() && (node.buf.remaining() > m_socketSendBufferSize);
+        }
+
+        private ByteBuffer stage( Node node )
+        {
+            /* Copy heap buffer to the direct buffer from the pool,
+             * otherwise JDK would copy it to the temporary direct buffer
+             * on each write attempt.
+             */
+            final RetainableByteBuffer buf = m_pool.alloc( node.buf.remaining() );
+            buf.put( node.buf.duplicate() );
+            buf.flip();
+            if (node.rbuf != null)
+                node.rbuf.release();
+            node.buf = buf.getNioByteBuffer();
+            node.rbuf = buf;
+            return node.buf;
+        }
+
+        private void writeHeapBuffer()
+        {
+            /* Heap buffer larger than the socket send buffer
+             * is sent alone by parts staged to the direct buffer.
+             */
+            final Node node = m_head;
+            final ByteBuffer buf = node.buf.duplicate();
+            final int limit = buf.limit();
+            final int pos = buf.position();
+
+            int bytes = Math.min( buf.remaining(), m_socketSendBufferSize );
+            if (m_sendRate > 0)
+                bytes = (int) Math.min( bytes, m_tokens );
+
+            final RetainableByteBuffer stage = m_pool.alloc( bytes );
+            buf.limit( pos + bytes );
+            stage.put( buf );
+            stage.flip();
+            buf.limit( limit );
+
+            int bytesSent;
+            try
+            {
+                bytesSent = m_socketChannel.write( stage.getNioByteBuffer() );
+            }
+            catch (final IOException ex)
+            {
+                stage.release();
+                closeAndCleanupQueue( ex );
+                releaseSocket( "SocketWriter.writeHeapBuffer()" );
+                return;
+            }
+            catch (final NotYetConnectedException ex)
+            {
+                stage.release();
+                closeAndCleanupQueue( ex );
+                releaseSocket( "SocketWriter.writeHeapBuffer()" );
+                return;
+            }
+
+            stage.release();
+            m_tokens -= bytesSent;
+            addPendingBytes( -bytesSent );
+            buf.position( pos + bytesSent );
+            node.buf = buf;
+
+            if (buf.remaining() > 0)
+            {
+                node.partial = true;
+                if (bytesSent < bytes)
+                {
+                    /* Socket send buffer is full. */
+                    m_collider.executeInSelectorThread( m_starter );
+                }
+                else
+                    m_collider.executeInThreadPool( this );
+                return;
+            }
+
+            node.buf = null;
+            if (node.rbuf != null)
+            {
+                node.rbuf.release();
+                node.rbuf = null;
+            }
+            removeNode( node );
+        }
+
+        private boolean spliceLanes()
+        {
+            /* Stack is reversed to get the nodes in the send order,
+             * then spliced after the nodes of the same or higher lanes
+             * spliced before but not sent yet, they are always
+             * followed by a lane 0 node (at least the LANE_MARKER).
+             */
+            boolean ret = false;
+            for (int lane=SEND_LANES-1; lane>0; lane--)
+            {
+                if (m_lanes.get(lane) == null)
+                    continue;
+
+                Node node = m_lanes.getAndSet( lane, null );
+                final Node last = node;
+                Node first = null;
+                while (node != null)
+                {
+                    final Node next = node.next;
+                    s_nodeNextUpdater.lazySet( node, first );
+                    first = node;
+                    node = next;
+                }
+
+                Node prev = null;
+                for (Node head=m_head; head.lane>=lane; head=head.next)
+                    prev = head;
+
+                if (prev == null)
+                {
+                    s_nodeNextUpdater.lazySet( last, m_head );
+                    m_head = first;
+                }
+                else
+                {
+                    s_nodeNextUpdater.lazySet( last, prev.next );
+                    s_nodeNextUpdater.lazySet( prev, first );
+                }
+                ret = true;
+            }
+            return ret;
+        }
+
+        private boolean coalesce()
+        {
+            /* Returns true if writer should wait for more messages.
+             * Conflated nodes are not claimed here,
+             * they still can be updated while the writer waits.
+             */
+            Node node;
+            int bytes;
+            if (m_coalescing)
+            {
+                node = m_coalesceNode;
+                bytes = m_coalesceBytes;
+            }
+            else
+            {
+                node = m_head;
+                if (node.file != null)
+                    return false;
+                bytes = node.buf.remaining();
+            }
+
+            for (;;)
+            {
+                if (bytes >= m_coalesceSize)
+                    break;
+
+                final Node next = node.next;
+                if (next == null)
+                {
+                    final long currentTime = System.nanoTime();
+                    if (!m_coalescing)
+                    {
+                        m_coalescing = true;
+                        m_coalesceDeadline = (currentTime + m_coalesceDelay);
+                    }
+                    else if ((currentTime - m_coalesceDeadline) >= 0)
+                        break;
+                    m_coalesceNode = node;
+                    m_coalesceBytes = bytes;
+                    return true;
+                }
+
+                if ((next == CLOSE_MARKER) || (next.file != null))
+                    break;
+
+                final Node update = next.update;
+                bytes += (((update != null) && (update != CLAIMED)) ? update.buf : next.buf).remaining();
+                node = next;
+            }
+
+            m_coalescing = false;
+            m_coalesceNode = null;
+            return false;
+        }
+
+        private int getRateLimitedIovc()
+        {
+            long bytes = 0;
+            for (int idx=0; idx<m_iovc; idx++)
+            {
+                bytes += m_iov[idx].remaining();
+                if (bytes >= m_tokens)
+                    return (idx + 1);
+            }
+            return m_iovc;
+        }
+
         private void joinMessages()
         {
             int bytesReady = 0;
@@ -146,7 +528,7 @@ class SessionImpl implements Session, ColliderImpl.ChannelHandler
             {
                 if (m_iovc == m_iov.length)
                     break;
-                if ((node == null) || (node == CLOSE_MARKER))
+                if ((node == null) || (node == CLOSE_MARKER) || (node.file != null) || isLargeHeapBuffer(claim(node)))
                     break;
                 assert( m_iov[m_iovc] == null );
 
@@ -155,14 +537,14 @@ class SessionImpl implements Session, ColliderImpl.ChannelHandler
                 for (Node nn=node;;)
                 {
                     final int nodeBytes = nn.buf.remaining();
-                    if (nodeBytes >= m_joinMessageMaxSize)
+                    if ((nodeBytes >= m_joinMessageMaxSize) || nn.reserved)
                         break;
                     joinNodes++;
                     joinBytes += nodeBytes;
                     if ((bytesReady + joinBytes) > m_socketSendBufferSize)
                         break;
                     nn = nn.next;
-                    if ((nn == null) || (nn == CLOSE_MARKER))
+                    if ((nn == null) || (nn == CLOSE_MARKER) || (nn.file != null) || isLargeHeapBuffer(claim(nn)))
                         break;
                 }
 
@@ -216,7 +598,7 @@ class SessionImpl implements Session, ColliderImpl.ChannelHandler
                 }
                 else
                 {
-                    m_iov[m_iovc] = node.buf.duplicate();
+                    m_iov[m_iovc] = (m_stageHeapBuffers && !node.buf.isDirect()) ? stage(node) : node.buf.duplicate();
                     m_iovc++;
                 }
 
@@ -232,7 +614,8 @@ class SessionImpl implements Session, ColliderImpl.ChannelHandler
         public SocketWriter(
                 int socketSendBufferSize,
                 int joinMessageMaxSize,
-                RetainableByteBufferPool pool )
+                RetainableByteBufferPool pool,
+                SessionEmitter sessionEmitter )
         {
             /* It makes no sense to write at once
              * significantly more than socket send buffer size.
@@ -240,12 +623,146 @@ class SessionImpl implements Session, ColliderImpl.ChannelHandler
             m_socketSendBufferSize = socketSendBufferSize;
             m_joinMessageMaxSize = joinMessageMaxSize;
             m_pool = pool;
+            m_stageHeapBuffers = ((pool != null) && m_collider.getConfig().stageHeapBuffers);
             m_iov = new ByteBuffer[32];
             m_iovc = 0;
+
+            final int sendRate = sessionEmitter.sendRateLimit;
+            final int sendBurst = sessionEmitter.sendBurstSize;
+            m_sendRate = sendRate;
+            m_sendBurst = ((sendBurst > 0) ? sendBurst : Math.max(sendRate/10, 1));
+            m_tokensPerNano = (sendRate / 1000000000.0d);
+            m_tokens = m_sendBurst;
+            m_refillTime = System.nanoTime();
+
+            final int coalesceSize = sessionEmitter.writeCoalesceSize;
+            m_coalesceDelay = (sessionEmitter.writeCoalesceDelay * 1000L);
+            m_coalesceSize = ((coalesceSize > 0) ? coalesceSize : socketSendBufferSize);
+            m_coalescing = false;
+            m_coalesceDeadline = 0;
+        }
+
+        private void transferFile()
+        {
+            /* File region is sent alone, data scheduled before
+             * is already written and data scheduled after will wait.
+             */
+            final Node node = m_head;
+            if (node.spill)
+            {
+                final long spillLimit = s_nodeSpillLimitUpdater.getAndSet( node, -1 );
+                if (spillLimit >= 0)
+                    node.count = (spillLimit - node.position);
+            }
+
+            final long count = ((m_sendRate > 0) ? Math.min(node.count, m_tokens) : node.count);
+            long bytesSent;
+            try
+            {
+                bytesSent = node.file.transferTo( node.position, count, m_socketChannel );
+                if (bytesSent > 0)
+                {
+                    node.position += bytesSent;
+                    node.count -= bytesSent;
+                    m_tokens -= bytesSent;
+                    if (node.spill)
+                        m_spillFile.release( bytesSent );
+                }
+                else if (node.position < node.file.size())
+                {
+                    m_collider.executeInSelectorThread( m_starter );
+                    return;
+                }
+                else
+                {
+                    if (s_logger.isLoggable(Level.WARNING))
+                    {
+                        s_logger.warning(
+                                m_localSocketAddress + " -> " + m_remoteSocketAddress +
+                                ": file truncated, " + node.count + " bytes were not sent." );
+                    }
+                    if (node.spill)
+                        m_spillFile.release( node.count );
+                    node.count = 0;
+                }
+            }
+            catch (final IOException ex)
+            {
+                closeAndCleanupQueue( ex );
+                releaseSocket( "SocketWriter.transferFile()" );
+                return;
+            }
+            catch (final NotYetConnectedException ex)
+            {
+                closeAndCleanupQueue( ex );
+                releaseSocket( "SocketWriter.transferFile()" );
+                return;
+            }
+
+            if (node.count > 0)
+            {
+                node.partial = true;
+                if (bytesSent < count)
+                {
+                    /* Partial transfer, socket send buffer is full. */
+                    m_collider.executeInSelectorThread( m_starter );
+                }
+                else
+                {
+                    /* Transfer was limited by the send rate. */
+                    m_collider.executeInThreadPool( this );
+                }
+                return;
+            }
+
+            node.file = null;
+            removeNode( node );
         }
 
         public void runInThreadPool()
         {
+            boolean spliced = false;
+            if (m_iovc == 0)
+            {
+                if (!m_head.partial)
+                    spliced = spliceLanes();
+                claim( m_head );
+
+                if (m_head.buf == LANE_MARKER)
+                {
+                    m_head.buf = null;
+                    removeNode( m_head );
+                    return;
+                }
+            }
+
+            if ((m_sendRate > 0) && !acquireTokens())
+                return;
+
+            if (spliced)
+            {
+                /* Priority data should not wait. */
+                m_coalescing = false;
+                m_coalesceNode = null;
+            }
+            else if ((m_coalesceDelay > 0) && (m_iovc == 0) && coalesce())
+            {
+                m_collider.executeInThreadPool( this );
+                return;
+            }
+
+            if ((m_iovc == 0) && (m_head.file != null))
+            {
+                transferFile();
+                return;
+            }
+
+            if ((m_iovc == 0) && isLargeHeapBuffer(m_head))
+            {
+                writeHeapBuffer();
+                return;
+            }
+
             if (m_joinMessageMaxSize == 0)
             {
                 Node node = m_head;
@@ -256,10 +773,10 @@ class SessionImpl implements Session, ColliderImpl.ChannelHandler
                 {
                     if (m_iovc == m_iov.length)
                         break;
-                    if ((node == null) || (node == CLOSE_MARKER))
+                    if ((node == null) || (node == CLOSE_MARKER) || (node.file != null) || isLargeHeapBuffer(claim(node)))
                         break;
                     assert( m_iov[m_iovc] == null );
-                    m_iov[m_iovc] = node.buf.duplicate();
+                    m_iov[m_iovc] = (m_stageHeapBuffers && !node.buf.isDirect()) ? stage(node) : node.buf.duplicate();
                     m_iovc++;
                     node = node.next;
                 }
@@ -269,12 +786,18 @@ class SessionImpl implements Session, ColliderImpl.ChannelHandler
 
             try
             {
-                final long bytesSent = m_socketChannel.write( m_iov, 0, m_iovc );
+                /* Buffers not written due to the send rate limit
+                 * are handled like in a case of partial write.
+                 */
+                final int iovc = ((m_sendRate > 0) ? getRateLimitedIovc() : m_iovc);
+                final long bytesSent = m_socketChannel.write( m_iov, 0, iovc );
                 if (bytesSent == 0)
                 {
                     m_collider.executeInSelectorThread( m_starter );
                     return;
                 }
+                m_tokens -= bytesSent;
+                addPendingBytes( -bytesSent );
             }
             catch (final IOException ex)
             {
@@ -554,6 +1077,7 @@ class SessionImpl implements Session, ColliderImpl.ChannelHandler
 
     public final void handleReaderStopped()
     {
+        closeCork();
         Node tail = m_tail.get();
         for (;;)
         {
@@ -640,6 +1164,11 @@ class SessionImpl implements Session, ColliderImpl.ChannelHandler
                         }
                     }
                     m_socketChannel = null;
+                    releaseLanes();
+                    closeSpillFile();
+
+                    if (m_sessionCounter != null)
+                        m_sessionCounter.decrementAndGet();
                 }
 
                 break;
@@ -647,25 +1176,58 @@ class SessionImpl implements Session, ColliderImpl.ChannelHandler
         }
     }
 
+    private static SocketAddress getLocalAddress( SocketChannel socketChannel )
+    {
+        /* SocketChannel.socket() is not supported for the unix domain socket channels. */
+        try
+        {
+            return socketChannel.getLocalAddress();
+        }
+        catch (final IOException ex)
+        {
+            return null;
+        }
+    }
+
+    private static SocketAddress getRemoteAddress( SocketChannel socketChannel )
+    {
+        try
+        {
+            return socketChannel.getRemoteAddress();
+        }
+        catch (final IOException ex)
+        {
+            return null;
+        }
+    }
+
     public SessionImpl(
                 ColliderImpl collider,
                 SocketChannel socketChannel,
                 SelectionKey selectionKey,
                 int socketSendBufferSize,
                 int joinMessageMaxSize,
-                RetainableByteBufferPool joinPool )
+                RetainableByteBufferPool joinPool,
+                SessionEmitter sessionEmitter,
+                AtomicInteger sessionCounter )
     {
         m_collider = collider;
         m_socketChannel = socketChannel;
         m_selectionKey = selectionKey;
-        m_localSocketAddress = socketChannel.socket().getLocalSocketAddress();
-        m_remoteSocketAddress = socketChannel.socket().getRemoteSocketAddress();
+        m_localSocketAddress = getLocalAddress( socketChannel );
+        m_remoteSocketAddress = getRemoteAddress( socketChannel );
 
         m_starter = new Starter();
         m_state = new AtomicInteger( ST_STARTING + SOCK_RC );
+        m_sessionCounter = sessionCounter;
         m_head = null;
         m_tail = new AtomicReference<Node>();
-        m_writer = new SocketWriter( socketSendBufferSize, joinMessageMaxSize, joinPool );
+        m_reservePool = ((joinPool == null) ? collider.getFramePool() : joinPool);
+        m_lanes = new AtomicReferenceArray<Node>( SEND_LANES );
+        m_spillThreshold = sessionEmitter.spillThreshold;
+        m_spillDirectory = sessionEmitter.spillDirectory;
+        m_pendingBytes = ((m_spillThreshold > 0) ? new AtomicLong() : null);
+        m_writer = new SocketWriter( socketSendBufferSize, joinMessageMaxSize, joinPool, sessionEmitter );
 
         m_selectionKey.attach( this );
     }
@@ -673,7 +1235,9 @@ class SessionImpl implements Session, ColliderImpl.ChannelHandler
     public final void initialize(
                 int inputQueueMaxSize,
                 RetainableDataBlockCache inputQueueDataBlockCache,
-                Listener listener )
+                Listener listener,
+                FrameListener frameListener,
+                SessionEmitter sessionEmitter )
     {
         if (listener == null)
             closeConnection();
@@ -689,7 +1253,29 @@ class SessionImpl implements Session, ColliderImpl.ChannelHandler
                     inputQueueDataBlockCache,
                     m_socketChannel,
                     m_selectionKey,
-                    listener );
+                    listener,
+                    frameListener,
+                    sessionEmitter );
+
+            /* suspendRead() and resumeRead() can be called concurrently,
+             * the reader is not started yet, so the suspension
+             * can be just applied again if changed meanwhile.
+             */
+            int applied = 0;
+            for (;;)
+            {
+                final int reasons = m_readSuspendReasons;
+                if (reasons != applied)
+                {
+                    if ((reasons & ~applied) != 0)
+                        m_socketChannelReader.suspend( reasons & ~applied );
+                    if ((applied & ~reasons) != 0)
+                        m_socketChannelReader.resume( applied & ~reasons );
+                    applied = reasons;
+                }
+                if (s_readSuspendReasonsUpdater.compareAndSet(this, reasons, READER_READY))
+                    break;
+            }
         }
 
         for (;;)
@@ -742,22 +1328,62 @@ class SessionImpl implements Session, ColliderImpl.ChannelHandler
     public int sendData( ByteBuffer data )
     {
         assert( data.remaining() > 0 );
-        final Node node = new Node( data );
+        final int bytes = data.remaining();
+        Node node = null;
+        if (overflow(bytes))
+            node = spill( new ByteBuffer [] {data}, bytes );
+        if (node == null)
+            node = new Node( data );
+        return sendData( node );
+    }
+
+    public int sendData( CompositeByteBuffer data )
+    {
+        /* Each part gets its own node, all nodes are added
+         * to the queue at once, so the writer can send them
+         * with one gathering write and other messages
+         * can not get in between.
+         */
+        assert( data.remaining() > 0 );
+        final ByteBuffer [] bufs = data.getNioByteBuffers();
+        final RetainableByteBuffer [] parts = data.getParts();
+        final int bytes = data.remaining();
+        if (overflow(bytes))
+        {
+            final Node node = spill( bufs, bytes );
+            if (node != null)
+                return sendData( node );
+        }
+
+        final Node first = new Node( bufs[0], parts[0] );
+        Node last = first;
+        for (int idx=1; idx<bufs.length; idx++)
+        {
+            final Node node = new Node( bufs[idx], parts[idx] );
+            node.partial = true;
+            last.next = node;
+            last = node;
+        }
+
         for (;;)
         {
             final Node tail = m_tail.get();
             if (tail == CLOSE_MARKER)
+            {
+                for (Node node=first; node!=null; node=node.next)
+                    node.rbuf.release();
                 return -1;
+            }
 
-            if (m_tail.compareAndSet(tail, node))
+            if (m_tail.compareAndSet(tail, last))
             {
                 if (tail == null)
                 {
-                    m_head = node;
-                    m_collider.executeInThreadPool( m_writer );
+                    m_head = first;
+                    startWriter();
                 }
                 else
-                    tail.next = node;
+                    tail.next = first;
                 return 1;
             }
         }
@@ -766,19 +1392,34 @@ class SessionImpl implements Session, ColliderImpl.ChannelHandler
     public int sendData( RetainableByteBuffer data )
     {
         assert( data.remaining() > 0 );
-        final Node node = new Node( data );
-        for (;;)
+        final int bytes = data.remaining();
+        if (overflow(bytes))
         {
-            final Node tail = m_tail.get();
-            if (tail == CLOSE_MARKER)
-                return -1;
+            final Node node = spill( new ByteBuffer [] {data.getNioByteBuffer()}, bytes );
+            if (node != null)
+                return sendData( node );
+        }
 
-            if (m_tail.compareAndSet(tail, node))
-            {
+        return sendData( new Node(data) );
+    }
+
+    private int sendData( Node node )
+    {
+        if (node == SPILL_APPENDED)
+            return 1;
+
+        for (;;)
+        {
+            final Node tail = m_tail.get();
+            if (tail == CLOSE_MARKER)
+                return -1;
+
+            if (m_tail.compareAndSet(tail, node))
+            {
                 if (tail == null)
                 {
                     m_head = node;
-                    m_collider.executeInThreadPool( m_writer );
+                    startWriter();
                 }
                 else
                     tail.next = node;
@@ -787,9 +1428,399 @@ class SessionImpl implements Session, ColliderImpl.ChannelHandler
         }
     }
 
+    public int sendData( ByteBuffer data, int lane )
+    {
+        assert( (lane >= 0) && (lane < SEND_LANES) );
+        if ((lane == 0) || (m_writer instanceof ShMemWriter))
+            return sendData( data );
+
+        assert( data.remaining() > 0 );
+        final int bytes = data.remaining();
+        addPendingBytes( bytes );
+        final int rc = sendData( new Node(data), lane );
+        if (rc == -2)
+        {
+            addPendingBytes( -bytes );
+            return -1;
+        }
+        return rc;
+    }
+
+    public int sendData( RetainableByteBuffer data, int lane )
+    {
+        assert( (lane >= 0) && (lane < SEND_LANES) );
+        if ((lane == 0) || (m_writer instanceof ShMemWriter))
+            return sendData( data );
+
+        assert( data.remaining() > 0 );
+        final int bytes = data.remaining();
+        addPendingBytes( bytes );
+        final int rc = sendData( new Node(data), lane );
+        if (rc == -2)
+        {
+            addPendingBytes( -bytes );
+            data.release();
+            return -1;
+        }
+        return rc;
+    }
+
+    private int sendData( Node node, int lane )
+    {
+        /* Returns -2 if the node was not pushed to the lane. */
+        if (m_tail.get() == CLOSE_MARKER)
+            return -2;
+
+        node.lane = lane;
+        for (;;)
+        {
+            final Node head = m_lanes.get( lane );
+            if (head == LANE_CLOSED)
+            {
+                s_nodeNextUpdater.lazySet( node, null );
+                return -2;
+            }
+            s_nodeNextUpdater.lazySet( node, head );
+            if (m_lanes.compareAndSet(lane, head, node))
+                break;
+        }
+
+        /* Nodes pushed after the session close
+         * will be released on the socket channel close.
+         */
+        final Node marker = new Node( LANE_MARKER );
+        for (;;)
+        {
+            final Node tail = m_tail.get();
+            if (tail == CLOSE_MARKER)
+                return -1;
+
+            if (m_tail.compareAndSet(tail, marker))
+            {
+                if (tail == null)
+                {
+                    m_head = marker;
+                    startWriter();
+                }
+                else
+                    tail.next = marker;
+                return 1;
+            }
+        }
+    }
+
+    public int sendConflated( Object key, ByteBuffer data )
+    {
+        assert( data.remaining() > 0 );
+        if (m_writer instanceof ShMemWriter)
+            return sendData( data );
+        return sendConflated( key, new Node(data) );
+    }
+
+    public int sendConflated( Object key, RetainableByteBuffer data )
+    {
+        assert( data.remaining() > 0 );
+        if (m_writer instanceof ShMemWriter)
+            return sendData( data );
+        return sendConflated( key, new Node(data) );
+    }
+
+    @SuppressWarnings("unchecked")
+    private int sendConflated( Object key, Node update )
+    {
+        ConcurrentHashMap<Object, Node> conflation = m_conflation;
+        if (conflation == null)
+        {
+            s_conflationUpdater.compareAndSet( this, null, new ConcurrentHashMap<Object, Node>() );
+            conflation = m_conflation;
+        }
+
+        for (;;)
+        {
+            final Node node = conflation.get( key );
+            if (node != null)
+            {
+                /* Replace the data of the node still waiting in the queue. */
+                final Node prev = node.update;
+                if (prev != CLAIMED)
+                {
+                    if (s_nodeUpdateUpdater.compareAndSet(node, prev, update))
+                    {
+                        addPendingBytes( update.buf.remaining() - prev.buf.remaining() );
+                        if (prev.rbuf != null)
+                            prev.rbuf.release();
+                        return 1;
+                    }
+                    continue;
+                }
+            }
+
+            final Node newNode = new Node( key, update );
+            if ((node == null) ? (conflation.putIfAbsent(key, newNode) != null)
+                               : !conflation.replace(key, node, newNode))
+                continue;
+
+            addPendingBytes( update.buf.remaining() );
+
+            for (;;)
+            {
+                final Node tail = m_tail.get();
+                if (tail == CLOSE_MARKER)
+                {
+                    /* Data can be already replaced by another producer. */
+                    claim( newNode );
+                    if (newNode.rbuf != null)
+                        newNode.rbuf.release();
+                    return -1;
+                }
+
+                if (m_tail.compareAndSet(tail, newNode))
+                {
+                    if (tail == null)
+                    {
+                        m_head = newNode;
+                        startWriter();
+                    }
+                    else
+                        tail.next = newNode;
+                    return 1;
+                }
+            }
+        }
+    }
+
+    private Node claim( Node node )
+    {
+        /* Data of the conflated node can be replaced
+         * until the node is claimed by the writer.
+         */
+        if ((node.key != null) && (node.update != CLAIMED))
+        {
+            final Node update = s_nodeUpdateUpdater.getAndSet( node, CLAIMED );
+            node.buf = update.buf;
+            node.rbuf = update.rbuf;
+            m_conflation.remove( node.key, node );
+        }
+        return node;
+    }
+
+    private void addPendingBytes( long bytes )
+    {
+        if (m_pendingBytes != null)
+            m_pendingBytes.addAndGet( bytes );
+    }
+
+    private boolean overflow( int bytes )
+    {
+        /* Accounts the bytes kept in memory,
+         * returns true if the data should be spilled.
+         */
+        if ((m_pendingBytes == null) || (m_writer instanceof ShMemWriter))
+            return false;
+
+        for (;;)
+        {
+            final long pendingBytes = m_pendingBytes.get();
+            if ((pendingBytes + bytes) > m_spillThreshold)
+                return true;
+            if (m_pendingBytes.compareAndSet(pendingBytes, pendingBytes+bytes))
+                return false;
+        }
+    }
+
+    private Node spill( ByteBuffer [] data, int bytes )
+    {
+        /* Returns null if the data can not be spilled,
+         * it is accounted as kept in memory then.
+         * Returns SPILL_APPENDED if the data follows the region
+         * of the spill node at the tail of the queue and was appended to it.
+         */
+        SpillFile spillFile = m_spillFile;
+        if (spillFile == null)
+        {
+            try
+            {
+                spillFile = new SpillFile( m_spillDirectory );
+                if (!s_spillFileUpdater.compareAndSet(this, null, spillFile))
+                {
+                    spillFile.close();
+                    spillFile = m_spillFile;
+                }
+            }
+            catch (final IOException ex)
+            {
+                if (s_logger.isLoggable(Level.WARNING))
+                    s_logger.warning( m_localSocketAddress + " -> " + m_remoteSocketAddress + ": " + ex.toString() );
+                s_spillFileUpdater.compareAndSet( this, null, SPILL_CLOSED );
+                spillFile = m_spillFile;
+            }
+        }
+
+        if (spillFile != SPILL_CLOSED)
+        {
+            final long position = spillFile.write( data, bytes );
+            if (position >= 0)
+            {
+                final Node tail = m_tail.get();
+                if ((tail != null) && tail.spill &&
+                    s_nodeSpillLimitUpdater.compareAndSet(tail, position, position+bytes))
+                {
+                    return SPILL_APPENDED;
+                }
+
+                final Node node = new Node( spillFile.getFileChannel(), position, bytes );
+                node.spill = true;
+                node.spillLimit = (position + bytes);
+                return node;
+            }
+        }
+
+        m_pendingBytes.addAndGet( bytes );
+        return null;
+    }
+
+    private void closeSpillFile()
+    {
+        /* Called when the writer is stopped and socket channel is closed. */
+        final SpillFile spillFile = s_spillFileUpdater.getAndSet( this, SPILL_CLOSED );
+        if ((spillFile != null) && (spillFile != SPILL_CLOSED))
+            spillFile.close();
+    }
+
+    private void releaseLanes()
+    {
+        /* Called when the writer is stopped and socket channel is closed. */
+        for (int lane=1; lane<SEND_LANES; lane++)
+        {
+            Node node = m_lanes.getAndSet( lane, LANE_CLOSED );
+            while (node != null)
+            {
+                if (node.rbuf != null)
+                    node.rbuf.release();
+                final Node next = node.next;
+                s_nodeNextUpdater.lazySet( node, null );
+                node = next;
+            }
+        }
+    }
+
+    public RetainableByteBuffer reserve( int size )
+    {
+        return m_reservePool.alloc( size );
+    }
+
+    public int commit( RetainableByteBuffer data )
+    {
+        data.flip();
+        if (data.remaining() == 0)
+        {
+            data.release();
+            return 0;
+        }
+
+        final int bytes = data.remaining();
+        if (overflow(bytes))
+        {
+            final Node node = spill( new ByteBuffer [] {data.getNioByteBuffer()}, bytes );
+            if (node != null)
+            {
+                data.release();
+                return sendData( node );
+            }
+        }
+
+        /* Buffer is already in the pool, no need to join it. */
+        final Node node = new Node( data.getNioByteBuffer(), data );
+        node.reserved = true;
+        data.release();
+
+        for (;;)
+        {
+            final Node tail = m_tail.get();
+            if (tail == CLOSE_MARKER)
+            {
+                data.release();
+                return -1;
+            }
+
+            if (m_tail.compareAndSet(tail, node))
+            {
+                if (tail == null)
+                {
+                    m_head = node;
+                    startWriter();
+                }
+                else
+                    tail.next = node;
+                return 1;
+            }
+        }
+    }
+
+    public int sendFile( FileChannel fileChannel, long position, long count )
+    {
+        assert( count > 0 );
+        if (m_writer instanceof ShMemWriter)
+        {
+            /* Shared memory IPC writer does not support file regions. */
+            return sendMappedFile( fileChannel, position, count );
+        }
+
+        final Node node = new Node( fileChannel, position, count );
+        for (;;)
+        {
+            final Node tail = m_tail.get();
+            if (tail == CLOSE_MARKER)
+                return -1;
+
+            if (m_tail.compareAndSet(tail, node))
+            {
+                if (tail == null)
+                {
+                    m_head = node;
+                    startWriter();
+                }
+                else
+                    tail.next = node;
+                return 1;
+            }
+        }
+    }
+
+    private int sendMappedFile( FileChannel fileChannel, long position, long count )
+    {
+        int rc = -1;
+        try
+        {
+            while (count > 0)
+            {
+                final int bytes = (int) Math.min( count, Integer.MAX_VALUE );
+                rc = sendData( fileChannel.map(FileChannel.MapMode.READ_ONLY, position, bytes) );
+                if (rc < 0)
+                    break;
+                position += bytes;
+                count -= bytes;
+            }
+        }
+        catch (final IOException ex)
+        {
+            if (s_logger.isLoggable(Level.WARNING))
+                s_logger.warning( m_localSocketAddress + " -> " + m_remoteSocketAddress + ": " + ex.toString() );
+        }
+        return rc;
+    }
+
     public int sendDataSync( ByteBuffer data )
     {
         assert( data.remaining() > 0 );
+        final int bytes = data.remaining();
+        if (overflow(bytes))
+        {
+            final Node node = spill( new ByteBuffer [] {data}, bytes );
+            if (node != null)
+                return sendData( node );
+        }
+
         final Node node = new Node( data );
         for (;;)
         {
@@ -802,6 +1833,8 @@ class SessionImpl implements Session, ColliderImpl.ChannelHandler
                 if (tail == null)
                 {
                     m_head = node;
+                    if (postponeWriter())
+                        return 1;
                     break;
                 }
                 else
@@ -814,7 +1847,7 @@ class SessionImpl implements Session, ColliderImpl.ChannelHandler
 
         try
         {
-            m_socketChannel.write( data );
+            addPendingBytes( -m_socketChannel.write(data) );
         }
         catch (final Exception ex)
         {
@@ -835,6 +1868,7 @@ class SessionImpl implements Session, ColliderImpl.ChannelHandler
 
     public int closeConnection()
     {
+        closeCork();
         for (;;)
         {
             final Node tail = m_tail.get();
@@ -924,6 +1958,46 @@ class SessionImpl implements Session, ColliderImpl.ChannelHandler
         }
     }
 
+    private boolean postponeWriter()
+    {
+        return ((m_cork == CORKED) && s_corkUpdater.compareAndSet(this, CORKED, CORKED|CORK_PENDING));
+    }
+
+    private void startWriter()
+    {
+        /* Called by the one who added the first node to the empty queue. */
+        if (!postponeWriter())
+            m_collider.executeInThreadPool( m_writer );
+    }
+
+    private void closeCork()
+    {
+        /* Data queued while corked is sent before the socket close. */
+        if (s_corkUpdater.getAndSet(this, CORK_CLOSED) == (CORKED|CORK_PENDING))
+            m_collider.executeInThreadPool( m_writer );
+    }
+
+    public void cork()
+    {
+        s_corkUpdater.compareAndSet( this, 0, CORKED );
+    }
+
+    public void uncork()
+    {
+        for (;;)
+        {
+            final int cork = m_cork;
+            if ((cork & CORKED) == 0)
+                break;
+            if (s_corkUpdater.compareAndSet(this, cork, 0))
+            {
+                if ((cork & CORK_PENDING) != 0)
+                    m_collider.executeInThreadPool( m_writer );
+                break;
+            }
+        }
+    }
+
     public int accelerate( ShMem shMem, ByteBuffer message )
     {
         final Node node = new Node( (ByteBuffer) null );
@@ -987,11 +2061,60 @@ class SessionImpl implements Session, ColliderImpl.ChannelHandler
         return 0;
     }
 
+    public void suspendRead()
+    {
+        suspendRead( SocketChannelReader.SUSPEND_USER );
+    }
+
+    public void resumeRead()
+    {
+        resumeRead( SocketChannelReader.SUSPEND_USER );
+    }
+
+    final void suspendRead( int reason )
+    {
+        /* Can be called from any thread (including the createSessionListener())
+         * before the socket channel reader is created,
+         * the reason is kept then and applied by the initialize().
+         */
+        for (;;)
+        {
+            final int reasons = m_readSuspendReasons;
+            if (reasons == READER_READY)
+            {
+                m_socketChannelReader.suspend( reason );
+                break;
+            }
+            if (s_readSuspendReasonsUpdater.compareAndSet(this, reasons, reasons|reason))
+                break;
+        }
+    }
+
+    final void resumeRead( int reason )
+    {
+        for (;;)
+        {
+            final int reasons = m_readSuspendReasons;
+            if (reasons == READER_READY)
+            {
+                m_socketChannelReader.resume( reason );
+                break;
+            }
+            if (s_readSuspendReasonsUpdater.compareAndSet(this, reasons, reasons & ~reason))
+                break;
+        }
+    }
+
     public Listener replaceListener( Listener newListener )
     {
         return m_socketChannelReader.replaceListener( newListener );
     }
 
+    public final Listener getDataListener()
+    {
+        return m_socketChannelReader.getDataListener();
+    }
+
     public int handleReadyOps( ThreadPool threadPool )
     {
         final int readyOps = m_selectionKey.readyOps();
@@ -999,7 +2122,10 @@ class SessionImpl implements Session, ColliderImpl.ChannelHandler
 
         if ((readyOps & SelectionKey.OP_READ) != 0)
         {
-            threadPool.execute( m_socketChannelReader );
+            if (m_socketChannelReader.isInline())
+                m_socketChannelReader.runInline();
+            else
+                threadPool.execute( m_socketChannelReader );
             ret = 1;
         }
 
@@ -1040,6 +2166,7 @@ class SessionImpl implements Session, ColliderImpl.ChannelHandler
         while (node != CLOSE_MARKER)
         {
             final Node next = node.next;
+            claim( node );
             if (node.rbuf != null)
                 node.rbuf.release();
             s_nodeNextUpdater.lazySet( node, null );
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-Collider framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.collider;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Session listener forwarding all data received by the source session
+ * to the target session without copying: the data block is retained
+ * and released when the data is written to the target socket.
+ * Reading from the source session is suspended when the amount of data
+ * scheduled to the target but not written yet reaches <em>maxPendingBytes</em>,
+ * and resumed when it falls below a half of it.
+ * If the target session joins small messages (<em>joinMessageMaxSize</em>
+ * greater than 0) or stages heap buffers, its writer copies the data
+ * and releases the relayed block before the data is written,
+ * the copied data is accounted as sent then. The writer copies
+ * only the data it is going to write at once, so the amount of data
+ * held by the target can exceed <em>maxPendingBytes</em> by up to
+ * the socket send buffer size of the target.
+ * Closing of the source session closes the target one.
+ * For bidirectional relay two instances should be used.
+ */
+public class SessionRelay implements Session.Listener
+{
+    private final Session m_source;
+    private final Session m_target;
+    private final int m_highWatermark;
+    private final int m_lowWatermark;
+    private final AtomicInteger m_pendingBytes;
+    private final ReentrantLock m_lock;
+    private volatile boolean m_suspended;
+
+    private class RelayBuffer extends RetainableByteBufferImpl
+    {
+        private final RetainableByteBuffer m_data;
+        private final int m_bytes;
+
+        public RelayBuffer( RetainableByteBuffer data )
+        {
+            super( data.getNioByteBuffer().slice() );
+            data.retain();
+            m_data = data;
+            m_bytes = m_buf.remaining();
+        }
+
+        protected void finalRelease()
+        {
+            /* Called early if the target writer copied the data. */
+            m_data.release();
+            onDataSent( m_bytes );
+        }
+    }
+
+    private void updateSuspension()
+    {
+        m_lock.lock();
+        try
+        {
+            /* Pending bytes should be checked again
+             * after the flag change to not miss the update
+             * from the writer thread.
+             */
+            for (;;)
+            {
+                final int pendingBytes = m_pendingBytes.get();
+                if (m_suspended)
+                {
+                    if (pendingBytes >= m_lowWatermark)
+                        break;
+                    m_suspended = false;
+                    ((SessionImpl) m_source).resumeRead( SocketChannelReader.SUSPEND_RELAY );
+                }
+                else
+                {
+                    if (pendingBytes < m_highWatermark)
+                        break;
+                    m_suspended = true;
+                    ((SessionImpl) m_source).suspendRead( SocketChannelReader.SUSPEND_RELAY );
+                }
+            }
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    private void onDataSent( int bytes )
+    {
+        final int pendingBytes = m_pendingBytes.addAndGet( -bytes );
+        if ((pendingBytes < m_lowWatermark) && m_suspended)
+            updateSuspension();
+    }
+
+    public SessionRelay( Session source, Session target, int maxPendingBytes )
+    {
+        m_source = source;
+        m_target = target;
+        /* Flow control is available for the socket sessions only. */
+        m_highWatermark = ((source instanceof SessionImpl) ? maxPendingBytes : Integer.MAX_VALUE);
+        m_lowWatermark = (maxPendingBytes / 2);
+        m_pendingBytes = new AtomicInteger();
+        m_lock = new ReentrantLock();
+    }
+
+    public Session getSource()
+    {
+        return m_source;
+    }
+
+    public Session getTarget()
+    {
+        return m_target;
+    }
+
+    public void onDataReceived( RetainableByteBuffer data )
+    {
+        final RelayBuffer buf = new RelayBuffer( data );
+        final int pendingBytes = m_pendingBytes.addAndGet( buf.remaining() );
+        final int rc = m_target.sendData( buf );
+        buf.release();
+
+        if (rc < 0)
+            m_source.closeConnection();
+        else if ((pendingBytes >= m_highWatermark) && !m_suspended)
+            updateSuspension();
+    }
+
+    public void onConnectionClosed()
+    {
+        m_target.closeConnection();
+    }
+}
@@ -104,13 +104,41 @@ public abstract class ShMem
         }
     }
 
+    private static class BufferImpl extends RetainableByteBufferImpl
+    {
+        /* Block is given back to the writer only when the reader moved
+         * to the next block and all the buffers retained by the listener
+         * are released, so the data is not overwritten while it is in use.
+         * The reader keeps one reference while the block is the current one.
+         */
+        private final ByteBuffer m_ctl;
+        private final int m_nextBlockPos;
+
+        public BufferImpl( ByteBuffer byteBuffer, int nextBlockPos )
+        {
+            super( byteBuffer );
+            m_ctl = byteBuffer.duplicate();
+            m_nextBlockPos = nextBlockPos;
+        }
+
+        protected void finalRelease()
+        {
+            super.finalRelease();
+            m_ctl.putInt( m_nextBlockPos, -1 );
+        }
+    }
+
     public static class ChannelIn extends Channel
     {
+        private RetainableByteBuffer [] m_rbb;
         private int m_idx;
 
         public ChannelIn( File file, int blockSize, boolean init ) throws IOException
         {
             super( file, blockSize, init );
+            m_rbb = new RetainableByteBuffer[m_mbb.length];
+            for (int idx=0; idx<2; idx++)
+                m_rbb[idx] = new BufferImpl( m_mbb[idx], m_nextBlockPos );
             m_idx = 0;
         }
 
@@ -126,17 +154,21 @@ public abstract class ShMem
                 {
                     pos += size;
                     buf.limit( pos );
-                    //FIXME listener.onDataReceived( buf );
+                    listener.onDataReceived( m_rbb[m_idx] );
+                    /* limit can be changed by listener,
+                     * let's set it again to avoid exception.
+                     */
+                    buf.limit( pos );
                     buf.position( pos );
                     return 0;
                 }
 
                 buf.limit( m_nextBlockPos );
-                //FIXME listener.onDataReceived( buf );
+                listener.onDataReceived( m_rbb[m_idx] );
 
                 buf.clear();
                 final int nextIdx = buf.getInt( m_nextBlockPos );
-                buf.putInt( m_nextBlockPos, -1 );
+                m_rbb[m_idx].release();
                 size -= blockBytes;
 
                 if ((nextIdx >= m_mbb.length) || (m_mbb[nextIdx] == null))
@@ -147,6 +179,10 @@ public abstract class ShMem
                         MappedByteBuffer [] mbb = new MappedByteBuffer[m_mbb.length*2];
                         System.arraycopy( m_mbb, 0, mbb, 0, m_mbb.length );
                         m_mbb = mbb;
+
+                        RetainableByteBuffer [] rbb = new RetainableByteBuffer[m_rbb.length*2];
+                        System.arraycopy( m_rbb, 0, rbb, 0, m_rbb.length );
+                        m_rbb = rbb;
                     }
 
                     MappedByteBuffer nextBuf;
@@ -170,6 +206,7 @@ public abstract class ShMem
                     }
 
                     m_mbb[nextIdx] = nextBuf;
+                    m_rbb[nextIdx] = new BufferImpl( nextBuf, m_nextBlockPos );
                 }
 
                 m_idx = nextIdx;
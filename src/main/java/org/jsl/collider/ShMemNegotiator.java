@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-Collider framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.collider;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Session listener running shared memory IPC negotiation
+ * before the user session listener is created.
+ * Negotiation protocol:
+ *   connector -> acceptor:
+ *     int  : message length (4 if shared memory IPC is not requested)
+ *          : ShMemClient descriptor
+ *   acceptor -> connector (only if shared memory IPC was requested):
+ *     int  : 1 - accepted, 0 - rejected
+ */
+
+class ShMemNegotiator implements Session.Listener
+{
+    private static final Logger s_logger = Logger.getLogger( "org.jsl.collider.ShMem" );
+    private static final int MESSAGE_MAX_SIZE = (16 * 1024);
+
+    private final SessionEmitterImpl m_emitter;
+    private final SessionImpl m_session;
+    private final boolean m_client;
+    private ShMemClient m_shMem;
+    private ByteBuffer m_buf;
+    private int m_messageLength;
+    private boolean m_done;
+
+    private static boolean isLocalAddress( SocketAddress socketAddress )
+    {
+        if (!(socketAddress instanceof InetSocketAddress))
+            return false;
+
+        final InetAddress addr = ((InetSocketAddress) socketAddress).getAddress();
+        if (addr.isLoopbackAddress())
+            return true;
+
+        try
+        {
+            return (NetworkInterface.getByInetAddress(addr) != null);
+        }
+        catch (final SocketException ex)
+        {
+            if (s_logger.isLoggable(Level.FINE))
+                s_logger.fine( socketAddress + ": " + ex.toString() );
+            return false;
+        }
+    }
+
+    private ShMemNegotiator( SessionEmitterImpl emitter, SessionImpl session, ShMemClient shMem )
+    {
+        m_emitter = emitter;
+        m_session = session;
+        m_client = (shMem != null);
+        m_shMem = shMem;
+        m_buf = ByteBuffer.allocate( m_client ? 4 : 256 );
+        m_messageLength = 0;
+        m_done = false;
+    }
+
+    /**
+     * Returns a negotiator to be used as the session listener
+     * while negotiation is running, or null if the user session listener
+     * can be created right now.
+     */
+    public static ShMemNegotiator start(
+            SessionEmitterImpl emitter, SessionImpl session, boolean client, int blockSize )
+    {
+        if (!client)
+            return new ShMemNegotiator( emitter, session, null );
+
+        final SocketAddress localAddress = session.getLocalAddress();
+        final SocketAddress remoteAddress = session.getRemoteAddress();
+        ShMemClient shMem = null;
+
+        if (isLocalAddress(remoteAddress) && (localAddress instanceof InetSocketAddress))
+        {
+            final String fileHint = Integer.toString( ((InetSocketAddress) localAddress).getPort() );
+            try
+            {
+                shMem = new ShMemClient( fileHint, blockSize );
+            }
+            catch (final IOException ex)
+            {
+                if (s_logger.isLoggable(Level.WARNING))
+                    s_logger.warning( localAddress + " -> " + remoteAddress + ": " + ex.toString() );
+            }
+        }
+
+        if (shMem == null)
+        {
+            final ByteBuffer request = ByteBuffer.allocate( 4 );
+            request.putInt( 0, 4 );
+            session.sendData( request );
+            return null;
+        }
+
+        final int descriptorLength = shMem.getDescriptorLength();
+        final ByteBuffer request = ByteBuffer.allocate( 4 + descriptorLength );
+        request.putInt( 4 + descriptorLength );
+        shMem.getDescriptor( request );
+        request.flip();
+        session.sendData( request );
+
+        if (s_logger.isLoggable(Level.FINE))
+            s_logger.fine( localAddress + " -> " + remoteAddress + ": requesting ShMem IPC (" + shMem + ")." );
+
+        return new ShMemNegotiator( emitter, session, shMem );
+    }
+
+    private void copyData( ByteBuffer src, int bytes )
+    {
+        final int limit = src.limit();
+        if (src.remaining() > bytes)
+            src.limit( src.position() + bytes );
+        m_buf.put( src );
+        src.limit( limit );
+    }
+
+    private void handleRequest()
+    {
+        final int length = m_buf.getInt();
+        if (length == 4)
+            return;
+
+        ShMemServer shMem = null;
+        if (isLocalAddress(m_session.getRemoteAddress()))
+        {
+            try
+            {
+                shMem = new ShMemServer( m_buf );
+            }
+            catch (final Exception ex)
+            {
+                if (s_logger.isLoggable(Level.WARNING))
+                    s_logger.warning( m_session.getRemoteAddress() + ": " + ex.toString() );
+            }
+        }
+
+        final ByteBuffer reply = ByteBuffer.allocate( 4 );
+        if (shMem == null)
+        {
+            reply.putInt( 0, 0 );
+            m_session.sendData( reply );
+        }
+        else
+        {
+            reply.putInt( 0, 1 );
+            m_session.accelerate( shMem, reply );
+        }
+    }
+
+    private void handleReply()
+    {
+        if (m_buf.getInt() == 1)
+            m_session.accelerate( m_shMem, null );
+        else
+        {
+            if (s_logger.isLoggable(Level.FINE))
+                s_logger.fine( m_session.getLocalAddress() + ": ShMem IPC rejected by peer." );
+            m_shMem.close();
+        }
+        m_shMem = null;
+    }
+
+    public void onDataReceived( RetainableByteBuffer data )
+    {
+        if (m_buf == null)
+        {
+            /* Negotiation failed, session is being closed. */
+            return;
+        }
+
+        final ByteBuffer buf = data.getNioByteBuffer();
+        if (m_buf.position() < 4)
+        {
+            copyData( buf, 4 - m_buf.position() );
+            if (m_buf.position() < 4)
+                return;
+
+            final int length = (m_client ? 4 : m_buf.getInt(0));
+            if ((length < 4) || (length > MESSAGE_MAX_SIZE))
+            {
+                if (s_logger.isLoggable(Level.WARNING))
+                {
+                    s_logger.warning(
+                            m_session.getRemoteAddress() + ": invalid ShMem IPC request (" +
+                            length + " bytes), peer does not use ShMem negotiation?" );
+                }
+                m_buf = null;
+                m_session.closeConnection();
+                return;
+            }
+
+            if (length > m_buf.capacity())
+            {
+                final ByteBuffer newBuf = ByteBuffer.allocate( length );
+                m_buf.flip();
+                newBuf.put( m_buf );
+                m_buf = newBuf;
+            }
+            m_messageLength = length;
+        }
+
+        copyData( buf, m_messageLength - m_buf.position() );
+        if (m_buf.position() < m_messageLength)
+            return;
+
+        if (!m_emitter.removeNegotiator(this))
+        {
+            /* Aborted, session is being closed. */
+            m_buf = null;
+            return;
+        }
+
+        m_buf.flip();
+        if (m_client)
+            handleReply();
+        else
+            handleRequest();
+        m_buf = null;
+        m_done = true;
+
+        final Session.Listener sessionListener = m_emitter.createSessionListener( m_session );
+        if (sessionListener == null)
+            m_session.closeConnection();
+        else
+        {
+            m_session.replaceListener( sessionListener );
+            if (buf.remaining() > 0)
+                m_session.getDataListener().onDataReceived( data );
+        }
+    }
+
+    /* Called when the emitter is being stopped. */
+    public void abort()
+    {
+        if (s_logger.isLoggable(Level.FINE))
+            s_logger.fine( m_session.getRemoteAddress() + ": ShMem IPC negotiation aborted." );
+        m_session.closeConnection();
+    }
+
+    public void onConnectionClosed()
+    {
+        if (!m_done)
+        {
+            m_done = true;
+            m_emitter.removeNegotiator( this );
+            if (m_shMem != null)
+            {
+                m_shMem.close();
+                m_shMem = null;
+            }
+            m_emitter.releaseSessionMonitor();
+        }
+    }
+}
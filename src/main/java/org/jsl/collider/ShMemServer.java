@@ -20,6 +20,7 @@
 package org.jsl.collider;
 
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 
@@ -29,6 +30,11 @@ public class ShMemServer extends ShMem
     private final ChannelOut m_out;
 
     public ShMemServer( RetainableByteBuffer buf ) throws Exception
+    {
+        this( buf.getNioByteBuffer() );
+    }
+
+    ShMemServer( ByteBuffer buf ) throws Exception
     {
         final short descriptorVersion = buf.getShort();
         final int bufLimit = buf.limit();
@@ -40,12 +46,12 @@ public class ShMemServer extends ShMem
 
         final int length = buf.getShort();
         buf.limit( buf.position() + length );
-        final File fileC2S = new File( decoder.decode(buf.getNioByteBuffer()).toString() );
+        final File fileC2S = new File( decoder.decode(buf).toString() );
         m_in = new ChannelIn( fileC2S, blockSize, false );
 
         buf.limit( bufLimit );
         buf.getShort();
-        final File fileS2C = new File( decoder.decode(buf.getNioByteBuffer()).toString() );
+        final File fileS2C = new File( decoder.decode(buf).toString() );
         m_out = new ChannelOut( fileS2C, blockSize, false );
     }
 
@@ -22,6 +22,7 @@ package org.jsl.collider;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.logging.Level;
@@ -59,6 +60,14 @@ class SocketChannelReader extends ThreadPool.Runnable
         }
     }
 
+    private class QuotaResumer implements Runnable
+    {
+        public void run()
+        {
+            resume( SUSPEND_QUOTA );
+        }
+    }
+
     private class Stopper extends ColliderImpl.SelectorThreadRunnable
     {
         private int m_waits;
@@ -127,16 +136,17 @@ class SocketChannelReader extends ThreadPool.Runnable
         {
             m_closeListener.onConnectionClosed();
             logStats();
+            releaseDataBlocks();
+        }
+    }
 
-            assert( m_head == m_tail );
-            if (m_tail.next != null)
-            {
-                m_tail.next.release();
-                m_tail.next = null;
-            }
-            m_tail.release();
-            m_head = null;
-            m_tail = null;
+    private class DataHandler extends ThreadPool.Runnable
+    {
+        public void runInThreadPool()
+        {
+            /* Data read by the selector thread is too large to be handled inline. */
+            handleData( m_state.get() );
+            m_statHandleData++;
         }
     }
 
@@ -189,6 +199,7 @@ class SocketChannelReader extends ThreadPool.Runnable
         public void onConnectionClosed()
         {
             m_listener.onConnectionClosed();
+            m_shMem.close();
         }
     }
 
@@ -215,6 +226,18 @@ class SocketChannelReader extends ThreadPool.Runnable
         if ((state & CLOSE) != 0)
             ret += "CLOSE ";
 
+        if ((state & PAUSED) != 0)
+            ret += "PAUSED ";
+
+        if ((state & SUSPEND_QUOTA) != 0)
+            ret += "SUSPEND_QUOTA ";
+
+        if ((state & SUSPEND_USER) != 0)
+            ret += "SUSPEND_USER ";
+
+        if ((state & SUSPEND_RELAY) != 0)
+            ret += "SUSPEND_RELAY ";
+
         ret += (state & LENGTH_MASK);
         ret += "]";
         return ret;
@@ -228,9 +251,20 @@ class SocketChannelReader extends ThreadPool.Runnable
 
     private static final DummyListener s_dummyListener = new DummyListener();
 
-    private static final int LENGTH_MASK = 0x0FFFFFFF;
-    private static final int STOP        = 0x10000000;
-    private static final int CLOSE       = 0x20000000;
+    /* PAUSED is set by the reader when it does not restart
+     * reading because of the input queue size or suspension,
+     * reading is restarted by the one who clears the flag.
+     * Each SUSPEND_* flag is a separate reason of the suspension,
+     * reading is suspended while any of them is set.
+     */
+    private static final int LENGTH_MASK   = 0x03FFFFFF;
+    private static final int PAUSED        = 0x04000000;
+    private static final int SUSPEND_QUOTA = 0x08000000;
+    private static final int STOP          = 0x10000000;
+    private static final int CLOSE         = 0x20000000;
+    static final int SUSPEND_USER          = 0x40000000;
+    static final int SUSPEND_RELAY         = 0x80000000;
+    private static final int SUSPEND_MASK  = (SUSPEND_QUOTA | SUSPEND_USER | SUSPEND_RELAY);
 
     private final ColliderImpl m_collider;
     private final SessionImpl m_session;
@@ -241,6 +275,7 @@ class SocketChannelReader extends ThreadPool.Runnable
     private volatile Session.Listener m_dataListener;
     private Session.Listener m_closeListener;
     private ShMemListener m_shMemListener;
+    private final FrameListener m_frameListener;
 
     private final Starter0 m_starter0;
     private final Starter1 m_starter1;
@@ -250,9 +285,68 @@ class SocketChannelReader extends ThreadPool.Runnable
     private RetainableDataBlock m_head;
     private RetainableDataBlock m_tail;
 
+    /* Read quota: token bucket refilled with readRate bytes per second
+     * and maximum bytes read at once, both are accessed by the reader only.
+     * Tokens can become negative, reading is suspended then
+     * for the time needed to pay the debt.
+     */
+    private final int m_readRate;
+    private final long m_readBurst;
+    private final int m_readRoundMax;
+    private final double m_readTokensPerNano;
+    private long m_readTokens;
+    private long m_readRefillTime;
+
+    /* Inline mode: the reader is run by the selector thread,
+     * data not larger than m_inlineMaxSize is handled there as well,
+     * larger data is handled in the thread pool. Reader switches
+     * to the thread pool if the listener spends more than
+     * m_inlineMaxTime nanoseconds in the selector thread in most
+     * of the INLINE_WINDOW calls (a single slow call can be caused
+     * by the JIT compilation or GC).
+     */
+    private static final int INLINE_WINDOW = 64;
+    private final int m_inlineMaxSize;
+    private final long m_inlineMaxTime;
+    private final DataHandler m_dataHandler;
+    private volatile boolean m_inline;
+    private int m_inlineCalls;
+    private int m_inlineSlowCalls;
+
     private int m_statReads;
     private int m_statHandleData;
 
+    /* Reading stops when the number of bytes ready reaches
+     * forwardReadMaxSize, but one read can add up to 2 blocks more,
+     * the total should still fit into the LENGTH_MASK bits.
+     */
+    static int getForwardReadMaxSizeLimit( int blockSize )
+    {
+        return (LENGTH_MASK - 2*blockSize);
+    }
+
+    private boolean isBlocked( int state )
+    {
+        /* Suspension does not matter after stop() */
+        return ((state & LENGTH_MASK) >= m_forwardReadMaxSize) ||
+               (((state & SUSPEND_MASK) != 0) && ((state & STOP) == 0));
+    }
+
+    private void releaseDataBlocks()
+    {
+        /* The head block can still be there if it was handled up to the end. */
+        RetainableDataBlock block = m_head;
+        while (block != null)
+        {
+            final RetainableDataBlock next = block.next;
+            block.next = null;
+            block.release();
+            block = next;
+        }
+        m_head = null;
+        m_tail = null;
+    }
+
     private void handleData( int state )
     {
         handleDataLoop: for (;;)
@@ -311,13 +405,20 @@ class SocketChannelReader extends ThreadPool.Runnable
                 int newState = state;
                 newState -= bytesReady;
 
+                boolean restart = false;
+                if (((newState & (PAUSED | CLOSE)) == PAUSED) && !isBlocked(newState))
+                {
+                    newState -= PAUSED;
+                    restart = true;
+                }
+
                 if ((newState & LENGTH_MASK) == 0)
                 {
                     if (m_state.compareAndSet(state, newState))
                     {
                         if ((newState & CLOSE) == 0)
                         {
-                            if ((state & LENGTH_MASK) >= m_forwardReadMaxSize)
+                            if (restart)
                                 m_collider.executeInSelectorThread( m_starter0 );
                         }
                         else
@@ -325,15 +426,7 @@ class SocketChannelReader extends ThreadPool.Runnable
                             m_closeListener.onConnectionClosed();
                             logStats();
 
-                            assert( m_head == m_tail );
-                            if (m_tail.next != null)
-                            {
-                                m_tail.next.release();
-                                m_tail.next = null;
-                            }
-                            m_tail.release();
-                            m_head = null;
-                            m_tail = null;
+                            releaseDataBlocks();
                         }
                         break handleDataLoop;
                     }
@@ -342,12 +435,8 @@ class SocketChannelReader extends ThreadPool.Runnable
                 {
                     if (m_state.compareAndSet(state, newState))
                     {
-                        if (((state & LENGTH_MASK) >= m_forwardReadMaxSize) &&
-                            ((newState & LENGTH_MASK) < m_forwardReadMaxSize) &&
-                            ((newState & CLOSE) == 0))
-                        {
+                        if (restart)
                             m_collider.executeInSelectorThread( m_starter0 );
-                        }
                         state = newState;
                         break;
                     }
@@ -364,8 +453,16 @@ class SocketChannelReader extends ThreadPool.Runnable
             RetainableDataBlockCache dataBlockCache,
             SocketChannel socketChannel,
             SelectionKey selectionKey,
-            Session.Listener sessionListener )
+            Session.Listener sessionListener,
+            FrameListener frameListener,
+            SessionEmitter sessionEmitter )
     {
+        if (frameListener != null)
+        {
+            frameListener.replaceListener( sessionListener );
+            sessionListener = frameListener;
+        }
+
         m_collider = colliderImpl;
         m_session = session;
         m_forwardReadMaxSize = forwardReadMaxSize;
@@ -374,6 +471,7 @@ class SocketChannelReader extends ThreadPool.Runnable
         m_selectionKey = selectionKey;
         m_dataListener = sessionListener;
         m_closeListener = sessionListener;
+        m_frameListener = frameListener;
         m_starter0 = new Starter0();
         m_starter1 = new Starter1();
         m_suspender = new Suspender();
@@ -381,6 +479,32 @@ class SocketChannelReader extends ThreadPool.Runnable
         m_iov = new ByteBuffer[2];
         m_head = m_dataBlockCache.get(2);
         m_tail = m_head;
+
+        final int readRate = sessionEmitter.readRateLimit;
+        final int readBurst = sessionEmitter.readBurstSize;
+        m_readRate = readRate;
+        m_readBurst = ((readBurst > 0) ? readBurst : Math.max(readRate/10, 1));
+        m_readRoundMax = sessionEmitter.readRoundMaxSize;
+        m_readTokensPerNano = (readRate / 1000000000.0d);
+        m_readTokens = m_readBurst;
+        m_readRefillTime = System.nanoTime();
+
+        final int inlineMaxSize = sessionEmitter.inlineReadMaxSize;
+        m_inlineMaxSize = inlineMaxSize;
+        m_inlineMaxTime = (sessionEmitter.inlineReadMaxTime * 1000L);
+        m_dataHandler = ((inlineMaxSize > 0) ? new DataHandler() : null);
+        m_inline = (inlineMaxSize > 0);
+    }
+
+    private void refillReadTokens()
+    {
+        final long currentTime = System.nanoTime();
+        final long elapsed = (currentTime - m_readRefillTime);
+        if (elapsed > 0)
+        {
+            m_readTokens = Math.min( m_readBurst, m_readTokens + (long) (elapsed * m_readTokensPerNano) );
+            m_readRefillTime = currentTime;
+        }
     }
 
     private void logStats()
@@ -394,13 +518,39 @@ class SocketChannelReader extends ThreadPool.Runnable
     }
 
     public void runInThreadPool()
+    {
+        read( false );
+    }
+
+    public final boolean isInline()
+    {
+        return m_inline;
+    }
+
+    public final void runInline()
+    {
+        /* Called by the selector thread instead of the thread pool dispatch. */
+        read( true );
+    }
+
+    private void read( boolean inline )
     {
         /* In a case if the queue is empty
          * we could try to reuse data blocks from the beginning.
          */
         if ((m_state.get() & LENGTH_MASK) == 0)
         {
-            assert( m_head == m_tail );
+            if (m_head != m_tail)
+            {
+                /* Previous read ended exactly at the end of the head block,
+                 * the block is completely handled but still at the head.
+                 */
+                assert( m_head.next == m_tail );
+                assert( m_head.rw.position() == m_head.rw.capacity() );
+                m_head.next = null;
+                m_head.release();
+                m_head = m_tail;
+            }
             m_tail.clearSafe();
         }
 
@@ -425,10 +575,29 @@ class SocketChannelReader extends ThreadPool.Runnable
         m_iov[0] = m_tail.ww;
         m_iov[1] = m_tail.next.ww;
 
+        /* Limit the bytes read at once, the reader goes to the end
+         * of the selector queue after each read, so the sessions
+         * exceeding the limit are served in turn with others.
+         */
+        int iovc = 2;
+        if ((m_readRoundMax > 0) && (m_readRoundMax < (remaining + m_iov[1].remaining())))
+        {
+            if (m_readRoundMax <= remaining)
+            {
+                m_iov[0].limit( m_iov[0].position() + m_readRoundMax );
+                iovc = 1;
+            }
+            else
+                m_iov[1].limit( m_readRoundMax - remaining );
+        }
+
+        if (m_readRate > 0)
+            refillReadTokens();
+
         long bytesReceived;
         try
         {
-            bytesReceived = m_socketChannel.read( m_iov, 0, 2 );
+            bytesReceived = m_socketChannel.read( m_iov, 0, iovc );
             m_statReads++;
         }
         catch (final ClosedChannelException ex)
@@ -465,12 +634,21 @@ class SocketChannelReader extends ThreadPool.Runnable
             bytesReceived = 0;
         }
 
+        m_iov[0].limit( m_iov[0].capacity() );
+        m_iov[1].limit( m_iov[1].capacity() );
         m_iov[0] = null;
         m_iov[1] = null;
 
         int state = m_state.get();
         if (bytesReceived > 0)
         {
+            boolean quotaExceeded = false;
+            if (m_readRate > 0)
+            {
+                m_readTokens -= bytesReceived;
+                quotaExceeded = (m_readTokens <= 0);
+            }
+
             for (;;)
             {
                 int newState = state;
@@ -479,6 +657,12 @@ class SocketChannelReader extends ThreadPool.Runnable
 
                 assert( newState < LENGTH_MASK );
                 newState |= (state & ~LENGTH_MASK);
+                if (quotaExceeded)
+                    newState |= SUSPEND_QUOTA;
+
+                assert( (newState & PAUSED) == 0 );
+                if (isBlocked(newState))
+                    newState |= PAUSED;
 
                 if (m_state.compareAndSet(state, newState))
                 {
@@ -489,6 +673,12 @@ class SocketChannelReader extends ThreadPool.Runnable
                 state = m_state.get();
             }
 
+            if (quotaExceeded)
+            {
+                final long delay = ((-m_readTokens * 1000 / m_readRate) + 1);
+                m_collider.getTimerQueue().schedule( new QuotaResumer(), delay, TimeUnit.MILLISECONDS );
+            }
+
             if (bytesReceived >= remaining)
             {
                 assert( m_tail.next != null );
@@ -496,16 +686,44 @@ class SocketChannelReader extends ThreadPool.Runnable
                 m_tail = m_tail.next;
             }
 
-            final int length = (state & LENGTH_MASK);
-            if (length < m_forwardReadMaxSize)
+            if ((state & PAUSED) == 0)
                 m_collider.executeInSelectorThreadNoWakeup( m_starter1 );
             else
                 m_collider.executeInSelectorThreadNoWakeup( m_suspender );
 
-            if (length == bytesReceived)
+            if ((state & LENGTH_MASK) == bytesReceived)
             {
-                handleData( state );
-                m_statHandleData++;
+                if (!inline)
+                {
+                    handleData( state );
+                    m_statHandleData++;
+                }
+                else if (bytesReceived > m_inlineMaxSize)
+                    m_collider.executeInThreadPool( m_dataHandler );
+                else
+                {
+                    final long startTime = System.nanoTime();
+                    handleData( state );
+                    m_statHandleData++;
+                    if ((System.nanoTime() - startTime) > m_inlineMaxTime)
+                        m_inlineSlowCalls++;
+
+                    if (++m_inlineCalls == INLINE_WINDOW)
+                    {
+                        if (m_inlineSlowCalls > (INLINE_WINDOW / 2))
+                        {
+                            m_inline = false;
+                            if (s_logger.isLoggable(Level.FINE))
+                            {
+                                s_logger.fine(
+                                        m_session.getLocalAddress() + " -> " + m_session.getRemoteAddress() +
+                                        ": listener is too slow for inline read, switched to the thread pool." );
+                            }
+                        }
+                        m_inlineCalls = 0;
+                        m_inlineSlowCalls = 0;
+                    }
+                }
             }
         }
         else
@@ -535,14 +753,14 @@ class SocketChannelReader extends ThreadPool.Runnable
 
             if ((state & LENGTH_MASK) == 0)
             {
-                m_closeListener.onConnectionClosed();
-                logStats();
-                assert( m_head == m_tail );
-                m_tail.next.release();
-                m_tail.next = null;
-                m_tail.release();
-                m_head = null;
-                m_tail = null;
+                if (inline)
+                    m_collider.executeInThreadPool( new CloseNotifier() );
+                else
+                {
+                    m_closeListener.onConnectionClosed();
+                    logStats();
+                    releaseDataBlocks();
+                }
             }
         }
     }
@@ -552,7 +770,12 @@ class SocketChannelReader extends ThreadPool.Runnable
         /* Supposed to be called from the SessionListener.onDataReceived() trace only,
          * but keep in mind Session.closeConnection() can be called any time.
          */
-        if (m_shMemListener == null)
+        if (m_frameListener != null)
+        {
+            /* Frame listener always stays the innermost one. */
+            return m_frameListener.replaceListener( newListener );
+        }
+        else if (m_shMemListener == null)
         {
             for (;;)
             {
@@ -579,10 +802,16 @@ class SocketChannelReader extends ThreadPool.Runnable
             return m_shMemListener.replaceListener( newListener );
     }
 
+    public final Session.Listener getDataListener()
+    {
+        return m_dataListener;
+    }
+
     public final void accelerate( ShMem.ChannelIn shMemIn )
     {
         /* Supposed to be called only from the Session.Listener.onDataReceived() trace only. */
         assert( m_shMemListener == null );
+        m_inline = false;
         final Session.Listener dataListener = m_dataListener;
         if (dataListener == s_dummyListener)
         {
@@ -615,13 +844,7 @@ class SocketChannelReader extends ThreadPool.Runnable
          */
         m_closeListener.onConnectionClosed();
 
-        assert( m_head == m_tail );
-        assert( m_head.next != null );
-        m_head.next.release();
-        m_head.next = null;
-        m_head.release();
-        m_head = null;
-        m_tail = null;
+        releaseDataBlocks();
     }
 
     public final void start()
@@ -629,6 +852,49 @@ class SocketChannelReader extends ThreadPool.Runnable
         m_collider.executeInSelectorThread( m_starter0 );
     }
 
+    /**
+     * Suspends reading from the socket after the current read (if any).
+     * Data already read will be delivered to the listener.
+     * Can be called from any thread, does nothing if already suspended
+     * for the same reason.
+     */
+    public final void suspend( int reason )
+    {
+        for (;;)
+        {
+            final int state = m_state.get();
+            if ((state & reason) == reason)
+                break;
+            if (m_state.compareAndSet(state, state|reason))
+                break;
+        }
+    }
+
+    public final void resume( int reason )
+    {
+        for (;;)
+        {
+            final int state = m_state.get();
+            if ((state & reason) == 0)
+                break;
+
+            int newState = (state & ~reason);
+            boolean restart = false;
+            if (((newState & (PAUSED | CLOSE)) == PAUSED) && !isBlocked(newState))
+            {
+                newState -= PAUSED;
+                restart = true;
+            }
+
+            if (m_state.compareAndSet(state, newState))
+            {
+                if (restart)
+                    m_collider.executeInSelectorThread( m_starter0 );
+                break;
+            }
+        }
+    }
+
     public final void stop()
     {
         /*
@@ -648,7 +914,7 @@ class SocketChannelReader extends ThreadPool.Runnable
                 break;
             }
 
-            if ((state & LENGTH_MASK) >= m_forwardReadMaxSize)
+            if ((state & PAUSED) != 0)
             {
                 final int newState = (state | CLOSE);
                 if (m_state.compareAndSet(state, newState))
@@ -660,6 +926,10 @@ class SocketChannelReader extends ThreadPool.Runnable
                                 ": " + stateToString(state) + " -> " + stateToString(newState) + "." );
                     }
                     m_session.releaseSocket( "SocketChannelReader.stop()" );
+
+                    /* Reading can be suspended while the input queue is empty. */
+                    if ((newState & LENGTH_MASK) == 0)
+                        m_collider.executeInThreadPool( new CloseNotifier() );
                     break;
                 }
             }
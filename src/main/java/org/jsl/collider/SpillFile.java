@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-Collider framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.collider;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Overflow file of the session output queue.
+ * Producers append data at the positions allocated atomically,
+ * the session writer sends it back with FileChannel.transferTo().
+ * Space is reused from the beginning when all the data is sent.
+ */
+
+class SpillFile
+{
+    private static final Logger s_logger = Logger.getLogger( "org.jsl.collider.Session" );
+
+    private final File m_file;
+    private final FileChannel m_fileChannel;
+    private final AtomicLong m_position;
+    private final AtomicLong m_pending;
+
+    public SpillFile( File directory ) throws IOException
+    {
+        m_file = File.createTempFile( "jsc-", ".spill", directory );
+        m_fileChannel = new RandomAccessFile(m_file, "rw").getChannel();
+        m_position = new AtomicLong();
+        m_pending = new AtomicLong();
+    }
+
+    SpillFile()
+    {
+        /* Marker instance. */
+        m_file = null;
+        m_fileChannel = null;
+        m_position = null;
+        m_pending = null;
+    }
+
+    public final FileChannel getFileChannel()
+    {
+        return m_fileChannel;
+    }
+
+    public final long getPending()
+    {
+        return m_pending.get();
+    }
+
+    /* Returns a position of the data in the file or -1. */
+    public final long write( ByteBuffer [] data, int bytes )
+    {
+        /* Pending bytes should be incremented before the space allocation,
+         * see release().
+         */
+        m_pending.addAndGet( bytes );
+        final long position = m_position.getAndAdd( bytes );
+        try
+        {
+            long pos = position;
+            for (ByteBuffer buf : data)
+            {
+                buf = buf.duplicate();
+                while (buf.remaining() > 0)
+                    pos += m_fileChannel.write( buf, pos );
+            }
+        }
+        catch (final IOException ex)
+        {
+            if (s_logger.isLoggable(Level.WARNING))
+                s_logger.warning( m_file.getAbsolutePath() + ": " + ex.toString() );
+            release( bytes );
+            return -1;
+        }
+        return position;
+    }
+
+    public final void release( long bytes )
+    {
+        if (m_pending.addAndGet(-bytes) == 0)
+        {
+            /* Any space allocated before the position was read
+             * is either sent or accounted in the pending bytes.
+             */
+            final long position = m_position.get();
+            if (m_pending.get() == 0)
+                m_position.compareAndSet( position, 0 );
+        }
+    }
+
+    public final void close()
+    {
+        try
+        {
+            m_fileChannel.close();
+        }
+        catch (final IOException ex)
+        {
+            if (s_logger.isLoggable(Level.WARNING))
+                s_logger.warning( ex.toString() );
+        }
+
+        if (!m_file.delete())
+        {
+            if (s_logger.isLoggable(Level.WARNING))
+                s_logger.warning( "File.delete('" + m_file.getAbsolutePath() + "') failed." );
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-Collider framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.collider;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/*
+ * Unix domain socket channels are available since Java 16,
+ * framework still can be used with the older Java versions,
+ * so the API is accessed via reflection.
+ */
+
+class UnixDomainSocket
+{
+    /* File type bits of the unix:mode attribute, see stat(2). */
+    private static final int S_IFMT   = 0170000;
+    private static final int S_IFSOCK = 0140000;
+
+    private static final ProtocolFamily s_protocolFamily;
+    private static final Class<?> s_addressClass;
+    private static final Method s_addressOf;
+    private static final Method s_addressGetPath;
+    private static final Method s_socketChannelOpen;
+    private static final Method s_serverSocketChannelOpen;
+
+    static
+    {
+        ProtocolFamily protocolFamily = null;
+        Class<?> addressClass = null;
+        Method addressOf = null;
+        Method addressGetPath = null;
+        Method socketChannelOpen = null;
+        Method serverSocketChannelOpen = null;
+        try
+        {
+            addressClass = Class.forName( "java.net.UnixDomainSocketAddress" );
+            addressOf = addressClass.getMethod( "of", String.class );
+            addressGetPath = addressClass.getMethod( "getPath" );
+            socketChannelOpen = SocketChannel.class.getMethod( "open", ProtocolFamily.class );
+            serverSocketChannelOpen = ServerSocketChannel.class.getMethod( "open", ProtocolFamily.class );
+            protocolFamily = StandardProtocolFamily.valueOf( "UNIX" );
+        }
+        catch (final Exception ex)
+        {
+            addressClass = null;
+        }
+
+        if (addressClass == null)
+        {
+            s_protocolFamily = null;
+            s_addressClass = null;
+            s_addressOf = null;
+            s_addressGetPath = null;
+            s_socketChannelOpen = null;
+            s_serverSocketChannelOpen = null;
+        }
+        else
+        {
+            s_protocolFamily = protocolFamily;
+            s_addressClass = addressClass;
+            s_addressOf = addressOf;
+            s_addressGetPath = addressGetPath;
+            s_socketChannelOpen = socketChannelOpen;
+            s_serverSocketChannelOpen = serverSocketChannelOpen;
+        }
+    }
+
+    private static Object invoke( Method method, Object obj, Object... args ) throws IOException
+    {
+        if (method == null)
+            throw new IOException( "Unix domain sockets are not supported by the Java runtime." );
+
+        try
+        {
+            return method.invoke( obj, args );
+        }
+        catch (final InvocationTargetException ex)
+        {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException( cause );
+        }
+        catch (final IllegalAccessException ex)
+        {
+            throw new IOException( ex );
+        }
+    }
+
+    public static boolean isSupported()
+    {
+        return (s_addressClass != null);
+    }
+
+    public static boolean isUnixAddress( SocketAddress addr )
+    {
+        return (s_addressClass != null) && s_addressClass.isInstance( addr );
+    }
+
+    public static SocketAddress createAddress( String path ) throws IOException
+    {
+        return (SocketAddress) invoke( s_addressOf, null, path );
+    }
+
+    public static SocketChannel openSocketChannel() throws IOException
+    {
+        return (SocketChannel) invoke( s_socketChannelOpen, null, s_protocolFamily );
+    }
+
+    public static ServerSocketChannel openServerSocketChannel() throws IOException
+    {
+        return (ServerSocketChannel) invoke( s_serverSocketChannelOpen, null, s_protocolFamily );
+    }
+
+    private static boolean isSocketFile( Path path ) throws IOException
+    {
+        /* Symbolic link is not followed, it is not a socket itself. */
+        if (path.getFileSystem().supportedFileAttributeViews().contains("unix"))
+        {
+            final int mode = (Integer) Files.getAttribute( path, "unix:mode", LinkOption.NOFOLLOW_LINKS );
+            return ((mode & S_IFMT) == S_IFSOCK);
+        }
+
+        /* No unix attributes view, socket is neither a regular file,
+         * nor a directory, nor a symbolic link.
+         */
+        final BasicFileAttributes attrs =
+                Files.readAttributes( path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS );
+        return attrs.isOther();
+    }
+
+    /* Socket file is not removed when the server channel is closed,
+     * and it prevents the next bind to the same path.
+     * Anything else found at the path is not removed,
+     * the method throws an IOException then.
+     */
+    public static void deleteFile( SocketAddress addr ) throws IOException
+    {
+        final Path path = (Path) invoke( s_addressGetPath, addr );
+        if (path.toString().length() == 0)
+            return;
+
+        try
+        {
+            if (!isSocketFile(path))
+                throw new IOException( path + " exists and is not a socket." );
+        }
+        catch (final NoSuchFileException ex)
+        {
+            return;
+        }
+        Files.deleteIfExists( path );
+    }
+}
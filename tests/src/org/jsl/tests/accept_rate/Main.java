@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-Collider framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.tests.accept_rate;
+
+import org.jsl.collider.Acceptor;
+import org.jsl.collider.Collider;
+import org.jsl.collider.RetainableByteBuffer;
+import org.jsl.collider.Session;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Main
+{
+    private static class Client extends Thread
+    {
+        private final InetSocketAddress m_addr;
+        private final int m_connections;
+        private final List<SocketChannel> m_socketChannels;
+
+        public Client( InetSocketAddress addr, int connections )
+        {
+            m_addr = addr;
+            m_connections = connections;
+            m_socketChannels = new ArrayList<SocketChannel>( connections );
+        }
+
+        public void run()
+        {
+            try
+            {
+                for (int idx=0; idx<m_connections; idx++)
+                    m_socketChannels.add( SocketChannel.open(m_addr) );
+            }
+            catch (final IOException ex)
+            {
+                ex.printStackTrace();
+            }
+        }
+
+        public void close()
+        {
+            for (SocketChannel socketChannel : m_socketChannels)
+            {
+                try
+                {
+                    socketChannel.close();
+                }
+                catch (final IOException ex)
+                {
+                    ex.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static class ServerListener implements Session.Listener
+    {
+        public void onDataReceived( RetainableByteBuffer data )
+        {
+            /* Should never be called. */
+            throw new AssertionError();
+        }
+
+        public void onConnectionClosed()
+        {
+        }
+    }
+
+    private static class TestAcceptor extends Acceptor
+    {
+        private final Client [] m_clients;
+        private final int m_connections;
+        private final AtomicInteger m_sessions;
+        private long m_startTime;
+
+        public TestAcceptor( Client [] clients, int connections )
+        {
+            m_clients = clients;
+            m_connections = connections;
+            m_sessions = new AtomicInteger();
+            backlog = 1024;
+        }
+
+        public void onAcceptorStarted( Collider collider, int localPort )
+        {
+            System.out.println( "Accept rate test: port " + localPort + ", " +
+                    m_clients.length + " clients, " + m_connections + " connections." );
+
+            final InetSocketAddress addr = new InetSocketAddress( "localhost", localPort );
+            final int clientConnections = (m_connections / m_clients.length);
+            m_startTime = System.nanoTime();
+            for (int idx=0; idx<m_clients.length; idx++)
+            {
+                m_clients[idx] = new Client( addr, clientConnections );
+                m_clients[idx].start();
+            }
+        }
+
+        public Session.Listener createSessionListener( Session session )
+        {
+            final int sessions = m_sessions.incrementAndGet();
+            if (sessions == m_connections)
+            {
+                final long endTime = System.nanoTime();
+                final long elapsed = (endTime - m_startTime) / 1000;
+                System.out.println(
+                        "Accepted " + sessions + " connections in " + elapsed/1000 + " ms, " +
+                        (elapsed == 0 ? 0 : ((long)sessions * 1000000 / elapsed)) + " connections/sec." );
+                session.getCollider().stop();
+            }
+            return new ServerListener();
+        }
+    }
+
+    private static void run( int clients, int connections )
+    {
+        try
+        {
+            final Client [] clientThreads = new Client[clients];
+            final Collider collider = Collider.create();
+            collider.addAcceptor( new TestAcceptor(clientThreads, (connections / clients) * clients) );
+            collider.run();
+
+            for (Client client : clientThreads)
+            {
+                client.join();
+                client.close();
+            }
+        }
+        catch (final IOException ex)
+        {
+            ex.printStackTrace();
+        }
+        catch (final InterruptedException ex)
+        {
+            ex.printStackTrace();
+        }
+    }
+
+    public static void main( String [] args )
+    {
+        int clients = 8;
+        int connections = 5000;
+
+        if (args.length > 0)
+            clients = Integer.parseInt( args[0] );
+
+        if (args.length > 1)
+            connections = Integer.parseInt( args[1] );
+
+        run( clients, connections );
+    }
+}
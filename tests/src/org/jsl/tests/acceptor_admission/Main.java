@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-Collider framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.tests.acceptor_admission;
+
+import org.jsl.collider.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Acceptor admission control:
+ * 1) maxSessions without deferAccept: connections over the limit
+ *    are closed right after accept;
+ * 2) maxSessions with deferAccept: connections over the limit
+ *    stay in the backlog and are accepted when sessions are closed;
+ * 3) maxAcceptRate with deferAccept: removeAcceptor() called while
+ *    the accept is deferred does not wait for the resume timer.
+ */
+
+public class Main
+{
+    private static final int MAX_SESSIONS = 2;
+
+    private static final int TEST_REJECT = 0;
+    private static final int TEST_DEFER = 1;
+    private static final int TEST_REMOVE = 2;
+
+    private final AtomicInteger m_sessions;
+    private volatile boolean m_failed;
+
+    private void fail( String msg )
+    {
+        System.out.println( msg );
+        m_failed = true;
+    }
+
+    private static Socket connect( int port ) throws IOException
+    {
+        return new Socket( "localhost", port );
+    }
+
+    private static boolean isClosed( Socket socket, int timeout ) throws IOException
+    {
+        /* Returns true if the server closed the connection. */
+        socket.setSoTimeout( timeout );
+        try
+        {
+            return (socket.getInputStream().read() < 0);
+        }
+        catch (final SocketTimeoutException ex)
+        {
+            return false;
+        }
+        catch (final IOException ex)
+        {
+            /* Connection reset */
+            return true;
+        }
+    }
+
+    private boolean waitSessions( int sessions, long timeout ) throws InterruptedException
+    {
+        final long endTime = (System.currentTimeMillis() + timeout);
+        while (m_sessions.get() < sessions)
+        {
+            if (System.currentTimeMillis() > endTime)
+                return false;
+            Thread.sleep( 5 );
+        }
+        return true;
+    }
+
+    private class Client extends Thread
+    {
+        private final Collider m_collider;
+        private final TestAcceptor m_acceptor;
+        private final int m_port;
+
+        public Client( Collider collider, TestAcceptor acceptor, int port )
+        {
+            m_collider = collider;
+            m_acceptor = acceptor;
+            m_port = port;
+        }
+
+        private void testReject() throws Exception
+        {
+            final Socket [] sockets = new Socket[MAX_SESSIONS + 3];
+            for (int idx=0; idx<MAX_SESSIONS; idx++)
+                sockets[idx] = connect( m_port );
+            if (!waitSessions(MAX_SESSIONS, 2000))
+                fail( "Sessions were not started." );
+
+            for (int idx=MAX_SESSIONS; idx<sockets.length; idx++)
+            {
+                sockets[idx] = connect( m_port );
+                if (!isClosed(sockets[idx], 1000))
+                    fail( "Connection " + idx + " over the limit was not closed." );
+            }
+
+            for (int idx=0; idx<MAX_SESSIONS; idx++)
+            {
+                if (isClosed(sockets[idx], 100))
+                    fail( "Connection " + idx + " was closed." );
+            }
+
+            System.out.println( "Reject: " + m_sessions.get() + " sessions of " + sockets.length + " connections." );
+            if (m_sessions.get() != MAX_SESSIONS)
+                fail( "Expected " + MAX_SESSIONS + " sessions." );
+
+            for (Socket socket : sockets)
+                socket.close();
+        }
+
+        private void testDefer() throws Exception
+        {
+            final Socket [] sockets = new Socket[MAX_SESSIONS + 3];
+            for (int idx=0; idx<MAX_SESSIONS; idx++)
+                sockets[idx] = connect( m_port );
+            if (!waitSessions(MAX_SESSIONS, 2000))
+                fail( "Sessions were not started." );
+
+            for (int idx=MAX_SESSIONS; idx<sockets.length; idx++)
+                sockets[idx] = connect( m_port );
+
+            for (int idx=MAX_SESSIONS; idx<sockets.length; idx++)
+            {
+                if (isClosed(sockets[idx], 100))
+                    fail( "Connection " + idx + " over the limit was closed." );
+            }
+
+            if (m_sessions.get() != MAX_SESSIONS)
+                fail( "Connection over the limit was accepted." );
+
+            /* Connections are accepted as sessions are closed. */
+            int closed = 0;
+            while (closed < sockets.length)
+            {
+                final int sessions = m_sessions.get();
+                for (; closed<sessions; closed++)
+                    sockets[closed].close();
+
+                if (closed < sockets.length)
+                {
+                    final int expected = Math.min( closed + MAX_SESSIONS, sockets.length );
+                    if (!waitSessions(expected, 2000))
+                    {
+                        fail( "Deferred connections were not accepted: " + m_sessions.get() +
+                              " sessions, expected " + expected + "." );
+                        break;
+                    }
+                }
+            }
+
+            System.out.println( "Defer: " + m_sessions.get() + " sessions of " + sockets.length + " connections." );
+            for (Socket socket : sockets)
+                socket.close();
+        }
+
+        private void testRemove() throws Exception
+        {
+            final Socket [] sockets = new Socket[2];
+            sockets[0] = connect( m_port );
+            if (!waitSessions(1, 2000))
+                fail( "Session was not started." );
+
+            /* Second connection is deferred for up to a second. */
+            sockets[1] = connect( m_port );
+            Thread.sleep( 100 );
+            if (m_sessions.get() != 1)
+                fail( "Connection over the accept rate was accepted." );
+
+            final long startTime = System.nanoTime();
+            m_collider.removeAcceptor( m_acceptor );
+            final long time = ((System.nanoTime() - startTime) / 1000000);
+            System.out.println( "Remove: acceptor with deferred accept removed in " + time + " ms." );
+            if (time > 500)
+                fail( "Acceptor removal waited for the deferred accept." );
+
+            /* Resume timer fires after the acceptor is closed. */
+            Thread.sleep( 1200 );
+            if (m_sessions.get() != 1)
+                fail( "Connection accepted after the acceptor removal." );
+
+            for (Socket socket : sockets)
+                socket.close();
+        }
+
+        public void run()
+        {
+            try
+            {
+                switch (m_acceptor.getTest())
+                {
+                    case TEST_REJECT:
+                        testReject();
+                        break;
+                    case TEST_DEFER:
+                        testDefer();
+                        break;
+                    default:
+                        testRemove();
+                }
+            }
+            catch (final Exception ex)
+            {
+                ex.printStackTrace();
+                m_failed = true;
+            }
+            m_collider.stop();
+        }
+    }
+
+    private class TestAcceptor extends Acceptor
+    {
+        private final int m_test;
+
+        public TestAcceptor( int test )
+        {
+            super( new InetSocketAddress(0) );
+            m_test = test;
+            if (test == TEST_REMOVE)
+                maxAcceptRate = 1;
+            else
+                maxSessions = MAX_SESSIONS;
+            deferAccept = (test != TEST_REJECT);
+        }
+
+        public int getTest()
+        {
+            return m_test;
+        }
+
+        public void onAcceptorStarted( Collider collider, int localPort )
+        {
+            new Client(collider, this, localPort).start();
+        }
+
+        public Session.Listener createSessionListener( final Session session )
+        {
+            m_sessions.incrementAndGet();
+            return new Session.Listener()
+            {
+                public void onDataReceived( RetainableByteBuffer data )
+                {
+                }
+
+                public void onConnectionClosed()
+                {
+                    session.closeConnection();
+                }
+            };
+        }
+    }
+
+    private Main()
+    {
+        m_sessions = new AtomicInteger();
+    }
+
+    private void run( int test )
+    {
+        m_sessions.set( 0 );
+        try
+        {
+            final Collider collider = Collider.create();
+            collider.addAcceptor( new TestAcceptor(test) );
+            collider.run();
+        }
+        catch (final IOException ex)
+        {
+            ex.printStackTrace();
+        }
+
+        if (m_failed)
+            throw new AssertionError();
+    }
+
+    public static void main( String [] args )
+    {
+        final Main main = new Main();
+        main.run( TEST_REJECT );
+        main.run( TEST_DEFER );
+        main.run( TEST_REMOVE );
+    }
+}
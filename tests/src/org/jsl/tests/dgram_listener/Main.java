@@ -28,6 +28,8 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.StandardProtocolFamily;
 import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class Main
 {
@@ -155,6 +157,325 @@ public class Main
         }
     }
 
+    /* Listener with a number of channels receiving packets
+     * from a number of senders, checks the packets data
+     * and the channel index.
+     */
+    private class ChannelsListener extends DatagramListener
+    {
+        private final SourceSender m_sender;
+        private final int m_senders;
+        private final AtomicIntegerArray m_packetsReceived;
+        private final AtomicReferenceArray<SocketAddress> m_sourceAddrs;
+        private volatile boolean m_failed;
+
+        public ChannelsListener( InetSocketAddress addr, int channels, SourceSender sender, int senders )
+        {
+            super( addr );
+            this.channels = channels;
+            socketRecvBufSize = (1024 * 1024);
+            m_sender = sender;
+            m_senders = senders;
+            m_packetsReceived = new AtomicIntegerArray( channels );
+            m_sourceAddrs = new AtomicReferenceArray<SocketAddress>( channels * senders );
+        }
+
+        protected void fail( String msg )
+        {
+            if (!m_failed)
+            {
+                System.out.println( msg );
+                m_failed = true;
+            }
+        }
+
+        public boolean isFailed()
+        {
+            return m_failed;
+        }
+
+        public int getPacketsReceived( int channel )
+        {
+            return m_packetsReceived.get( channel );
+        }
+
+        protected boolean checkPacket( RetainableByteBuffer data, int channel )
+        {
+            if ((channel < 0) || (channel >= channels))
+            {
+                fail( "Invalid channel " + channel + "." );
+                return false;
+            }
+
+            final int pos = data.position();
+            final int length = data.getInt( pos );
+            final int sender = data.getInt( pos + 4 );
+            final int seq = data.getInt( pos + 8 );
+            if ((data.remaining() != length) || (length != SourceSender.packetLength(seq)))
+            {
+                fail( "Packet " + sender + ":" + seq + ": length " + length +
+                      ", received " + data.remaining() + " bytes." );
+                return false;
+            }
+
+            for (int idx=SourceSender.HEADER_SIZE; idx<length; idx++)
+            {
+                if (data.get(pos+idx) != SourceSender.patternByte(sender, seq, idx))
+                {
+                    fail( "Packet " + sender + ":" + seq + " is corrupted at " + idx + "." );
+                    return false;
+                }
+            }
+
+            m_packetsReceived.incrementAndGet( channel );
+            return true;
+        }
+
+        protected void checkSourceAddr( RetainableByteBuffer data, SocketAddress sourceAddr, int channel )
+        {
+            final int sender = data.getInt( data.position() + 4 );
+            if ((sender < 0) || (sender >= m_senders))
+            {
+                fail( "Invalid sender " + sender + "." );
+                return;
+            }
+
+            final int port = ((InetSocketAddress) sourceAddr).getPort();
+            if (port != m_sender.getPort(sender))
+            {
+                fail( "Packet from sender " + sender + " has source port " + port +
+                      ", expected " + m_sender.getPort(sender) + "." );
+                return;
+            }
+
+            /* Source address cache should return the same instance
+             * for all packets from the same sender.
+             */
+            final int idx = (channel * m_senders + sender);
+            if (!m_sourceAddrs.compareAndSet(idx, null, sourceAddr))
+            {
+                if (m_sourceAddrs.get(idx) != sourceAddr)
+                    fail( "Channel " + channel + ": source address of sender " + sender + " is not cached." );
+            }
+        }
+
+        public void onDataReceived( RetainableByteBuffer data, SocketAddress sourceAddr )
+        {
+            /* Should never be called. */
+            fail( "onDataReceived() without the channel index called." );
+        }
+
+        public void onDataReceived( RetainableByteBuffer data, SocketAddress sourceAddr, int channel )
+        {
+            if (checkPacket(data, channel))
+                checkSourceAddr( data, sourceAddr, channel );
+        }
+    }
+
+    /* Listener receiving packets in batches, checks the batch layout
+     * and counts batches flushed at the data block boundary.
+     */
+    private class BatchListener extends ChannelsListener
+    {
+        private final int [] m_fullBatches;
+        private final int [] m_blockSwitches;
+        private final RetainableByteBuffer [] m_lastData;
+
+        public BatchListener( InetSocketAddress addr, int channels, SourceSender sender, int senders, int batchMaxPackets )
+        {
+            super( addr, channels, sender, senders );
+            this.batchMaxPackets = batchMaxPackets;
+            inputQueueBlockSize = (4 * 1024);
+            readMinSize = 512;
+            m_fullBatches = new int[channels];
+            m_blockSwitches = new int[channels];
+            m_lastData = new RetainableByteBuffer[channels];
+        }
+
+        public int getFullBatches()
+        {
+            int ret = 0;
+            for (int channel=0; channel<channels; channel++)
+                ret += m_fullBatches[channel];
+            return ret;
+        }
+
+        public int getBlockSwitches()
+        {
+            int ret = 0;
+            for (int channel=0; channel<channels; channel++)
+                ret += m_blockSwitches[channel];
+            return ret;
+        }
+
+        public void onDataReceived(
+                RetainableByteBuffer data, int [] offsets, int [] lengths,
+                SocketAddress [] sourceAddrs, int packets, int channel )
+        {
+            if ((channel < 0) || (channel >= channels))
+            {
+                fail( "Invalid channel " + channel + "." );
+                return;
+            }
+
+            if ((packets <= 0) || (packets > batchMaxPackets))
+            {
+                fail( "Invalid batch size " + packets + "." );
+                return;
+            }
+
+            if ((data.position() != offsets[0]) ||
+                (data.limit() != offsets[packets-1] + lengths[packets-1]))
+            {
+                fail( "Batch [" + data.position() + ", " + data.limit() + "] does not match packets [" +
+                      offsets[0] + ", " + (offsets[packets-1] + lengths[packets-1]) + "]." );
+                return;
+            }
+
+            for (int idx=1; idx<packets; idx++)
+            {
+                if (offsets[idx] < offsets[idx-1] + lengths[idx-1])
+                {
+                    fail( "Packet " + idx + " at " + offsets[idx] + " overlaps the previous one." );
+                    return;
+                }
+            }
+
+            for (int idx=packets; idx<sourceAddrs.length; idx++)
+            {
+                if (sourceAddrs[idx] != null)
+                {
+                    fail( "Source address " + idx + " of the batch of " + packets + " is retained." );
+                    return;
+                }
+            }
+
+            /* Each channel is handled by one thread at a time,
+             * a batch in another buffer means the previous one
+             * was flushed at the data block boundary.
+             */
+            if (packets == batchMaxPackets)
+                m_fullBatches[channel]++;
+            if ((m_lastData[channel] != null) && (m_lastData[channel] != data))
+                m_blockSwitches[channel]++;
+            m_lastData[channel] = data;
+
+            final int limit = data.limit();
+            for (int idx=0; idx<packets; idx++)
+            {
+                data.limit( limit );
+                data.position( offsets[idx] );
+                data.limit( offsets[idx] + lengths[idx] );
+                if (sourceAddrs[idx] == null)
+                {
+                    fail( "Source address " + idx + " of the batch of " + packets + " is null." );
+                    return;
+                }
+                if (checkPacket(data, channel))
+                    checkSourceAddr( data, sourceAddrs[idx], channel );
+            }
+        }
+    }
+
+    private static int getFreePort() throws IOException
+    {
+        final DatagramChannel datagramChannel = DatagramChannel.open( StandardProtocolFamily.INET );
+        datagramChannel.bind( new InetSocketAddress(0) );
+        final int port = ((InetSocketAddress) datagramChannel.getLocalAddress()).getPort();
+        datagramChannel.close();
+        return port;
+    }
+
+    private void runChannels( int channels, int senders, int packets, int batchMaxPackets )
+    {
+        try
+        {
+            final InetSocketAddress addr = new InetSocketAddress( "localhost", getFreePort() );
+            final Collider collider = Collider.create();
+            final SourceSender sender = new SourceSender( addr, senders, packets );
+            final ChannelsListener listener = (batchMaxPackets > 0)
+                    ? new BatchListener( addr, channels, sender, senders, batchMaxPackets )
+                    : new ChannelsListener( addr, channels, sender, senders );
+            try
+            {
+                collider.addDatagramListener( listener );
+            }
+            catch (final IOException ex)
+            {
+                System.out.println( "Channels test skipped: " + ex.getMessage() );
+                return;
+            }
+
+            new Thread()
+            {
+                public void run()
+                {
+                    sender.start();
+                    try
+                    {
+                        sender.join();
+                        Thread.sleep( 500 );
+                    }
+                    catch (final InterruptedException ex)
+                    {
+                        ex.printStackTrace();
+                    }
+                    collider.stop();
+                }
+            }.start();
+
+            collider.run();
+
+            int packetsReceived = 0;
+            int channelsUsed = 0;
+            String str = "";
+            for (int channel=0; channel<channels; channel++)
+            {
+                final int channelPackets = listener.getPacketsReceived( channel );
+                packetsReceived += channelPackets;
+                if (channelPackets > 0)
+                    channelsUsed++;
+                str += (" " + channelPackets);
+            }
+            System.out.println(
+                    "Channels: received " + packetsReceived + " of " + sender.getPacketsSent() +
+                    " packets, per channel:" + str + "." );
+
+            if (listener.isFailed())
+                throw new AssertionError();
+
+            if (batchMaxPackets > 0)
+            {
+                final BatchListener batchListener = (BatchListener) listener;
+                System.out.println(
+                        "Batches: " + batchListener.getFullBatches() + " full, " +
+                        batchListener.getBlockSwitches() + " data block switches." );
+                if ((batchListener.getFullBatches() == 0) || (batchListener.getBlockSwitches() == 0))
+                {
+                    System.out.println( "Batches were not flushed at the data block boundary." );
+                    throw new AssertionError();
+                }
+            }
+
+            if (channelsUsed < 2)
+            {
+                System.out.println( "Packets were not balanced between channels." );
+                throw new AssertionError();
+            }
+
+            if (packetsReceived < sender.getPacketsSent()/2)
+            {
+                System.out.println( "Too many packets lost." );
+                throw new AssertionError();
+            }
+        }
+        catch (final IOException ex)
+        {
+            ex.printStackTrace();
+            throw new AssertionError();
+        }
+    }
+
     private void run( int messageLength )
     {
         try
@@ -212,6 +533,9 @@ public class Main
         System.out.println(
                 "Datagram test: " + messageLength + "." );
 
-        new Main().run( messageLength );
+        final Main main = new Main();
+        main.run( messageLength );
+        main.runChannels( 2, 16, 2000, 0 );
+        main.runChannels( 2, 16, 2000, 4 );
     }
 }
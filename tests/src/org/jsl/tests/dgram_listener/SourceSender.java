@@ -0,0 +1,115 @@
+/*
+ * JS-Collider framework tests.
+ * Copyright (C) 2013 Sergey Zubarev
+ * info@js-labs.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jsl.tests.dgram_listener;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/*
+ * Sends packets of different length from a number of channels
+ * bound to different ports. Packet: int length, int sender index,
+ * int sequence number, then the pattern bytes.
+ */
+public class SourceSender extends Thread
+{
+    public static final int HEADER_SIZE = 12;
+
+    private final InetSocketAddress m_target;
+    private final int m_packets;
+    private final DatagramChannel [] m_channels;
+    private final int [] m_ports;
+
+    public static int packetLength( int seq )
+    {
+        return (HEADER_SIZE + (seq * 37) % 400);
+    }
+
+    public static byte patternByte( int sender, int seq, int pos )
+    {
+        return (byte) (sender + seq + pos);
+    }
+
+    public SourceSender( InetSocketAddress target, int senders, int packets ) throws IOException
+    {
+        m_target = target;
+        m_packets = packets;
+        m_channels = new DatagramChannel[senders];
+        m_ports = new int[senders];
+        for (int idx=0; idx<senders; idx++)
+        {
+            m_channels[idx] = DatagramChannel.open( StandardProtocolFamily.INET );
+            m_channels[idx].bind( new InetSocketAddress(0) );
+            m_ports[idx] = ((InetSocketAddress) m_channels[idx].getLocalAddress()).getPort();
+        }
+    }
+
+    public int getPort( int sender )
+    {
+        return m_ports[sender];
+    }
+
+    public int getPacketsSent()
+    {
+        return (m_packets * m_channels.length);
+    }
+
+    public void run()
+    {
+        final ByteBuffer buf = ByteBuffer.allocate( packetLength(0) + 400 );
+        try
+        {
+            for (int seq=0; seq<m_packets; seq++)
+            {
+                final int length = packetLength( seq );
+                for (int sender=0; sender<m_channels.length; sender++)
+                {
+                    buf.clear();
+                    buf.putInt( length );
+                    buf.putInt( sender );
+                    buf.putInt( seq );
+                    for (int pos=HEADER_SIZE; pos<length; pos++)
+                        buf.put( patternByte(sender, seq, pos) );
+                    buf.flip();
+                    m_channels[sender].send( buf, m_target );
+                }
+
+                /* Let the listener keep up, loopback drops packets
+                 * when the socket receive buffer is full.
+                 */
+                Thread.sleep( 1 );
+            }
+
+            for (DatagramChannel channel : m_channels)
+                channel.close();
+        }
+        catch (final IOException ex)
+        {
+            ex.printStackTrace();
+        }
+        catch (final InterruptedException ex)
+        {
+            ex.printStackTrace();
+        }
+    }
+}
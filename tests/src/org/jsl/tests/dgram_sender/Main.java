@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-Collider framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.tests.dgram_sender;
+
+import org.jsl.collider.Collider;
+import org.jsl.collider.DatagramListener;
+import org.jsl.collider.DatagramSender;
+import org.jsl.collider.RetainableByteBuffer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Main
+{
+    private static class Listener extends DatagramListener
+    {
+        private final AtomicInteger m_packetsReceived;
+
+        public Listener( InetSocketAddress addr )
+        {
+            super( addr );
+            m_packetsReceived = new AtomicInteger();
+        }
+
+        public void onDataReceived( RetainableByteBuffer data, SocketAddress sourceAddr )
+        {
+            final int bytesReceived = data.remaining();
+            final int messageLength = data.getInt();
+            assert( bytesReceived == messageLength );
+            m_packetsReceived.incrementAndGet();
+        }
+
+        public int getPacketsReceived()
+        {
+            return m_packetsReceived.get();
+        }
+    }
+
+    private static class Sender extends Thread
+    {
+        private final Collider m_collider;
+        private final DatagramSender m_sender;
+        private final Listener m_listener;
+        private final InetSocketAddress m_addr;
+        private final int m_messages;
+        private final int m_messageLength;
+
+        public Sender( Collider collider, DatagramSender sender, Listener listener,
+                       InetSocketAddress addr, int messages, int messageLength )
+        {
+            m_collider = collider;
+            m_sender = sender;
+            m_listener = listener;
+            m_addr = addr;
+            m_messages = messages;
+            m_messageLength = messageLength;
+        }
+
+        public void run()
+        {
+            final ByteBuffer msg = ByteBuffer.allocateDirect( m_messageLength );
+            msg.putInt( 0, m_messageLength );
+
+            final long startTime = System.nanoTime();
+            for (int idx=0; idx<m_messages; idx++)
+            {
+                final int rc = m_sender.sendData( msg, m_addr );
+                assert( rc >= 0 );
+            }
+            final long endTime = System.nanoTime();
+
+            try
+            {
+                Thread.sleep( 1000 );
+            }
+            catch (final InterruptedException ex)
+            {
+                ex.printStackTrace();
+            }
+
+            final int rc = m_sender.close();
+            assert( rc == 0 );
+            assert( m_sender.sendData(msg, m_addr) == -1 );
+
+            System.out.println(
+                    "Scheduled " + m_messages + " packets in " +
+                    ((endTime - startTime) / 1000000) + " ms, received " +
+                    m_listener.getPacketsReceived() + " packets." );
+            m_collider.stop();
+        }
+    }
+
+    private void run( int messages, int messageLength )
+    {
+        try
+        {
+            /* Unicast DatagramListener receives datagrams
+             * sent from the same address only.
+             */
+            final DatagramChannel datagramChannel = DatagramChannel.open( StandardProtocolFamily.INET );
+            datagramChannel.bind( new InetSocketAddress(0) );
+            final InetSocketAddress listenAddr =
+                    new InetSocketAddress( "localhost", datagramChannel.socket().getLocalPort() );
+            datagramChannel.close();
+
+            final Collider collider = Collider.create();
+            final Listener listener = new Listener( listenAddr );
+            listener.socketRecvBufSize = (4 * 1024 * 1024);
+            collider.addDatagramListener( listener );
+
+            final DatagramSender sender = collider.createDatagramSender( listenAddr, null );
+            System.out.println( "Sender " + sender.getLocalAddress() + " -> " + listenAddr );
+
+            final Sender senderThread = new Sender( collider, sender, listener, listenAddr, messages, messageLength );
+            senderThread.start();
+
+            collider.run();
+            senderThread.join();
+        }
+        catch (final IOException ex)
+        {
+            ex.printStackTrace();
+        }
+        catch (final InterruptedException ex)
+        {
+            ex.printStackTrace();
+        }
+    }
+
+    public static void main( String [] args )
+    {
+        int messages = 10000;
+        int messageLength = 100;
+
+        if (args.length > 0)
+            messages = Integer.parseInt( args[0] );
+
+        if (args.length > 1)
+            messageLength = Integer.parseInt( args[1] );
+
+        System.out.println( "Datagram sender test: " + messages + " packets, " + messageLength + " bytes." );
+
+        new Main().run( messages, messageLength );
+    }
+}
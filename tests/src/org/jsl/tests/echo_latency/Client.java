@@ -21,16 +21,17 @@ package org.jsl.tests.echo_latency;
 
 import org.jsl.tests.Util;
 import java.io.IOException;
-import java.net.Socket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 
 public class Client
 {
-    private InetSocketAddress m_addr;
+    private SocketAddress m_addr;
     private final int m_messages;
     private final ByteBuffer m_msg;
     private final Thread [] m_threads;
@@ -44,11 +45,11 @@ public class Client
                 final ByteBuffer msg = m_msg.duplicate();
                 final ByteBuffer buf = ByteBuffer.allocateDirect( m_msg.capacity() );
                 final SocketChannel socketChannel = SocketChannel.open( m_addr );
-                final Socket socket = socketChannel.socket();
-                socket.setTcpNoDelay( true );
-                System.out.println( 
-                        "Client socket connected " + socket.getLocalSocketAddress() +
-                        " -> " + socket.getRemoteSocketAddress() + "." );
+                if (m_addr instanceof InetSocketAddress)
+                    socketChannel.setOption( StandardSocketOptions.TCP_NODELAY, true );
+                System.out.println(
+                        "Client socket connected " + socketChannel.getLocalAddress() +
+                        " -> " + socketChannel.getRemoteAddress() + "." );
 
                 /* warming up */
                 for (int idx=0; idx<100; idx++)
@@ -101,7 +102,7 @@ public class Client
             m_threads[idx] = new SessionThread();
     }
 
-    public void start( InetSocketAddress addr )
+    public void start( SocketAddress addr )
     {
         m_addr = addr;
         for (Thread thread : m_threads)
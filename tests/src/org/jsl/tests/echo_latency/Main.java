@@ -26,6 +26,7 @@ public class Main
         int sessions = 1;
         int messages = 1000;
         int messageLength = 500;
+        boolean unixSocket = false;
 
         if (args.length > 0)
             sessions = Integer.parseInt( args[0] );
@@ -36,13 +37,17 @@ public class Main
         if (args.length > 2)
             messageLength = Integer.parseInt( args[2] );
 
+        if (args.length > 3)
+            unixSocket = args[3].equals( "unix" );
+
         System.out.println(
                 "Echo latency test: " +
                 sessions + " sessions, " +
                 messages + " messages, " +
-                messageLength + " bytes/message." );
+                messageLength + " bytes/message" +
+                (unixSocket ? ", unix domain socket." : ".") );
 
         Client client = new Client( sessions, messages, messageLength );
-        new Server(client).run();
+        new Server(client, unixSocket).run();
     }
 }
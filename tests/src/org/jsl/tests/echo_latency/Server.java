@@ -20,14 +20,17 @@ package org.jsl.tests.echo_latency;
 
 import org.jsl.collider.*;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class Server
 {
     private final Client m_client;
+    private final boolean m_unixSocket;
     private final AtomicInteger m_sessionsDone;
 
     private class ServerListener implements Session.Listener
@@ -87,7 +90,7 @@ public class Server
 
         public void onConnectionClosed()
         {
-            m_streamDefragger.reset();
+            m_streamDefragger.close();
 
             System.out.println(
                     m_session.getLocalAddress() + " -> " + m_session.getRemoteAddress() +
@@ -101,17 +104,27 @@ public class Server
 
     private class TestAcceptor extends Acceptor
     {
-        public TestAcceptor()
+        public TestAcceptor( SocketAddress addr )
         {
-            super( new InetSocketAddress(0) );
+            super( addr );
+            reuseAddr = true;
             //inputQueueBlockSize = 700;
         }
 
         public void onAcceptorStarted( Collider collider, int localPort )
         {
-            System.out.println( "Echo latency server started at port " + localPort );
-            if (m_client != null)
-                m_client.start( new InetSocketAddress("localhost", localPort) );
+            if (localPort == 0)
+            {
+                System.out.println( "Echo latency server started at " + getSocketAddress() );
+                if (m_client != null)
+                    m_client.start( getSocketAddress() );
+            }
+            else
+            {
+                System.out.println( "Echo latency server started at port " + localPort );
+                if (m_client != null)
+                    m_client.start( new InetSocketAddress("localhost", localPort) );
+            }
         }
 
         public Session.Listener createSessionListener( Session session )
@@ -120,9 +133,10 @@ public class Server
         }
     }
 
-    public Server( Client client )
+    public Server( Client client, boolean unixSocket )
     {
         m_client = client;
+        m_unixSocket = unixSocket;
         m_sessionsDone = new AtomicInteger();
     }
 
@@ -131,7 +145,15 @@ public class Server
         try
         {
             final Collider collider = Collider.create();
-            collider.addAcceptor( new TestAcceptor() );
+            final SocketAddress addr;
+            if (m_unixSocket)
+            {
+                final String path = System.getProperty("java.io.tmpdir") + File.separator + "echo_latency.sock";
+                addr = Collider.createUnixSocketAddress( path );
+            }
+            else
+                addr = new InetSocketAddress( 0 );
+            collider.addAcceptor( new TestAcceptor(addr) );
             collider.run();
         }
         catch (final IOException ex)
@@ -145,6 +167,6 @@ public class Server
 
     public static void main( String [] args )
     {
-        new Server(null).run();
+        new Server(null, (args.length > 0) && args[0].equals("unix")).run();
     }
 }
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-Collider framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.tests.local_session;
+
+import org.jsl.collider.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Main
+{
+    private final int m_sessions;
+    private final int m_messages;
+    private final int m_messageLength;
+    private final AtomicInteger m_sessionsDone;
+    private long m_startTime;
+
+    private class ServerListener implements Session.Listener
+    {
+        private final Session m_session;
+
+        public ServerListener( Session session )
+        {
+            m_session = session;
+        }
+
+        public void onDataReceived( RetainableByteBuffer data )
+        {
+            /* Echo the data back without copying. */
+            m_session.sendData( data );
+        }
+
+        public void onConnectionClosed()
+        {
+        }
+    }
+
+    private class ClientListener implements Session.Listener
+    {
+        private final Session m_session;
+        private int m_bytesReceived;
+
+        public ClientListener( Session session )
+        {
+            m_session = session;
+        }
+
+        public void onDataReceived( RetainableByteBuffer data )
+        {
+            m_bytesReceived += data.remaining();
+            if (m_bytesReceived == (m_messages * m_messageLength))
+                m_session.closeConnection();
+        }
+
+        public void onConnectionClosed()
+        {
+            System.out.println(
+                    m_session.getLocalAddress() + " -> " + m_session.getRemoteAddress() +
+                    ": received " + m_bytesReceived + " bytes." );
+
+            if (m_sessionsDone.incrementAndGet() == m_sessions)
+            {
+                final long endTime = System.nanoTime();
+                System.out.println(
+                        (m_sessions * m_messages) + " messages echoed at " +
+                        ((endTime - m_startTime) / 1000000) + " ms." );
+                m_session.getCollider().stop();
+            }
+        }
+    }
+
+    private class TestConnector extends Connector
+    {
+        public TestConnector( LocalSocketAddress addr )
+        {
+            super( addr );
+        }
+
+        public Session.Listener createSessionListener( Session session )
+        {
+            final ByteBuffer msg = ByteBuffer.allocateDirect( m_messageLength );
+            msg.putInt( 0, m_messageLength );
+            for (int idx=0; idx<m_messages; idx++)
+                session.sendData( msg );
+            return new ClientListener( session );
+        }
+
+        public void onException( IOException ex )
+        {
+            ex.printStackTrace();
+        }
+    }
+
+    private class TestAcceptor extends Acceptor
+    {
+        public TestAcceptor( LocalSocketAddress addr )
+        {
+            super( addr );
+        }
+
+        public void onAcceptorStarted( Collider collider, int localPort )
+        {
+            System.out.println( "Acceptor started at " + getSocketAddress() );
+
+            /* Connection to the address without acceptor should fail. */
+            collider.addConnector( new Connector(new LocalSocketAddress("none"))
+            {
+                public Session.Listener createSessionListener( Session session )
+                {
+                    throw new AssertionError();
+                }
+
+                public void onException( IOException ex )
+                {
+                    System.out.println( ex.getMessage() );
+                }
+            } );
+
+            m_startTime = System.nanoTime();
+            for (int idx=0; idx<m_sessions; idx++)
+                collider.addConnector( new TestConnector((LocalSocketAddress) getSocketAddress()) );
+        }
+
+        public Session.Listener createSessionListener( Session session )
+        {
+            return new ServerListener( session );
+        }
+    }
+
+    private Main( int sessions, int messages, int messageLength )
+    {
+        m_sessions = sessions;
+        m_messages = messages;
+        m_messageLength = messageLength;
+        m_sessionsDone = new AtomicInteger();
+    }
+
+    private void run()
+    {
+        try
+        {
+            final Collider collider = Collider.create();
+            collider.addAcceptor( new TestAcceptor(new LocalSocketAddress("local_session")) );
+            collider.run();
+        }
+        catch (final IOException ex)
+        {
+            ex.printStackTrace();
+        }
+    }
+
+    public static void main( String [] args )
+    {
+        int sessions = 4;
+        int messages = 100000;
+        int messageLength = 100;
+
+        if (args.length > 0)
+            sessions = Integer.parseInt( args[0] );
+
+        if (args.length > 1)
+            messages = Integer.parseInt( args[1] );
+
+        if (args.length > 2)
+            messageLength = Integer.parseInt( args[2] );
+
+        System.out.println(
+                "Local session test: " + sessions + " sessions, " +
+                messages + " messages, " + messageLength + " bytes/message." );
+
+        new Main(sessions, messages, messageLength).run();
+    }
+}
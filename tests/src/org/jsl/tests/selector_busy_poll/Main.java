@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-Collider framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.tests.selector_busy_poll;
+
+import org.jsl.collider.*;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/*
+ * Echo ping-pong with the selector thread in the busy poll mode.
+ * Checks messages are echoed intact, the selector thread backs off
+ * to park when the collider is idle (consumes less than a half
+ * of the core), a message sent after the idle period is still
+ * handled without Selector.wakeup() and Collider.stop() works.
+ */
+
+public class Main
+{
+    private static final int MESSAGE_SIZE = 100;
+    private static final int PARK_TIME = 1000000;
+    private static final long IDLE_TIME = 500;
+
+    private final int m_messages;
+    private volatile Thread m_selectorThread;
+    private volatile boolean m_failed;
+    private volatile long m_stopTime;
+
+    private void fail( String msg )
+    {
+        System.out.println( msg );
+        m_failed = true;
+    }
+
+    private static ByteBuffer createMessage( int seq )
+    {
+        final ByteBuffer msg = ByteBuffer.allocate( MESSAGE_SIZE );
+        for (int pos=0; pos<MESSAGE_SIZE; pos+=4)
+            msg.putInt( pos, seq + pos );
+        return msg;
+    }
+
+    private class Idler extends Thread
+    {
+        private final ClientListener m_listener;
+
+        public Idler( ClientListener listener )
+        {
+            m_listener = listener;
+        }
+
+        public void run()
+        {
+            try
+            {
+                final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+                if (threadMXBean.isThreadCpuTimeSupported())
+                {
+                    final long threadId = m_selectorThread.getId();
+                    /* Let the selector thread go through the spin and yield stages. */
+                    Thread.sleep( 100 );
+                    final long startCpuTime = threadMXBean.getThreadCpuTime( threadId );
+                    final long startTime = System.nanoTime();
+                    Thread.sleep( IDLE_TIME );
+                    final long cpuTime = (threadMXBean.getThreadCpuTime(threadId) - startCpuTime);
+                    final long time = (System.nanoTime() - startTime);
+                    System.out.println(
+                            "Idle selector thread: " + (cpuTime / 1000000) + " ms CPU time in " +
+                            (time / 1000000) + " ms." );
+                    if (cpuTime > (time / 2))
+                        fail( "Idle selector thread did not back off." );
+                }
+                else
+                    Thread.sleep( IDLE_TIME );
+            }
+            catch (final InterruptedException ex)
+            {
+                ex.printStackTrace();
+            }
+            m_listener.sendNext();
+        }
+    }
+
+    private class ClientListener implements Session.Listener
+    {
+        private final Session m_session;
+        private final ByteBuffer m_buf;
+        private int m_seq;
+        private long m_startTime;
+
+        public ClientListener( Session session )
+        {
+            m_session = session;
+            m_buf = ByteBuffer.allocate( MESSAGE_SIZE );
+            m_startTime = System.nanoTime();
+            m_session.sendData( createMessage(0) );
+        }
+
+        public void sendNext()
+        {
+            m_startTime = System.nanoTime();
+            m_session.sendData( createMessage(m_seq) );
+        }
+
+        public void onDataReceived( RetainableByteBuffer data )
+        {
+            while (data.remaining() > 0)
+            {
+                final int bytes = Math.min( m_buf.remaining(), data.remaining() );
+                final ByteBuffer buf = data.getNioByteBuffer();
+                final int limit = buf.limit();
+                buf.limit( buf.position() + bytes );
+                m_buf.put( buf );
+                buf.limit( limit );
+                if (m_buf.remaining() > 0)
+                    break;
+
+                m_buf.clear();
+                if (!m_buf.equals(createMessage(m_seq)))
+                {
+                    fail( "Message " + m_seq + " is corrupted." );
+                    m_session.closeConnection();
+                    return;
+                }
+
+                m_seq++;
+                if (m_seq < m_messages)
+                    m_session.sendData( createMessage(m_seq) );
+                else if (m_seq == m_messages)
+                {
+                    final long time = (System.nanoTime() - m_startTime);
+                    System.out.println(
+                            "Ping-pong: " + m_messages + " messages, " +
+                            (time / m_messages / 1000) + " us/round trip." );
+                    new Idler(this).start();
+                }
+                else
+                {
+                    final long time = (System.nanoTime() - m_startTime);
+                    System.out.println( "Round trip after idle: " + (time / 1000) + " us." );
+                    m_session.closeConnection();
+                }
+            }
+        }
+
+        public void onConnectionClosed()
+        {
+            if (m_seq <= m_messages)
+                fail( "Connection closed after " + m_seq + " messages." );
+            m_stopTime = System.nanoTime();
+            m_session.getCollider().stop();
+        }
+    }
+
+    private class TestConnector extends Connector
+    {
+        public TestConnector( int port )
+        {
+            super( new InetSocketAddress("localhost", port) );
+        }
+
+        public Session.Listener createSessionListener( Session session )
+        {
+            return new ClientListener( session );
+        }
+
+        public void onException( IOException ex )
+        {
+            ex.printStackTrace();
+            m_failed = true;
+        }
+    }
+
+    private class TestAcceptor extends Acceptor
+    {
+        public TestAcceptor()
+        {
+            super( new InetSocketAddress(0) );
+        }
+
+        public void onAcceptorStarted( Collider collider, int localPort )
+        {
+            collider.addConnector( new TestConnector(localPort) );
+        }
+
+        public Session.Listener createSessionListener( final Session session )
+        {
+            return new Session.Listener()
+            {
+                public void onDataReceived( RetainableByteBuffer data )
+                {
+                    final RetainableByteBuffer reply = data.slice();
+                    session.sendData( reply );
+                    reply.release();
+                }
+
+                public void onConnectionClosed()
+                {
+                }
+            };
+        }
+    }
+
+    private Main( int messages )
+    {
+        m_messages = messages;
+    }
+
+    private void run()
+    {
+        try
+        {
+            final Collider.Config config = new Collider.Config();
+            config.selectorBusyPoll = true;
+            config.selectorSpins = 1000;
+            config.selectorYields = 100;
+            config.selectorParkTime = PARK_TIME;
+
+            final Collider collider = Collider.create( config );
+            collider.addAcceptor( new TestAcceptor() );
+            m_selectorThread = Thread.currentThread();
+            collider.run();
+
+            final long stopTime = m_stopTime;
+            if (stopTime != 0)
+            {
+                final long time = ((System.nanoTime() - stopTime) / 1000000);
+                System.out.println( "Collider stopped in " + time + " ms." );
+                if (time > 1000)
+                    fail( "Collider stop took too long." );
+            }
+        }
+        catch (final IOException ex)
+        {
+            ex.printStackTrace();
+            m_failed = true;
+        }
+
+        if (m_failed)
+            throw new AssertionError();
+    }
+
+    public static void main( String [] args )
+    {
+        int messages = 10000;
+
+        if (args.length > 0)
+            messages = Integer.parseInt( args[0] );
+
+        new Main(messages).run();
+    }
+}
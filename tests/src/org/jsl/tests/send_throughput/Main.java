@@ -27,6 +27,7 @@ public class Main
         int messages = 100000;
         int messageLength = 500;
         int socketBufferSize = (64*1024);
+        boolean heapBuffers = false;
 
         if (args.length > 0)
         {
@@ -38,12 +39,31 @@ public class Main
                 {
                     messageLength = Integer.parseInt( args[2] );
                     if (args.length > 3)
+                    {
                         socketBufferSize = Integer.parseInt( args[3] );
+                        if (args.length > 4)
+                            heapBuffers = (Integer.parseInt(args[4]) != 0);
+                    }
                 }
             }
         }
 
-        Client client = new Client( sessions, messages, messageLength, socketBufferSize );
-        new Server(client, socketBufferSize).run();
+        if (heapBuffers)
+        {
+            /* Heap buffers are sent without and with the staging
+             * to the direct buffers, to see the difference.
+             */
+            for (int stage=0; stage<2; stage++)
+            {
+                System.out.println( "Heap buffers, staging " + ((stage == 0) ? "disabled" : "enabled") + ":" );
+                final Client client = new Client( sessions, messages, messageLength, socketBufferSize );
+                new Server(client, socketBufferSize, true, (stage != 0)).run();
+            }
+        }
+        else
+        {
+            Client client = new Client( sessions, messages, messageLength, socketBufferSize );
+            new Server(client, socketBufferSize, false, true).run();
+        }
     }
 }
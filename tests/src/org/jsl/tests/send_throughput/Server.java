@@ -26,6 +26,9 @@ import org.jsl.collider.Session;
 import org.jsl.tests.Util;
 
 import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.util.concurrent.Semaphore;
@@ -35,6 +38,8 @@ public class Server
 {
     private final Client m_client;
     private final int m_socketBufferSize;
+    private final boolean m_heapBuffers;
+    private final boolean m_stageHeapBuffers;
     private final Semaphore m_semStart;
     private final AtomicInteger m_sessionsConnected;
     private final AtomicInteger m_sessionsReady;
@@ -42,6 +47,46 @@ public class Server
     private volatile Sender [] m_sender;
     private int m_messages;
     private ByteBuffer m_msg;
+    private volatile long m_startAllocatedBytes;
+    private volatile long m_allocatedBytes;
+
+    /* Bytes allocated by all live threads,
+     * -1 if the JVM does not support the measurement.
+     */
+    private static long getAllocatedBytes()
+    {
+        final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (!(threadMXBean instanceof com.sun.management.ThreadMXBean))
+            return -1;
+
+        final com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadMXBean;
+        if (!bean.isThreadAllocatedMemorySupported() || !bean.isThreadAllocatedMemoryEnabled())
+            return -1;
+
+        long ret = 0;
+        for (long bytes : bean.getThreadAllocatedBytes(bean.getAllThreadIds()))
+        {
+            if (bytes > 0)
+                ret += bytes;
+        }
+        return ret;
+    }
+
+    private static long getGcCount()
+    {
+        long ret = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans())
+            ret += Math.max( bean.getCollectionCount(), 0 );
+        return ret;
+    }
+
+    private static long getGcTime()
+    {
+        long ret = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans())
+            ret += Math.max( bean.getCollectionTime(), 0 );
+        return ret;
+    }
 
     private class ServerListener implements Session.Listener
     {
@@ -70,7 +115,7 @@ public class Server
                 int messageLength = data.getInt();
                 if (messageLength < 4)
                     messageLength = 4;
-                m_msg = ByteBuffer.allocateDirect( messageLength );
+                m_msg = (m_heapBuffers ? ByteBuffer.allocate(messageLength) : ByteBuffer.allocateDirect(messageLength));
                 m_msg.putInt( messageLength );
                 for (int idx=4; idx<messageLength; idx++)
                     m_msg.put( (byte) idx );
@@ -86,7 +131,10 @@ public class Server
 
             sessions = m_sessionsReady.incrementAndGet();
             if (sessions == sessionsExpected)
+            {
+                m_startAllocatedBytes = getAllocatedBytes();
                 m_semStart.release( sessionsExpected );
+            }
         }
 
         public void onConnectionClosed()
@@ -124,7 +172,19 @@ public class Server
             m_session.closeConnection();
             final int sessions = m_sessionsDone.decrementAndGet();
             if (sessions == 0)
+            {
+                /* Wait until all data is written, collider threads
+                 * are still alive here, their allocations are not lost.
+                 */
+                if (m_client != null)
+                    m_client.stopAndWait();
+                final long allocatedBytes = getAllocatedBytes();
+                if ((allocatedBytes >= 0) && (m_startAllocatedBytes >= 0))
+                    m_allocatedBytes = (allocatedBytes - m_startAllocatedBytes);
+                else
+                    m_allocatedBytes = -1;
                 m_session.getCollider().stop();
+            }
         }
     }
 
@@ -150,10 +210,12 @@ public class Server
         }
     }
 
-    public Server( Client client, int socketBufferSize )
+    public Server( Client client, int socketBufferSize, boolean heapBuffers, boolean stageHeapBuffers )
     {
         m_client = client;
         m_socketBufferSize = socketBufferSize;
+        m_heapBuffers = heapBuffers;
+        m_stageHeapBuffers = stageHeapBuffers;
         m_semStart = new Semaphore(0);
         m_sessionsConnected = new AtomicInteger();
         m_sessionsReady = new AtomicInteger();
@@ -164,10 +226,24 @@ public class Server
     {
         try
         {
-            final Collider collider = Collider.create();
+            final Collider.Config config = new Collider.Config();
+            config.stageHeapBuffers = m_stageHeapBuffers;
+            final Collider collider = Collider.create( config );
             collider.addAcceptor( new TestAcceptor() );
+
+            final long gcCount = getGcCount();
+            final long gcTime = getGcTime();
             collider.run();
             m_client.stopAndWait();
+
+            String str = "GC: " + (getGcCount() - gcCount) + " collections, " + (getGcTime() - gcTime) + " ms";
+            final Sender [] sender = m_sender;
+            if ((sender != null) && (m_allocatedBytes >= 0))
+            {
+                final long messages = ((long) m_messages * sender.length);
+                str += ", allocated " + (m_allocatedBytes / messages) + " bytes per message";
+            }
+            System.out.println( str + "." );
         }
         catch (IOException ex)
         {
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-Collider framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.tests.session_coalesce;
+
+import org.jsl.collider.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/*
+ * Server sends small messages a few microseconds apart,
+ * a plain blocking socket client counts the reads needed
+ * to receive them. Test runs without and with the write
+ * coalescing and checks the data and that the coalescing
+ * reduces the number of reads at least twice.
+ */
+
+public class Main
+{
+    private final int m_messages;
+    private final int m_messageLength;
+    private final int m_interval;
+    private volatile boolean m_failed;
+    private volatile int m_reads;
+
+    private class Sender extends Thread
+    {
+        private final Session m_session;
+
+        public Sender( Session session )
+        {
+            m_session = session;
+        }
+
+        public void run()
+        {
+            int offset = 0;
+            for (int idx=0; idx<m_messages; idx++)
+            {
+                final ByteBuffer msg = ByteBuffer.allocate( m_messageLength );
+                for (int pos=0; pos<m_messageLength; pos++, offset++)
+                    msg.put( pos, (byte) offset );
+                m_session.sendData( msg );
+
+                final long endTime = (System.nanoTime() + m_interval * 1000L);
+                while (System.nanoTime() < endTime);
+            }
+            m_session.closeConnection();
+        }
+    }
+
+    private class Client extends Thread
+    {
+        private final Collider m_collider;
+        private final int m_port;
+
+        public Client( Collider collider, int port )
+        {
+            m_collider = collider;
+            m_port = port;
+        }
+
+        public void run()
+        {
+            try
+            {
+                final SocketChannel socketChannel = SocketChannel.open( new InetSocketAddress("localhost", m_port) );
+                final ByteBuffer buf = ByteBuffer.allocateDirect( 1024 * 1024 );
+                final long bytesExpected = ((long) m_messages * m_messageLength);
+                long bytesReceived = 0;
+                int reads = 0;
+                for (;;)
+                {
+                    buf.clear();
+                    final int bytes = socketChannel.read( buf );
+                    if (bytes < 0)
+                        break;
+                    reads++;
+                    for (int pos=0; pos<bytes; pos++, bytesReceived++)
+                    {
+                        if (buf.get(pos) != (byte) bytesReceived)
+                        {
+                            System.out.println( "Invalid data at " + bytesReceived + "." );
+                            m_failed = true;
+                            break;
+                        }
+                    }
+                }
+                socketChannel.close();
+
+                if (bytesReceived != bytesExpected)
+                {
+                    System.out.println( "Received " + bytesReceived + " bytes, expected " + bytesExpected + "." );
+                    m_failed = true;
+                }
+                m_reads = reads;
+            }
+            catch (final IOException ex)
+            {
+                ex.printStackTrace();
+                m_failed = true;
+            }
+            m_collider.stop();
+        }
+    }
+
+    private class TestAcceptor extends Acceptor
+    {
+        public TestAcceptor( int coalesceDelay )
+        {
+            super( new InetSocketAddress(0) );
+            writeCoalesceDelay = coalesceDelay;
+        }
+
+        public void onAcceptorStarted( Collider collider, int localPort )
+        {
+            new Client(collider, localPort).start();
+        }
+
+        public Session.Listener createSessionListener( Session session )
+        {
+            new Sender(session).start();
+            return new Session.Listener()
+            {
+                public void onDataReceived( RetainableByteBuffer data )
+                {
+                }
+
+                public void onConnectionClosed()
+                {
+                }
+            };
+        }
+    }
+
+    private Main( int messages, int messageLength, int interval )
+    {
+        m_messages = messages;
+        m_messageLength = messageLength;
+        m_interval = interval;
+    }
+
+    private int run( int coalesceDelay )
+    {
+        try
+        {
+            final Collider collider = Collider.create();
+            collider.addAcceptor( new TestAcceptor(coalesceDelay) );
+            collider.run();
+        }
+        catch (final IOException ex)
+        {
+            ex.printStackTrace();
+        }
+
+        if (m_failed)
+            throw new AssertionError();
+
+        System.out.println(
+                "Coalesce delay " + coalesceDelay + " us: " + m_messages + " messages of " +
+                m_messageLength + " bytes " + m_interval + " us apart received in " + m_reads + " reads." );
+        return m_reads;
+    }
+
+    public static void main( String [] args )
+    {
+        int messages = 100000;
+        int messageLength = 32;
+        int interval = 5;
+        int coalesceDelay = 50;
+
+        if (args.length > 0)
+            messages = Integer.parseInt( args[0] );
+
+        if (args.length > 1)
+            interval = Integer.parseInt( args[1] );
+
+        if (args.length > 2)
+            coalesceDelay = Integer.parseInt( args[2] );
+
+        /* Number of reads depends on the scheduling,
+         * a loaded host can coalesce messages without any delay,
+         * so a few attempts are given.
+         */
+        final Main main = new Main( messages, messageLength, interval );
+        for (int attempt=0;; attempt++)
+        {
+            final int reads = main.run( 0 );
+            final int coalescedReads = main.run( coalesceDelay );
+            System.out.println( "Coalescing reduced reads " + String.format("%.1f", (double) reads / coalescedReads) + " times." );
+            if ((coalescedReads * 2) <= reads)
+                break;
+            if (attempt == 2)
+                throw new AssertionError();
+        }
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-Collider framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.tests.session_composite;
+
+import org.jsl.collider.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/*
+ * Client sends length-prefixed messages, some are larger than
+ * the input queue block. Server listener is a Session.CompositeListener,
+ * so it receives large messages as a CompositeByteBuffer, checks
+ * the getters across the part boundaries, slice and duplicate,
+ * then sends all messages back, composite ones with
+ * sendData(CompositeByteBuffer). Client checks the echoed stream.
+ * Runs over TCP and the in-process transport.
+ */
+
+public class Main
+{
+    private static final int HEADER_SIZE = 6;
+    private static final int BLOCK_SIZE = (4 * 1024);
+    private static final int CHUNK_SIZE = 1500;
+
+    private final int m_messages;
+    private final ByteBuffer m_stream;
+    private volatile boolean m_failed;
+    private int m_compositeMessages;
+
+    private static byte patternByte( int message, int pos )
+    {
+        return (byte) (message + pos);
+    }
+
+    private static int patternInt( int message, int pos )
+    {
+        return ((patternByte(message, pos) << 24) |
+                ((patternByte(message, pos+1) & 0xFF) << 16) |
+                ((patternByte(message, pos+2) & 0xFF) << 8) |
+                (patternByte(message, pos+3) & 0xFF));
+    }
+
+    private static ByteBuffer createStream( int messages )
+    {
+        /* Message: int length including header, short message number, data.
+         * Every 10th message is larger than the block size.
+         */
+        final Random random = new Random( 1 );
+        final int [] lengths = new int[messages];
+        int streamLength = 0;
+        for (int idx=0; idx<messages; idx++)
+        {
+            lengths[idx] = HEADER_SIZE + (((idx % 10) == 0)
+                    ? (BLOCK_SIZE + random.nextInt(BLOCK_SIZE * 4)) : random.nextInt(60));
+            streamLength += lengths[idx];
+        }
+
+        final ByteBuffer stream = ByteBuffer.allocateDirect( streamLength );
+        for (int idx=0; idx<messages; idx++)
+        {
+            stream.putInt( lengths[idx] );
+            stream.putShort( (short) idx );
+            for (int pos=HEADER_SIZE; pos<lengths[idx]; pos++)
+                stream.put( patternByte(idx, pos) );
+        }
+        stream.flip();
+        return stream;
+    }
+
+    private static class Decoder implements FrameDecoder
+    {
+        public int getFrameLength( ByteBuffer header )
+        {
+            return header.getInt();
+        }
+    }
+
+    private void fail( String msg )
+    {
+        if (!m_failed)
+        {
+            System.out.println( msg );
+            m_failed = true;
+        }
+    }
+
+    private boolean checkMessage( int idx, RetainableByteBuffer data )
+    {
+        final int pos = data.position();
+        final int length = data.getInt( pos );
+        if ((data.remaining() != length) || (data.getShort(pos+4) != (short) idx))
+        {
+            fail( "Message " + idx + ": invalid header." );
+            return false;
+        }
+
+        for (int offs=HEADER_SIZE; offs<length; offs++)
+        {
+            if (data.get(pos+offs) != patternByte(idx, offs))
+            {
+                fail( "Message " + idx + ": invalid data at " + offs + "." );
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean checkMessage( int idx, CompositeByteBuffer data )
+    {
+        final int length = data.getInt( 0 );
+        if ((data.position() != 0) || (data.remaining() != length) || (data.capacity() != length))
+        {
+            fail( "Message " + idx + ": invalid composite buffer bounds." );
+            return false;
+        }
+
+        if (data.getPartCount() < 2)
+        {
+            fail( "Message " + idx + ": composite buffer of " + data.getPartCount() + " parts." );
+            return false;
+        }
+
+        /* Indexed getters, some of them cross the part boundary. */
+        if (data.getShort(4) != (short) idx)
+        {
+            fail( "Message " + idx + ": invalid header." );
+            return false;
+        }
+
+        for (int offs=HEADER_SIZE; offs<=(length-4); offs++)
+        {
+            if (data.getInt(offs) != patternInt(idx, offs))
+            {
+                fail( "Message " + idx + ": invalid int at " + offs + "." );
+                return false;
+            }
+        }
+
+        /* Relative getters, position is restored after. */
+        data.position( HEADER_SIZE );
+        for (int offs=HEADER_SIZE; offs<length; offs++)
+        {
+            if (data.get() != patternByte(idx, offs))
+            {
+                fail( "Message " + idx + ": invalid byte at " + offs + "." );
+                return false;
+            }
+        }
+        data.position( 0 );
+
+        /* Slice of the data keeps the parts retained after the release. */
+        final CompositeByteBuffer dup = data.duplicate();
+        dup.position( HEADER_SIZE );
+        final CompositeByteBuffer slice = dup.slice();
+        dup.release();
+        if ((slice.capacity() != (length - HEADER_SIZE)) || (slice.get(0) != patternByte(idx, HEADER_SIZE)))
+        {
+            fail( "Message " + idx + ": invalid slice." );
+            return false;
+        }
+
+        final ByteBuffer copy = ByteBuffer.allocate( slice.remaining() );
+        slice.get( copy );
+        slice.release();
+        for (int offs=HEADER_SIZE; offs<length; offs++)
+        {
+            if (copy.get(offs-HEADER_SIZE) != patternByte(idx, offs))
+            {
+                fail( "Message " + idx + ": invalid data copied at " + offs + "." );
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private class ServerListener implements Session.CompositeListener
+    {
+        private final Session m_session;
+        private int m_messagesReceived;
+
+        public ServerListener( Session session )
+        {
+            m_session = session;
+        }
+
+        public void onDataReceived( RetainableByteBuffer data )
+        {
+            final int idx = m_messagesReceived++;
+            if ((idx % 10) == 0)
+                fail( "Message " + idx + " is not a composite buffer." );
+            checkMessage( idx, data );
+            final RetainableByteBuffer reply = data.slice();
+            m_session.sendData( reply );
+            reply.release();
+        }
+
+        public void onDataReceived( CompositeByteBuffer data )
+        {
+            final int idx = m_messagesReceived++;
+            m_compositeMessages++;
+            checkMessage( idx, data );
+            m_session.sendData( data );
+        }
+
+        public void onConnectionClosed()
+        {
+            System.out.println(
+                    m_session.getLocalAddress() + ": connection closed, received " +
+                    m_messagesReceived + " messages (" + m_compositeMessages + " composite)." );
+        }
+    }
+
+    private class ClientListener implements Session.Listener
+    {
+        private final Session m_session;
+        private int m_messagesReceived;
+
+        public ClientListener( Session session )
+        {
+            m_session = session;
+        }
+
+        public void onDataReceived( RetainableByteBuffer data )
+        {
+            final int idx = m_messagesReceived++;
+            if (!checkMessage(idx, data))
+                m_session.closeConnection();
+            else if (m_messagesReceived == m_messages)
+                m_session.closeConnection();
+        }
+
+        public void onConnectionClosed()
+        {
+            System.out.println(
+                    m_session.getLocalAddress() + ": connection closed, received " +
+                    m_messagesReceived + " messages back." );
+            if (m_messagesReceived != m_messages)
+                fail( "Expected " + m_messages + " messages." );
+            m_session.getCollider().stop();
+        }
+    }
+
+    private class TestConnector extends Connector
+    {
+        public TestConnector( SocketAddress addr )
+        {
+            super( addr );
+            inputQueueBlockSize = BLOCK_SIZE;
+            frameHeaderSize = HEADER_SIZE;
+            frameDecoder = new Decoder();
+        }
+
+        public Session.Listener createSessionListener( Session session )
+        {
+            /* Chunks are smaller than the block, so the in-process
+             * transport also delivers large messages in several parts.
+             */
+            final ByteBuffer stream = m_stream.duplicate();
+            while (stream.hasRemaining())
+            {
+                final int bytes = Math.min( stream.remaining(), CHUNK_SIZE );
+                final ByteBuffer chunk = stream.slice();
+                chunk.limit( bytes );
+                session.sendData( chunk );
+                stream.position( stream.position() + bytes );
+            }
+            return new ClientListener( session );
+        }
+
+        public void onException( IOException ex )
+        {
+            ex.printStackTrace();
+        }
+    }
+
+    private class TestAcceptor extends Acceptor
+    {
+        public TestAcceptor( SocketAddress addr )
+        {
+            super( addr );
+            inputQueueBlockSize = BLOCK_SIZE;
+            frameHeaderSize = HEADER_SIZE;
+            frameDecoder = new Decoder();
+        }
+
+        public void onAcceptorStarted( Collider collider, int localPort )
+        {
+            final SocketAddress addr = getSocketAddress();
+            collider.addConnector( new TestConnector(
+                    (addr instanceof LocalSocketAddress) ? addr : new InetSocketAddress("localhost", localPort)) );
+        }
+
+        public Session.Listener createSessionListener( Session session )
+        {
+            return new ServerListener( session );
+        }
+    }
+
+    private Main( int messages )
+    {
+        m_messages = messages;
+        m_stream = createStream( messages );
+    }
+
+    private void run( SocketAddress addr )
+    {
+        m_compositeMessages = 0;
+        try
+        {
+            final Collider collider = Collider.create();
+            collider.addAcceptor( new TestAcceptor(addr) );
+            collider.run();
+        }
+        catch (final IOException ex)
+        {
+            ex.printStackTrace();
+        }
+
+        if (m_failed)
+            throw new AssertionError();
+    }
+
+    public static void main( String [] args )
+    {
+        int messages = 20000;
+
+        if (args.length > 0)
+            messages = Integer.parseInt( args[0] );
+
+        final Main main = new Main( messages );
+        main.run( new InetSocketAddress(0) );
+        main.run( new LocalSocketAddress("session_composite") );
+    }
+}
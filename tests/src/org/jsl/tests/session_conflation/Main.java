@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-Collider framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.tests.session_conflation;
+
+import org.jsl.collider.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+/*
+ * Several threads send updates for a number of keys with
+ * sendConflated(), each key is updated by one thread only,
+ * half of the keys use ByteBuffer, others use RetainableByteBuffer.
+ * A slow plain blocking socket client checks the updates
+ * of each key arrive in order, the last update of each key
+ * is received and that the updates were actually conflated.
+ */
+
+public class Main
+{
+    private static final int MESSAGE_SIZE = 16;
+
+    private final int m_keys;
+    private final int m_threads;
+    private final int m_updates;
+    private volatile boolean m_failed;
+
+    private void fail( String msg )
+    {
+        System.out.println( msg );
+        m_failed = true;
+    }
+
+    private class Producer extends Thread
+    {
+        private final Session m_session;
+        private final int m_firstKey;
+
+        public Producer( Session session, int firstKey )
+        {
+            m_session = session;
+            m_firstKey = firstKey;
+        }
+
+        public void run()
+        {
+            for (int update=0; update<m_updates; update++)
+            {
+                for (int key=m_firstKey; key<m_keys; key+=m_threads)
+                {
+                    if ((key % 2) == 0)
+                    {
+                        final ByteBuffer msg = ByteBuffer.allocate( MESSAGE_SIZE );
+                        msg.putInt( MESSAGE_SIZE );
+                        msg.putInt( key );
+                        msg.putLong( update );
+                        msg.flip();
+                        m_session.sendConflated( Integer.valueOf(key), msg );
+                    }
+                    else
+                    {
+                        final RetainableByteBuffer msg = m_session.reserve( MESSAGE_SIZE );
+                        msg.putInt( MESSAGE_SIZE );
+                        msg.putInt( key );
+                        msg.putDouble( update );
+                        msg.flip();
+                        m_session.sendConflated( Integer.valueOf(key), msg );
+                        msg.release();
+                    }
+                }
+            }
+        }
+    }
+
+    private class Controller extends Thread
+    {
+        private final Session m_session;
+
+        public Controller( Session session )
+        {
+            m_session = session;
+        }
+
+        public void run()
+        {
+            final Producer [] producers = new Producer[m_threads];
+            for (int idx=0; idx<m_threads; idx++)
+            {
+                producers[idx] = new Producer( m_session, idx );
+                producers[idx].start();
+            }
+
+            try
+            {
+                for (Producer producer : producers)
+                    producer.join();
+            }
+            catch (final InterruptedException ex)
+            {
+                ex.printStackTrace();
+            }
+            m_session.closeConnection();
+        }
+    }
+
+    private class Client extends Thread
+    {
+        private final Collider m_collider;
+        private final int m_port;
+
+        public Client( Collider collider, int port )
+        {
+            m_collider = collider;
+            m_port = port;
+        }
+
+        private void receive() throws IOException, InterruptedException
+        {
+            final SocketChannel socketChannel = SocketChannel.open( new InetSocketAddress("localhost", m_port) );
+            final ByteBuffer buf = ByteBuffer.allocate( 4096 );
+            final long [] last = new long[m_keys];
+            Arrays.fill( last, -1 );
+            long messages = 0;
+
+            for (;;)
+            {
+                final int bytes = socketChannel.read( buf );
+                if (bytes < 0)
+                    break;
+
+                buf.flip();
+                while (buf.remaining() >= MESSAGE_SIZE)
+                {
+                    final int length = buf.getInt();
+                    final int key = buf.getInt();
+                    final long update = (((key % 2) == 0) ? buf.getLong() : (long) buf.getDouble());
+                    if ((length != MESSAGE_SIZE) || (key < 0) || (key >= m_keys))
+                    {
+                        fail( "Invalid message." );
+                        return;
+                    }
+                    if (update <= last[key])
+                    {
+                        fail( "Key " + key + ": update " + update + " after " + last[key] + "." );
+                        return;
+                    }
+                    last[key] = update;
+                    messages++;
+                }
+                buf.compact();
+
+                /* Slow client */
+                Thread.sleep( 1 );
+            }
+            socketChannel.close();
+
+            final long updates = ((long) m_keys * m_updates);
+            System.out.println( "Received " + messages + " of " + updates + " updates." );
+
+            for (int key=0; key<m_keys; key++)
+            {
+                if (last[key] != (m_updates - 1))
+                {
+                    fail( "Key " + key + ": last update " + last[key] + " received." );
+                    return;
+                }
+            }
+
+            if (messages == updates)
+                fail( "Updates were not conflated." );
+        }
+
+        public void run()
+        {
+            try
+            {
+                receive();
+            }
+            catch (final Exception ex)
+            {
+                ex.printStackTrace();
+                m_failed = true;
+            }
+            m_collider.stop();
+        }
+    }
+
+    private class TestAcceptor extends Acceptor
+    {
+        public TestAcceptor()
+        {
+            super( new InetSocketAddress(0) );
+        }
+
+        public void onAcceptorStarted( Collider collider, int localPort )
+        {
+            new Client(collider, localPort).start();
+        }
+
+        public Session.Listener createSessionListener( Session session )
+        {
+            new Controller(session).start();
+            return new Session.Listener()
+            {
+                public void onDataReceived( RetainableByteBuffer data )
+                {
+                }
+
+                public void onConnectionClosed()
+                {
+                }
+            };
+        }
+    }
+
+    private Main( int keys, int threads, int updates )
+    {
+        m_keys = keys;
+        m_threads = threads;
+        m_updates = updates;
+    }
+
+    private void run()
+    {
+        try
+        {
+            final Collider collider = Collider.create();
+            collider.addAcceptor( new TestAcceptor() );
+            collider.run();
+        }
+        catch (final IOException ex)
+        {
+            ex.printStackTrace();
+        }
+
+        if (m_failed)
+            throw new AssertionError();
+    }
+
+    public static void main( String [] args )
+    {
+        int keys = 100;
+        int threads = 4;
+        int updates = 20000;
+
+        if (args.length > 0)
+            keys = Integer.parseInt( args[0] );
+
+        if (args.length > 1)
+            threads = Integer.parseInt( args[1] );
+
+        if (args.length > 2)
+            updates = Integer.parseInt( args[2] );
+
+        new Main(keys, threads, updates).run();
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-Collider framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.tests.session_cork;
+
+import org.jsl.collider.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/*
+ * Server corks the session and sends a number of messages,
+ * a plain blocking socket client checks nothing arrives
+ * until the session is uncorked and then the messages
+ * arrive in a few reads. Then the server corks the session again,
+ * sends more messages and closes the session, client checks
+ * the data kept in the queue is received before the close.
+ */
+
+public class Main
+{
+    private static final int WAIT_TIME = 300;
+
+    private final int m_messages;
+    private final int m_messageLength;
+    private volatile boolean m_failed;
+    private volatile long m_bytesReceived;
+    private volatile int m_reads;
+
+    private void fail( String msg )
+    {
+        System.out.println( msg );
+        m_failed = true;
+    }
+
+    private class Controller extends Thread
+    {
+        private final Session m_session;
+        private int m_offset;
+
+        public Controller( Session session )
+        {
+            m_session = session;
+        }
+
+        private void sendMessages()
+        {
+            for (int idx=0; idx<m_messages; idx++)
+            {
+                final ByteBuffer msg = ByteBuffer.allocate( m_messageLength );
+                for (int pos=0; pos<m_messageLength; pos++, m_offset++)
+                    msg.put( pos, (byte) m_offset );
+                m_session.sendData( msg );
+            }
+        }
+
+        public void run()
+        {
+            try
+            {
+                final int bytes = (m_messages * m_messageLength);
+                m_session.cork();
+                sendMessages();
+                Thread.sleep( WAIT_TIME );
+                System.out.println( "Corked: client received " + m_bytesReceived + " bytes." );
+                if (m_bytesReceived != 0)
+                    fail( "Data was sent while the session is corked." );
+
+                m_session.uncork();
+                Thread.sleep( WAIT_TIME );
+                System.out.println( "Uncorked: client received " + m_bytesReceived + " bytes in " + m_reads + " reads." );
+                if (m_bytesReceived != bytes)
+                    fail( "Expected " + bytes + " bytes." );
+                else if (m_reads > 4)
+                    fail( "Expected the data to be written at once." );
+
+                /* Data kept in the queue should be sent before the close. */
+                m_session.cork();
+                sendMessages();
+                m_session.closeConnection();
+            }
+            catch (final InterruptedException ex)
+            {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private class Client extends Thread
+    {
+        private final Collider m_collider;
+        private final int m_port;
+
+        public Client( Collider collider, int port )
+        {
+            m_collider = collider;
+            m_port = port;
+        }
+
+        public void run()
+        {
+            try
+            {
+                final SocketChannel socketChannel = SocketChannel.open( new InetSocketAddress("localhost", m_port) );
+                final ByteBuffer buf = ByteBuffer.allocateDirect( 1024 * 1024 );
+                long bytesReceived = 0;
+                for (;;)
+                {
+                    buf.clear();
+                    final int bytes = socketChannel.read( buf );
+                    if (bytes < 0)
+                        break;
+                    for (int pos=0; pos<bytes; pos++, bytesReceived++)
+                    {
+                        if (buf.get(pos) != (byte) bytesReceived)
+                        {
+                            fail( "Invalid data at " + bytesReceived + "." );
+                            break;
+                        }
+                    }
+                    m_bytesReceived = bytesReceived;
+                    m_reads++;
+                }
+                socketChannel.close();
+
+                final long bytesExpected = (2L * m_messages * m_messageLength);
+                System.out.println( "Closed: client received " + bytesReceived + " bytes." );
+                if (bytesReceived != bytesExpected)
+                    fail( "Expected " + bytesExpected + " bytes." );
+            }
+            catch (final IOException ex)
+            {
+                ex.printStackTrace();
+                m_failed = true;
+            }
+            m_collider.stop();
+        }
+    }
+
+    private class TestAcceptor extends Acceptor
+    {
+        public TestAcceptor()
+        {
+            super( new InetSocketAddress(0) );
+        }
+
+        public void onAcceptorStarted( Collider collider, int localPort )
+        {
+            new Client(collider, localPort).start();
+        }
+
+        public Session.Listener createSessionListener( Session session )
+        {
+            new Controller(session).start();
+            return new Session.Listener()
+            {
+                public void onDataReceived( RetainableByteBuffer data )
+                {
+                }
+
+                public void onConnectionClosed()
+                {
+                }
+            };
+        }
+    }
+
+    private Main( int messages, int messageLength )
+    {
+        m_messages = messages;
+        m_messageLength = messageLength;
+    }
+
+    private void run()
+    {
+        try
+        {
+            final Collider collider = Collider.create();
+            collider.addAcceptor( new TestAcceptor() );
+            collider.run();
+        }
+        catch (final IOException ex)
+        {
+            ex.printStackTrace();
+        }
+
+        if (m_failed)
+            throw new AssertionError();
+    }
+
+    public static void main( String [] args )
+    {
+        int messages = 100;
+        int messageLength = 100;
+
+        if (args.length > 0)
+            messages = Integer.parseInt( args[0] );
+
+        if (args.length > 1)
+            messageLength = Integer.parseInt( args[1] );
+
+        new Main(messages, messageLength).run();
+    }
+}
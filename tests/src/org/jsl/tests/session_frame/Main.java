@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-Collider framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.tests.session_frame;
+
+import org.jsl.collider.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/*
+ * Client sends a stream of length-prefixed messages in random
+ * chunks not aligned to the message boundaries, some messages
+ * are larger than the input queue block. Server uses the framework
+ * framing and checks it receives exactly one intact message
+ * per onDataReceived() call. Then the client sends a header
+ * with the length over the SessionEmitter.frameMaxSize, server
+ * is expected to close the session without allocating the frame.
+ * Runs over TCP and the in-process transport.
+ */
+
+public class Main
+{
+    private static final int HEADER_SIZE = 6;
+    private static final int BLOCK_SIZE = (4 * 1024);
+    private static final int CHUNK_MAX_SIZE = 3000;
+    private static final int FRAME_MAX_SIZE = (1024 * 1024);
+
+    private final int m_messages;
+    private final ByteBuffer m_stream;
+    private volatile boolean m_failed;
+
+    private static byte patternByte( int message, int pos )
+    {
+        return (byte) (message + pos);
+    }
+
+    private static ByteBuffer createStream( int messages )
+    {
+        /* Message: int length including header, short message number, data.
+         * Every 100th message is larger than the block size.
+         */
+        final Random random = new Random( 1 );
+        final int [] lengths = new int[messages];
+        int streamLength = 0;
+        for (int idx=0; idx<messages; idx++)
+        {
+            final int dataMaxSize = (((idx % 100) == 0) ? (BLOCK_SIZE * 5) : 60);
+            lengths[idx] = (HEADER_SIZE + random.nextInt(dataMaxSize));
+            streamLength += lengths[idx];
+        }
+
+        final ByteBuffer stream = ByteBuffer.allocateDirect( streamLength );
+        for (int idx=0; idx<messages; idx++)
+        {
+            stream.putInt( lengths[idx] );
+            stream.putShort( (short) idx );
+            for (int pos=HEADER_SIZE; pos<lengths[idx]; pos++)
+                stream.put( patternByte(idx, pos) );
+        }
+        stream.flip();
+        return stream;
+    }
+
+    private static class Decoder implements FrameDecoder
+    {
+        public int getFrameLength( ByteBuffer header )
+        {
+            return header.getInt();
+        }
+    }
+
+    private class ServerListener implements Session.Listener
+    {
+        private final Session m_session;
+        private int m_messagesReceived;
+        private int m_largeMessages;
+
+        public ServerListener( Session session )
+        {
+            m_session = session;
+        }
+
+        private void fail( String msg )
+        {
+            if (!m_failed)
+            {
+                System.out.println( msg );
+                m_failed = true;
+            }
+        }
+
+        public void onDataReceived( RetainableByteBuffer data )
+        {
+            final int idx = m_messagesReceived++;
+            final int pos = data.position();
+            final int length = data.getInt( pos );
+            if (data.remaining() != length)
+            {
+                fail( "Message " + idx + ": length " + length + ", received " + data.remaining() + " bytes." );
+                return;
+            }
+
+            if (data.getShort(pos+4) != (short) idx)
+            {
+                fail( "Message " + idx + ": unexpected message " + data.getShort(pos+4) + "." );
+                return;
+            }
+
+            for (int offs=HEADER_SIZE; offs<length; offs++)
+            {
+                if (data.get(pos+offs) != patternByte(idx, offs))
+                {
+                    fail( "Message " + idx + ": invalid data at " + offs + "." );
+                    return;
+                }
+            }
+
+            if (length > BLOCK_SIZE)
+                m_largeMessages++;
+        }
+
+        public void onConnectionClosed()
+        {
+            System.out.println(
+                    m_session.getLocalAddress() + ": connection closed, received " +
+                    m_messagesReceived + " messages (" + m_largeMessages + " larger than the block)." );
+            if (m_messagesReceived != m_messages)
+                fail( "Expected " + m_messages + " messages." );
+            m_session.getCollider().stop();
+        }
+    }
+
+    private class TestConnector extends Connector
+    {
+        public TestConnector( SocketAddress addr )
+        {
+            super( addr );
+        }
+
+        public Session.Listener createSessionListener( Session session )
+        {
+            final Random random = new Random( 2 );
+            final ByteBuffer stream = m_stream.duplicate();
+            while (stream.hasRemaining())
+            {
+                final int bytes = Math.min( stream.remaining(), 1 + random.nextInt(CHUNK_MAX_SIZE) );
+                final ByteBuffer chunk = stream.slice();
+                chunk.limit( bytes );
+                session.sendData( chunk );
+                stream.position( stream.position() + bytes );
+            }
+            session.closeConnection();
+
+            return new Session.Listener()
+            {
+                public void onDataReceived( RetainableByteBuffer data )
+                {
+                }
+
+                public void onConnectionClosed()
+                {
+                }
+            };
+        }
+
+        public void onException( IOException ex )
+        {
+            ex.printStackTrace();
+        }
+    }
+
+    private class TestAcceptor extends Acceptor
+    {
+        public TestAcceptor( SocketAddress addr )
+        {
+            super( addr );
+            inputQueueBlockSize = BLOCK_SIZE;
+            frameHeaderSize = HEADER_SIZE;
+            frameDecoder = new Decoder();
+        }
+
+        public void onAcceptorStarted( Collider collider, int localPort )
+        {
+            final SocketAddress addr = getSocketAddress();
+            collider.addConnector( new TestConnector(
+                    (addr instanceof LocalSocketAddress) ? addr : new InetSocketAddress("localhost", localPort)) );
+        }
+
+        public Session.Listener createSessionListener( Session session )
+        {
+            return new ServerListener( session );
+        }
+    }
+
+    private class OversizedListener implements Session.CompositeListener
+    {
+        private final Session m_session;
+        private int m_messagesReceived;
+
+        public OversizedListener( Session session )
+        {
+            m_session = session;
+        }
+
+        public void onDataReceived( RetainableByteBuffer data )
+        {
+            m_messagesReceived++;
+        }
+
+        public void onDataReceived( CompositeByteBuffer data )
+        {
+            m_messagesReceived++;
+        }
+
+        public void onConnectionClosed()
+        {
+            System.out.println(
+                    m_session.getLocalAddress() + ": connection with oversized frame closed, received " +
+                    m_messagesReceived + " messages." );
+            if (m_messagesReceived != 1)
+            {
+                System.out.println( "Expected 1 message before the oversized frame." );
+                m_failed = true;
+            }
+            m_session.getCollider().stop();
+        }
+    }
+
+    private class OversizedConnector extends Connector
+    {
+        public OversizedConnector( SocketAddress addr )
+        {
+            super( addr );
+        }
+
+        public Session.Listener createSessionListener( final Session session )
+        {
+            final ByteBuffer msg = ByteBuffer.allocate( 100 );
+            msg.putInt( 0, msg.capacity() );
+            session.sendData( msg );
+
+            /* Header of the 2 GB frame followed by some data,
+             * session is not closed by the client.
+             */
+            final ByteBuffer oversized = ByteBuffer.allocate( 64 * 1024 );
+            oversized.putInt( 0, Integer.MAX_VALUE );
+            session.sendData( oversized );
+
+            final Thread watchdog = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        Thread.sleep( 5000 );
+                    }
+                    catch (final InterruptedException ex)
+                    {
+                        return;
+                    }
+                    System.out.println( "Session with oversized frame was not closed by the server." );
+                    m_failed = true;
+                    session.closeConnection();
+                }
+            };
+            watchdog.start();
+
+            return new Session.Listener()
+            {
+                public void onDataReceived( RetainableByteBuffer data )
+                {
+                }
+
+                public void onConnectionClosed()
+                {
+                    watchdog.interrupt();
+                }
+            };
+        }
+
+        public void onException( IOException ex )
+        {
+            ex.printStackTrace();
+        }
+    }
+
+    private class OversizedAcceptor extends Acceptor
+    {
+        public OversizedAcceptor( SocketAddress addr )
+        {
+            super( addr );
+            inputQueueBlockSize = BLOCK_SIZE;
+            frameHeaderSize = HEADER_SIZE;
+            frameDecoder = new Decoder();
+            frameMaxSize = FRAME_MAX_SIZE;
+        }
+
+        public void onAcceptorStarted( Collider collider, int localPort )
+        {
+            final SocketAddress addr = getSocketAddress();
+            collider.addConnector( new OversizedConnector(
+                    (addr instanceof LocalSocketAddress) ? addr : new InetSocketAddress("localhost", localPort)) );
+        }
+
+        public Session.Listener createSessionListener( Session session )
+        {
+            return new OversizedListener( session );
+        }
+    }
+
+    private Main( int messages )
+    {
+        m_messages = messages;
+        m_stream = createStream( messages );
+    }
+
+    private void run( Acceptor acceptor )
+    {
+        try
+        {
+            final Collider collider = Collider.create();
+            collider.addAcceptor( acceptor );
+            collider.run();
+        }
+        catch (final IOException ex)
+        {
+            ex.printStackTrace();
+        }
+
+        if (m_failed)
+            throw new AssertionError();
+    }
+
+    private void run( SocketAddress addr )
+    {
+        run( new TestAcceptor(addr) );
+        run( new OversizedAcceptor(addr) );
+    }
+
+    public static void main( String [] args )
+    {
+        int messages = 100000;
+
+        if (args.length > 0)
+            messages = Integer.parseInt( args[0] );
+
+        final Main main = new Main( messages );
+        main.run( new InetSocketAddress(0) );
+        main.run( new LocalSocketAddress("session_frame") );
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-Collider framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.tests.session_inline_read;
+
+import org.jsl.collider.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+
+/*
+ * Two sessions with inline read enabled, one after another.
+ * The first client sends small messages mixed with large ones,
+ * the listener checks the stream is intact and expects small data
+ * to be handled by the selector thread and large data by the thread pool.
+ * The listener of the second session is slow, the reader is expected
+ * to switch it to the thread pool after the first window of calls.
+ */
+
+public class Main
+{
+    private static final int INLINE_READ_MAX_SIZE = 2048;
+
+    /* Reader checks the listener time in windows of 64 calls. */
+    private static final int INLINE_WINDOW = 64;
+
+    private final int m_messages;
+    private volatile Thread m_selectorThread;
+    private volatile boolean m_failed;
+
+    private void fail( String msg )
+    {
+        System.out.println( msg );
+        m_failed = true;
+    }
+
+    private class Client extends Thread
+    {
+        private final int m_port;
+        private final boolean m_large;
+
+        public Client( int port, boolean large )
+        {
+            m_port = port;
+            m_large = large;
+        }
+
+        public void run()
+        {
+            try
+            {
+                final SocketChannel socketChannel = SocketChannel.open( new InetSocketAddress("localhost", m_port) );
+                final Random random = new Random( 1 );
+                byte value = 0;
+                long bytesSent = 0;
+
+                for (int idx=0; idx<m_messages; idx++)
+                {
+                    final boolean large = (m_large && ((idx % 10) == 0));
+                    final int length = (large ? (INLINE_READ_MAX_SIZE * 10 + random.nextInt(200000))
+                                              : (1 + random.nextInt(INLINE_READ_MAX_SIZE / 4)));
+                    final ByteBuffer buf = ByteBuffer.allocate( length );
+                    for (int pos=0; pos<length; pos++)
+                        buf.put( value++ );
+                    buf.flip();
+                    while (buf.remaining() > 0)
+                        socketChannel.write( buf );
+                    bytesSent += length;
+
+                    /* Let the selector thread read each message alone. */
+                    Thread.sleep( 1 );
+                }
+
+                System.out.println( "Client: sent " + bytesSent + " bytes." );
+                socketChannel.close();
+            }
+            catch (final Exception ex)
+            {
+                ex.printStackTrace();
+                m_failed = true;
+            }
+        }
+    }
+
+    private class ServerListener implements Session.Listener
+    {
+        private final Session m_session;
+        private final boolean m_slow;
+        private byte m_value;
+        private long m_bytesReceived;
+        private int m_selectorCalls;
+        private int m_poolCalls;
+        private int m_largeSelectorCalls;
+        private int m_largePoolCalls;
+
+        public ServerListener( Session session, boolean slow )
+        {
+            m_session = session;
+            m_slow = slow;
+        }
+
+        public void onDataReceived( RetainableByteBuffer data )
+        {
+            final int bytes = data.remaining();
+            final boolean selectorThread = (Thread.currentThread() == m_selectorThread);
+            if (bytes > INLINE_READ_MAX_SIZE)
+            {
+                if (selectorThread)
+                    m_largeSelectorCalls++;
+                else
+                    m_largePoolCalls++;
+            }
+            else if (selectorThread)
+                m_selectorCalls++;
+            else
+                m_poolCalls++;
+
+            final int limit = data.limit();
+            for (int pos=data.position(); pos<limit; pos++)
+            {
+                if (data.get(pos) != m_value)
+                {
+                    fail( "Data at " + (m_bytesReceived + pos - data.position()) + " is corrupted." );
+                    m_session.closeConnection();
+                    return;
+                }
+                m_value++;
+            }
+            m_bytesReceived += bytes;
+
+            if (m_slow)
+            {
+                try
+                {
+                    Thread.sleep( 1 );
+                }
+                catch (final InterruptedException ex)
+                {
+                    ex.printStackTrace();
+                }
+            }
+        }
+
+        public void onConnectionClosed()
+        {
+            System.out.println(
+                    (m_slow ? "Slow" : "Fast") + " listener: received " + m_bytesReceived +
+                    " bytes, small data in selector thread " + m_selectorCalls + " / thread pool " + m_poolCalls +
+                    " calls, large data in selector thread " + m_largeSelectorCalls + " / thread pool " +
+                    m_largePoolCalls + " calls." );
+
+            if (m_largeSelectorCalls > 0)
+                fail( "Large data handled by the selector thread." );
+
+            final Collider collider = m_session.getCollider();
+            if (m_slow)
+            {
+                if (m_selectorCalls > INLINE_WINDOW)
+                    fail( "Slow listener was not switched to the thread pool." );
+                collider.stop();
+            }
+            else
+            {
+                if (m_largePoolCalls == 0)
+                    fail( "No large data received." );
+                if (m_selectorCalls < m_poolCalls)
+                    fail( "Small data is mostly handled by the thread pool." );
+                new Client(m_port, false).start();
+            }
+        }
+    }
+
+    private class TestAcceptor extends Acceptor
+    {
+        private int m_sessions;
+
+        public TestAcceptor()
+        {
+            super( new InetSocketAddress(0) );
+            inlineReadMaxSize = INLINE_READ_MAX_SIZE;
+        }
+
+        public void onAcceptorStarted( Collider collider, int localPort )
+        {
+            m_port = localPort;
+            new Client(localPort, true).start();
+        }
+
+        public Session.Listener createSessionListener( Session session )
+        {
+            return new ServerListener( session, (m_sessions++ > 0) );
+        }
+    }
+
+    private volatile int m_port;
+
+    private Main( int messages )
+    {
+        m_messages = messages;
+    }
+
+    private void run()
+    {
+        try
+        {
+            final Collider collider = Collider.create();
+            collider.addAcceptor( new TestAcceptor() );
+            m_selectorThread = Thread.currentThread();
+            collider.run();
+        }
+        catch (final IOException ex)
+        {
+            ex.printStackTrace();
+        }
+
+        if (m_failed)
+            throw new AssertionError();
+    }
+
+    public static void main( String [] args )
+    {
+        int messages = 1000;
+
+        if (args.length > 0)
+            messages = Integer.parseInt( args[0] );
+
+        new Main(messages).run();
+    }
+}
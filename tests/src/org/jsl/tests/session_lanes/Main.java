@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-Collider framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.tests.session_lanes;
+
+import org.jsl.collider.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/*
+ * Server sends bulk messages in lane 0 and every 10th message
+ * in one of the priority lanes to a slow client, so a lot of data
+ * waits in the queue. Each message carries its lane, its number
+ * within the lane and the number of lane 0 messages sent before it.
+ * Client checks the order of messages within each lane, that all
+ * messages are received, and that most of the priority messages
+ * overtook the lane 0 messages sent before them.
+ */
+
+public class Main
+{
+    private static final int HEADER_SIZE = 4;
+    private static final int BULK_MESSAGE_SIZE = 1000;
+    private static final int PRIORITY_MESSAGE_SIZE = 100;
+    private static final int SOCKET_BUFFER_SIZE = (64 * 1024);
+
+    private final int m_messages;
+    private volatile boolean m_failed;
+
+    private void fail( String msg )
+    {
+        if (!m_failed)
+        {
+            System.out.println( msg );
+            m_failed = true;
+        }
+    }
+
+    private static class Decoder implements FrameDecoder
+    {
+        public int getFrameLength( ByteBuffer header )
+        {
+            return header.getInt();
+        }
+    }
+
+    private static ByteBuffer createMessage( int size, int lane, int seq, int bulkSent )
+    {
+        final ByteBuffer msg = ByteBuffer.allocateDirect( size );
+        msg.putInt( size );
+        msg.put( (byte) lane );
+        msg.putInt( seq );
+        msg.putInt( bulkSent );
+        msg.position( 0 );
+        return msg;
+    }
+
+    private class Sender extends Thread
+    {
+        private final Session m_session;
+
+        public Sender( Session session )
+        {
+            m_session = session;
+        }
+
+        public void run()
+        {
+            final int [] seq = new int[Session.SEND_LANES];
+            int bulkSent = 0;
+            for (int idx=0; idx<m_messages; idx++)
+            {
+                if ((idx % 10) == 9)
+                {
+                    final int lane = (1 + (idx / 10) % (Session.SEND_LANES - 1));
+                    final ByteBuffer msg = createMessage( PRIORITY_MESSAGE_SIZE, lane, seq[lane]++, bulkSent );
+                    if (m_session.sendData(msg, lane) < 0)
+                        fail( "sendData() failed." );
+                }
+                else
+                {
+                    final ByteBuffer msg = createMessage( BULK_MESSAGE_SIZE, 0, seq[0]++, bulkSent );
+                    if (m_session.sendData(msg, 0) < 0)
+                        fail( "sendData() failed." );
+                    bulkSent++;
+                }
+            }
+        }
+    }
+
+    private class ClientListener implements Session.Listener
+    {
+        private final Session m_session;
+        private final int [] m_seq;
+        private int m_messagesReceived;
+        private int m_priorityMessages;
+        private int m_overtaken;
+
+        public ClientListener( Session session )
+        {
+            m_session = session;
+            m_seq = new int[Session.SEND_LANES];
+        }
+
+        public void onDataReceived( RetainableByteBuffer data )
+        {
+            final int pos = data.position();
+            final int lane = data.get( pos + HEADER_SIZE );
+            final int seq = data.getInt( pos + HEADER_SIZE + 1 );
+            final int bulkSent = data.getInt( pos + HEADER_SIZE + 5 );
+
+            if (seq != m_seq[lane])
+            {
+                fail( "Lane " + lane + ": received message " + seq + ", expected " + m_seq[lane] + "." );
+                m_session.closeConnection();
+                return;
+            }
+            m_seq[lane]++;
+
+            if (lane > 0)
+            {
+                m_priorityMessages++;
+                if (m_seq[0] < bulkSent)
+                    m_overtaken++;
+            }
+
+            if ((++m_messagesReceived % 20) == 0)
+            {
+                /* Slow client */
+                try { Thread.sleep(1); }
+                catch (final InterruptedException ex) { ex.printStackTrace(); }
+            }
+
+            if (m_messagesReceived == m_messages)
+                m_session.closeConnection();
+        }
+
+        public void onConnectionClosed()
+        {
+            System.out.println(
+                    m_session.getLocalAddress() + ": received " + m_messagesReceived + " messages, " +
+                    m_overtaken + " of " + m_priorityMessages + " priority messages overtook the bulk ones." );
+
+            if (m_messagesReceived != m_messages)
+                fail( "Expected " + m_messages + " messages." );
+            else if ((m_overtaken * 2) < m_priorityMessages)
+                fail( "Expected most of the priority messages to overtake the bulk ones." );
+            m_session.getCollider().stop();
+        }
+    }
+
+    private class TestConnector extends Connector
+    {
+        public TestConnector( int port )
+        {
+            super( new InetSocketAddress("localhost", port) );
+            socketRecvBufSize = SOCKET_BUFFER_SIZE;
+            frameHeaderSize = HEADER_SIZE;
+            frameDecoder = new Decoder();
+        }
+
+        public Session.Listener createSessionListener( Session session )
+        {
+            return new ClientListener( session );
+        }
+
+        public void onException( IOException ex )
+        {
+            ex.printStackTrace();
+        }
+    }
+
+    private class TestAcceptor extends Acceptor
+    {
+        public TestAcceptor()
+        {
+            super( new InetSocketAddress(0) );
+            socketSendBufSize = SOCKET_BUFFER_SIZE;
+        }
+
+        public void onAcceptorStarted( Collider collider, int localPort )
+        {
+            collider.addConnector( new TestConnector(localPort) );
+        }
+
+        public Session.Listener createSessionListener( Session session )
+        {
+            new Sender(session).start();
+            return new Session.Listener()
+            {
+                public void onDataReceived( RetainableByteBuffer data )
+                {
+                }
+
+                public void onConnectionClosed()
+                {
+                }
+            };
+        }
+    }
+
+    private Main( int messages )
+    {
+        m_messages = messages;
+    }
+
+    private void run()
+    {
+        try
+        {
+            final Collider collider = Collider.create();
+            collider.addAcceptor( new TestAcceptor() );
+            collider.run();
+        }
+        catch (final IOException ex)
+        {
+            ex.printStackTrace();
+        }
+
+        if (m_failed)
+            throw new AssertionError();
+    }
+
+    public static void main( String [] args )
+    {
+        int messages = 50000;
+
+        if (args.length > 0)
+            messages = Integer.parseInt( args[0] );
+
+        new Main(messages).run();
+    }
+}
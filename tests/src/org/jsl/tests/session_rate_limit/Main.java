@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-Collider framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.tests.session_rate_limit;
+
+import org.jsl.collider.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/*
+ * Server with an outbound rate limit sends a number of messages
+ * of different sizes and closes the session, client checks
+ * the data and that it took as long as the rate limit implies:
+ * not less than the time to send everything above the burst size,
+ * and not much more than the time to send everything.
+ */
+
+public class Main
+{
+    private final int m_rate;
+    private final int m_bytes;
+    private volatile boolean m_failed;
+
+    private class ClientListener implements Session.Listener
+    {
+        private final Session m_session;
+        private final long m_startTime;
+        private long m_bytesReceived;
+
+        public ClientListener( Session session )
+        {
+            m_session = session;
+            m_startTime = System.nanoTime();
+        }
+
+        public void onDataReceived( RetainableByteBuffer data )
+        {
+            final int pos = data.position();
+            final int remaining = data.remaining();
+            for (int idx=0; idx<remaining; idx++, m_bytesReceived++)
+            {
+                if (data.get(pos+idx) != (byte) m_bytesReceived)
+                {
+                    System.out.println( "Invalid data at " + m_bytesReceived + "." );
+                    m_failed = true;
+                    m_session.closeConnection();
+                    return;
+                }
+            }
+        }
+
+        public void onConnectionClosed()
+        {
+            final long time = ((System.nanoTime() - m_startTime) / 1000000);
+            /* Client session can start a bit later than the server one. */
+            final long minTime = ((long) (m_bytes - m_rate/10) * 1000 / m_rate * 19 / 20);
+            final long maxTime = ((long) m_bytes * 1000 / m_rate * 3 / 2);
+            System.out.println(
+                    m_session.getLocalAddress() + ": received " + m_bytesReceived + " bytes in " + time +
+                    " ms, rate limit " + m_rate + " bytes/sec, expected " + minTime + "-" + maxTime + " ms." );
+
+            if (m_bytesReceived != m_bytes)
+            {
+                System.out.println( "Expected " + m_bytes + " bytes." );
+                m_failed = true;
+            }
+            else if ((time < minTime) || (time > maxTime))
+                m_failed = true;
+            m_session.getCollider().stop();
+        }
+    }
+
+    private class TestConnector extends Connector
+    {
+        public TestConnector( int port )
+        {
+            super( new InetSocketAddress("localhost", port) );
+        }
+
+        public Session.Listener createSessionListener( Session session )
+        {
+            return new ClientListener( session );
+        }
+
+        public void onException( IOException ex )
+        {
+            ex.printStackTrace();
+        }
+    }
+
+    private class TestAcceptor extends Acceptor
+    {
+        public TestAcceptor()
+        {
+            super( new InetSocketAddress(0) );
+            sendRateLimit = m_rate;
+        }
+
+        public void onAcceptorStarted( Collider collider, int localPort )
+        {
+            collider.addConnector( new TestConnector(localPort) );
+        }
+
+        public Session.Listener createSessionListener( Session session )
+        {
+            int offset = 0;
+            for (int idx=0; offset<m_bytes; idx++)
+            {
+                final int length = Math.min( 100 + (idx * 37) % 2000, m_bytes - offset );
+                final ByteBuffer msg = ByteBuffer.allocate( length );
+                for (int pos=0; pos<length; pos++, offset++)
+                    msg.put( pos, (byte) offset );
+                session.sendData( msg );
+            }
+            session.closeConnection();
+
+            return new Session.Listener()
+            {
+                public void onDataReceived( RetainableByteBuffer data )
+                {
+                }
+
+                public void onConnectionClosed()
+                {
+                }
+            };
+        }
+    }
+
+    private Main( int rate, int bytes )
+    {
+        m_rate = rate;
+        m_bytes = bytes;
+    }
+
+    private void run()
+    {
+        try
+        {
+            final Collider collider = Collider.create();
+            collider.addAcceptor( new TestAcceptor() );
+            collider.run();
+        }
+        catch (final IOException ex)
+        {
+            ex.printStackTrace();
+        }
+
+        if (m_failed)
+            throw new AssertionError();
+    }
+
+    public static void main( String [] args )
+    {
+        int rate = (1024 * 1024);
+        int bytes = (2 * 1024 * 1024);
+
+        if (args.length > 0)
+            rate = Integer.parseInt( args[0] );
+
+        if (args.length > 1)
+            bytes = Integer.parseInt( args[1] );
+
+        new Main(rate, bytes).run();
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-Collider framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.tests.session_read_quota;
+
+import org.jsl.collider.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/*
+ * Client sends all the data at once, server has an inbound quota:
+ * a read rate limit and a maximum size of one read.
+ * Server checks the data, that the transfer took as long
+ * as the read rate implies and that the data was read
+ * in rounds: data of the reads done while the listener
+ * is busy is delivered at once, so the number of calls
+ * is expected to be not less than a half of the rounds.
+ */
+
+public class Main
+{
+    private final int m_rate;
+    private final int m_roundMaxSize;
+    private final int m_bytes;
+    private volatile boolean m_failed;
+
+    private class ServerListener implements Session.Listener
+    {
+        private final Session m_session;
+        private final long m_startTime;
+        private long m_bytesReceived;
+        private int m_maxReadSize;
+        private int m_calls;
+
+        public ServerListener( Session session )
+        {
+            m_session = session;
+            m_startTime = System.nanoTime();
+        }
+
+        public void onDataReceived( RetainableByteBuffer data )
+        {
+            final int pos = data.position();
+            final int remaining = data.remaining();
+            m_maxReadSize = Math.max( m_maxReadSize, remaining );
+            m_calls++;
+
+            for (int idx=0; idx<remaining; idx++, m_bytesReceived++)
+            {
+                if (data.get(pos+idx) != (byte) m_bytesReceived)
+                {
+                    System.out.println( "Invalid data at " + m_bytesReceived + "." );
+                    m_failed = true;
+                    m_session.closeConnection();
+                    return;
+                }
+            }
+
+            if (m_bytesReceived == m_bytes)
+                m_session.closeConnection();
+        }
+
+        public void onConnectionClosed()
+        {
+            final long time = ((System.nanoTime() - m_startTime) / 1000000);
+            final long minTime = ((long) (m_bytes - m_rate/10) * 1000 / m_rate * 19 / 20);
+            final long maxTime = ((long) m_bytes * 1000 / m_rate * 3 / 2);
+            System.out.println(
+                    m_session.getLocalAddress() + ": received " + m_bytesReceived + " bytes in " + time +
+                    " ms (expected " + minTime + "-" + maxTime + " ms), " + m_calls +
+                    " calls, max " + m_maxReadSize + " bytes per call." );
+
+            if (m_bytesReceived != m_bytes)
+            {
+                System.out.println( "Expected " + m_bytes + " bytes." );
+                m_failed = true;
+            }
+            else if ((time < minTime) || (time > maxTime))
+                m_failed = true;
+            else if (m_calls < (m_bytes / m_roundMaxSize / 2))
+            {
+                System.out.println( "Expected at least " + (m_bytes / m_roundMaxSize / 2) + " calls." );
+                m_failed = true;
+            }
+            m_session.getCollider().stop();
+        }
+    }
+
+    private class TestConnector extends Connector
+    {
+        public TestConnector( int port )
+        {
+            super( new InetSocketAddress("localhost", port) );
+        }
+
+        public Session.Listener createSessionListener( Session session )
+        {
+            final ByteBuffer data = ByteBuffer.allocateDirect( m_bytes );
+            for (int pos=0; pos<m_bytes; pos++)
+                data.put( pos, (byte) pos );
+            session.sendData( data );
+
+            return new Session.Listener()
+            {
+                public void onDataReceived( RetainableByteBuffer data )
+                {
+                }
+
+                public void onConnectionClosed()
+                {
+                }
+            };
+        }
+
+        public void onException( IOException ex )
+        {
+            ex.printStackTrace();
+        }
+    }
+
+    private class TestAcceptor extends Acceptor
+    {
+        public TestAcceptor()
+        {
+            super( new InetSocketAddress(0) );
+            readRateLimit = m_rate;
+            readRoundMaxSize = m_roundMaxSize;
+        }
+
+        public void onAcceptorStarted( Collider collider, int localPort )
+        {
+            collider.addConnector( new TestConnector(localPort) );
+        }
+
+        public Session.Listener createSessionListener( Session session )
+        {
+            return new ServerListener( session );
+        }
+    }
+
+    private Main( int rate, int roundMaxSize, int bytes )
+    {
+        m_rate = rate;
+        m_roundMaxSize = roundMaxSize;
+        m_bytes = bytes;
+    }
+
+    private void run()
+    {
+        try
+        {
+            final Collider collider = Collider.create();
+            collider.addAcceptor( new TestAcceptor() );
+            collider.run();
+        }
+        catch (final IOException ex)
+        {
+            ex.printStackTrace();
+        }
+
+        if (m_failed)
+            throw new AssertionError();
+    }
+
+    public static void main( String [] args )
+    {
+        int rate = (1024 * 1024);
+        int roundMaxSize = (4 * 1024);
+        int bytes = (2 * 1024 * 1024);
+
+        if (args.length > 0)
+            rate = Integer.parseInt( args[0] );
+
+        if (args.length > 1)
+            roundMaxSize = Integer.parseInt( args[1] );
+
+        if (args.length > 2)
+            bytes = Integer.parseInt( args[2] );
+
+        new Main(rate, roundMaxSize, bytes).run();
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-Collider framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.tests.session_relay;
+
+import org.jsl.collider.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Producer sends data to the relay session, the relay forwards it
+ * to the slow consumer. Checks the data is forwarded intact and the
+ * relay suspends reading from the producer instead of buffering:
+ * the producer should not get ahead of the consumer more than
+ * maxPendingBytes plus the socket buffers.
+ */
+
+public class Main
+{
+    private static final int MAX_PENDING_BYTES = (1024 * 1024);
+    private static final int SOCKET_BUF_SIZE = (64 * 1024);
+    private static final long MAX_LAG = (8 * 1024 * 1024);
+
+    private final long m_totalBytes;
+    private final AtomicLong m_bytesSent;
+    private volatile Session m_consumerSession;
+    private int m_port;
+
+    private class Producer extends Thread
+    {
+        public void run()
+        {
+            try
+            {
+                final SocketChannel socketChannel = SocketChannel.open();
+                socketChannel.setOption( StandardSocketOptions.SO_SNDBUF, SOCKET_BUF_SIZE );
+                socketChannel.connect( new InetSocketAddress("localhost", m_port) );
+                final ByteBuffer buf = ByteBuffer.allocateDirect( 64 * 1024 );
+                long bytesSent = 0;
+                while (bytesSent < m_totalBytes)
+                {
+                    buf.clear();
+                    for (int pos=0; pos<buf.capacity(); pos++)
+                        buf.put( pos, (byte) (bytesSent + pos) );
+                    final int bytes = socketChannel.write( buf );
+                    bytesSent += bytes;
+                    m_bytesSent.addAndGet( bytes );
+                }
+                socketChannel.close();
+            }
+            catch (final IOException ex)
+            {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private class Consumer extends Thread
+    {
+        private final Collider m_collider;
+
+        public Consumer( Collider collider )
+        {
+            m_collider = collider;
+        }
+
+        public void run()
+        {
+            try
+            {
+                final SocketChannel socketChannel = SocketChannel.open();
+                socketChannel.setOption( StandardSocketOptions.SO_RCVBUF, SOCKET_BUF_SIZE );
+                socketChannel.connect( new InetSocketAddress("localhost", m_port) );
+                while (m_consumerSession == null)
+                    Thread.sleep( 10 );
+
+                final long startTime = System.nanoTime();
+                final Producer producer = new Producer();
+                producer.start();
+
+                final ByteBuffer buf = ByteBuffer.allocateDirect( 16 * 1024 );
+                long bytesReceived = 0;
+                long maxLag = 0;
+                int bytes;
+                while ((bytes = socketChannel.read(buf)) > 0)
+                {
+                    buf.flip();
+                    for (int pos=0; pos<bytes; pos++)
+                    {
+                        if (buf.get(pos) != (byte) (bytesReceived + pos))
+                        {
+                            System.out.println( "Invalid data at " + (bytesReceived + pos) );
+                            throw new AssertionError();
+                        }
+                    }
+                    bytesReceived += bytes;
+                    buf.clear();
+
+                    final long lag = (m_bytesSent.get() - bytesReceived);
+                    if (lag > maxLag)
+                        maxLag = lag;
+
+                    /* Slow consumer */
+                    Thread.sleep( 0, 200000 );
+                }
+
+                final long endTime = System.nanoTime();
+                System.out.println(
+                        "Consumer received " + bytesReceived + " bytes at " +
+                        ((endTime - startTime) / 1000000) + " ms, producer max lag " + maxLag + " bytes." );
+
+                if (bytesReceived != m_totalBytes)
+                    throw new AssertionError();
+
+                if (maxLag > MAX_LAG)
+                {
+                    System.out.println( "Relay did not suspend the producer." );
+                    throw new AssertionError();
+                }
+
+                producer.join();
+                socketChannel.close();
+            }
+            catch (final Exception ex)
+            {
+                ex.printStackTrace();
+            }
+            finally
+            {
+                m_collider.stop();
+            }
+        }
+    }
+
+    private class TestAcceptor extends Acceptor
+    {
+        public TestAcceptor()
+        {
+            super( new InetSocketAddress(0) );
+            socketRecvBufSize = SOCKET_BUF_SIZE;
+            socketSendBufSize = SOCKET_BUF_SIZE;
+        }
+
+        public void onAcceptorStarted( Collider collider, int localPort )
+        {
+            System.out.println( "Session relay test started at port " + localPort );
+            m_port = localPort;
+            new Consumer(collider).start();
+        }
+
+        public Session.Listener createSessionListener( Session session )
+        {
+            if (m_consumerSession == null)
+            {
+                m_consumerSession = session;
+                return new Session.Listener()
+                {
+                    public void onDataReceived( RetainableByteBuffer data )
+                    {
+                    }
+
+                    public void onConnectionClosed()
+                    {
+                    }
+                };
+            }
+            return new SessionRelay( session, m_consumerSession, MAX_PENDING_BYTES );
+        }
+    }
+
+    private Main( long totalBytes )
+    {
+        m_totalBytes = totalBytes;
+        m_bytesSent = new AtomicLong();
+    }
+
+    private void run()
+    {
+        try
+        {
+            final Collider collider = Collider.create();
+            collider.addAcceptor( new TestAcceptor() );
+            collider.run();
+        }
+        catch (final IOException ex)
+        {
+            ex.printStackTrace();
+        }
+    }
+
+    public static void main( String [] args )
+    {
+        long totalBytes = (64 * 1024 * 1024);
+        if (args.length > 0)
+            totalBytes = Long.parseLong( args[0] );
+        new Main(totalBytes).run();
+    }
+}
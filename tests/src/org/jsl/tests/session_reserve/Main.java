@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-Collider framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.tests.session_reserve;
+
+import org.jsl.collider.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Random;
+
+/*
+ * Server encodes messages directly into the buffers returned
+ * by Session.reserve() and sends them with commit(), each buffer
+ * is filled partially (sometimes not at all), client checks
+ * it receives exactly the bytes written. Runs over TCP
+ * and the in-process transport.
+ */
+
+public class Main
+{
+    private final int m_messages;
+    private volatile boolean m_failed;
+    private volatile long m_bytesSent;
+
+    private void fail( String msg )
+    {
+        if (!m_failed)
+        {
+            System.out.println( msg );
+            m_failed = true;
+        }
+    }
+
+    private class Sender extends Thread
+    {
+        private final Session m_session;
+
+        public Sender( Session session )
+        {
+            m_session = session;
+        }
+
+        public void run()
+        {
+            final Random random = new Random( 1 );
+            long offset = 0;
+            int emptyCommits = 0;
+            for (int idx=0; idx<m_messages; idx++)
+            {
+                final int size = (1 + random.nextInt(300));
+                final RetainableByteBuffer buf = m_session.reserve( size );
+                if (buf.remaining() < size)
+                {
+                    fail( "Reserved " + buf.remaining() + " bytes, requested " + size + "." );
+                    buf.release();
+                    break;
+                }
+
+                final int bytes = random.nextInt( size + 1 );
+                for (int pos=0; pos<bytes; pos++, offset++)
+                    buf.put( (byte) offset );
+
+                final int rc = m_session.commit( buf );
+                if (bytes == 0)
+                {
+                    emptyCommits++;
+                    if (rc != 0)
+                        fail( "Empty commit returned " + rc + "." );
+                }
+                else if (rc < 0)
+                    fail( "Commit failed." );
+            }
+            System.out.println(
+                    m_session.getLocalAddress() + ": committed " + offset + " bytes in " +
+                    m_messages + " buffers (" + emptyCommits + " empty)." );
+            m_bytesSent = offset;
+            m_session.closeConnection();
+        }
+    }
+
+    private class ClientListener implements Session.Listener
+    {
+        private final Session m_session;
+        private long m_bytesReceived;
+
+        public ClientListener( Session session )
+        {
+            m_session = session;
+        }
+
+        public void onDataReceived( RetainableByteBuffer data )
+        {
+            final int pos = data.position();
+            final int remaining = data.remaining();
+            for (int idx=0; idx<remaining; idx++, m_bytesReceived++)
+            {
+                if (data.get(pos+idx) != (byte) m_bytesReceived)
+                {
+                    fail( "Invalid data at " + m_bytesReceived + "." );
+                    m_session.closeConnection();
+                    return;
+                }
+            }
+        }
+
+        public void onConnectionClosed()
+        {
+            System.out.println(
+                    m_session.getLocalAddress() + ": connection closed, received " + m_bytesReceived + " bytes." );
+            if (m_bytesReceived != m_bytesSent)
+                fail( "Expected " + m_bytesSent + " bytes." );
+            m_session.getCollider().stop();
+        }
+    }
+
+    private class TestConnector extends Connector
+    {
+        public TestConnector( SocketAddress addr )
+        {
+            super( addr );
+        }
+
+        public Session.Listener createSessionListener( Session session )
+        {
+            return new ClientListener( session );
+        }
+
+        public void onException( IOException ex )
+        {
+            ex.printStackTrace();
+        }
+    }
+
+    private class TestAcceptor extends Acceptor
+    {
+        public TestAcceptor( SocketAddress addr )
+        {
+            super( addr );
+        }
+
+        public void onAcceptorStarted( Collider collider, int localPort )
+        {
+            final SocketAddress addr = getSocketAddress();
+            collider.addConnector( new TestConnector(
+                    (addr instanceof LocalSocketAddress) ? addr : new InetSocketAddress("localhost", localPort)) );
+        }
+
+        public Session.Listener createSessionListener( Session session )
+        {
+            new Sender(session).start();
+            return new Session.Listener()
+            {
+                public void onDataReceived( RetainableByteBuffer data )
+                {
+                }
+
+                public void onConnectionClosed()
+                {
+                }
+            };
+        }
+    }
+
+    private Main( int messages )
+    {
+        m_messages = messages;
+    }
+
+    private void run( SocketAddress addr )
+    {
+        try
+        {
+            final Collider collider = Collider.create();
+            collider.addAcceptor( new TestAcceptor(addr) );
+            collider.run();
+        }
+        catch (final IOException ex)
+        {
+            ex.printStackTrace();
+        }
+
+        if (m_failed)
+            throw new AssertionError();
+    }
+
+    public static void main( String [] args )
+    {
+        int messages = 200000;
+
+        if (args.length > 0)
+            messages = Integer.parseInt( args[0] );
+
+        final Main main = new Main( messages );
+        main.run( new InetSocketAddress(0) );
+        main.run( new LocalSocketAddress("session_reserve") );
+    }
+}
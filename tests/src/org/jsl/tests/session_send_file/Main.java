@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-Collider framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.tests.session_send_file;
+
+import org.jsl.collider.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Server sends messages interleaved with multi-megabyte file regions
+ * over a small socket send buffer, so the file transfers are partial
+ * and resumed when the socket becomes writable again.
+ * Client checks every byte of the stream, so the order of the file
+ * regions and messages is checked as well. The socket session also
+ * sends a region running past the end of the file (only the bytes
+ * present in the file are expected), then everything is repeated
+ * with the send rate limit. Runs over TCP, shared memory IPC
+ * (file regions are mapped and sent as data) and the in-process transport.
+ */
+
+public class Main
+{
+    private static final int FILE_SIZE = (8 * 1024 * 1024);
+    private static final int REGIONS = 5;
+    private static final int REGION_SIZE = (3 * 1024 * 1024);
+    private static final int SOCKET_SEND_BUF_SIZE = (64 * 1024);
+    private static final int TRUNCATED_REGION_SIZE = 1000;
+
+    private final File m_file;
+    private final byte [] m_fileData;
+    private volatile boolean m_failed;
+
+    private static byte messageByte( int message, int pos )
+    {
+        return (byte) (message * 7 + pos);
+    }
+
+    private static ByteBuffer createMessage( int message )
+    {
+        final int length = (1000 + message);
+        final ByteBuffer msg = ByteBuffer.allocate( length );
+        for (int pos=0; pos<length; pos++)
+            msg.put( pos, messageByte(message, pos) );
+        return msg;
+    }
+
+    private static long regionPosition( int region )
+    {
+        return ((long) region * 1024 * 1024 + 13);
+    }
+
+    private void fail( String msg )
+    {
+        System.out.println( msg );
+        m_failed = true;
+    }
+
+    private ByteBuffer createExpectedStream( boolean truncated )
+    {
+        int length = 0;
+        for (int region=0; region<REGIONS; region++)
+            length += (createMessage(region).capacity() + REGION_SIZE + region);
+        if (truncated)
+            length += TRUNCATED_REGION_SIZE;
+        length += createMessage(REGIONS).capacity();
+
+        final ByteBuffer stream = ByteBuffer.allocate( length );
+        for (int region=0; region<REGIONS; region++)
+        {
+            stream.put( createMessage(region) );
+            stream.put( m_fileData, (int) regionPosition(region), REGION_SIZE + region );
+        }
+        if (truncated)
+            stream.put( m_fileData, FILE_SIZE - TRUNCATED_REGION_SIZE, TRUNCATED_REGION_SIZE );
+        stream.put( createMessage(REGIONS) );
+        stream.flip();
+        return stream;
+    }
+
+    private class ClientListener implements Session.Listener
+    {
+        private final Session m_session;
+        private final ByteBuffer m_expected;
+        private final int m_rate;
+        private final long m_startTime;
+
+        public ClientListener( Session session, ByteBuffer expected, int rate )
+        {
+            m_session = session;
+            m_expected = expected;
+            m_rate = rate;
+            m_startTime = System.nanoTime();
+        }
+
+        public void onDataReceived( RetainableByteBuffer data )
+        {
+            final int pos = data.position();
+            final int remaining = data.remaining();
+            if (remaining > m_expected.remaining())
+            {
+                fail( "Received more data than expected." );
+                m_session.closeConnection();
+                return;
+            }
+
+            for (int idx=0; idx<remaining; idx++)
+            {
+                if (data.get(pos+idx) != m_expected.get())
+                {
+                    fail( "Invalid data at " + (m_expected.position() - 1) + "." );
+                    m_session.closeConnection();
+                    return;
+                }
+            }
+        }
+
+        public void onConnectionClosed()
+        {
+            final long time = ((System.nanoTime() - m_startTime) / 1000000);
+            System.out.println(
+                    m_session.getLocalAddress() + ": received " + m_expected.position() +
+                    " of " + m_expected.limit() + " bytes in " + time + " ms." );
+
+            if (m_expected.remaining() > 0)
+                fail( "Connection closed before all data received." );
+
+            if (m_rate > 0)
+            {
+                /* Client session can start a bit later than the server one. */
+                final long minTime = ((long) (m_expected.limit() - m_rate/10) * 1000 / m_rate * 19 / 20);
+                if (time < minTime)
+                    fail( "Data received faster than the rate limit allows, expected at least " + minTime + " ms." );
+            }
+            m_session.getCollider().stop();
+        }
+    }
+
+    private class TestConnector extends Connector
+    {
+        private final ByteBuffer m_expected;
+        private final int m_rate;
+
+        public TestConnector( SocketAddress addr, ByteBuffer expected, int rate, boolean shMem )
+        {
+            super( addr );
+            useShMem = shMem;
+            m_expected = expected;
+            m_rate = rate;
+        }
+
+        public Session.Listener createSessionListener( Session session )
+        {
+            return new ClientListener( session, m_expected, m_rate );
+        }
+
+        public void onException( IOException ex )
+        {
+            ex.printStackTrace();
+            m_failed = true;
+        }
+    }
+
+    private class TestAcceptor extends Acceptor
+    {
+        private final boolean m_truncated;
+        private FileChannel m_fileChannel;
+
+        public TestAcceptor( SocketAddress addr, int rate, boolean shMem )
+        {
+            super( addr );
+            socketSendBufSize = SOCKET_SEND_BUF_SIZE;
+            sendRateLimit = rate;
+            useShMem = shMem;
+            /* Mapped region can not be larger than the file. */
+            m_truncated = !(shMem || (addr instanceof LocalSocketAddress));
+        }
+
+        public void onAcceptorStarted( Collider collider, int localPort )
+        {
+            final SocketAddress addr = getSocketAddress();
+            collider.addConnector( new TestConnector(
+                    (addr instanceof LocalSocketAddress) ? addr : new InetSocketAddress("localhost", localPort),
+                    createExpectedStream(m_truncated), sendRateLimit, useShMem) );
+        }
+
+        public Session.Listener createSessionListener( Session session )
+        {
+            try
+            {
+                /* File channel is closed when the collider is stopped,
+                 * the session writer may still use it after onConnectionClosed().
+                 */
+                final FileChannel fileChannel = new RandomAccessFile(m_file, "r").getChannel();
+                m_fileChannel = fileChannel;
+                for (int region=0; region<REGIONS; region++)
+                {
+                    session.sendData( createMessage(region) );
+                    session.sendFile( fileChannel, regionPosition(region), REGION_SIZE + region );
+                }
+                if (m_truncated)
+                    session.sendFile( fileChannel, FILE_SIZE - TRUNCATED_REGION_SIZE, TRUNCATED_REGION_SIZE * 5 );
+                session.sendData( createMessage(REGIONS) );
+                session.closeConnection();
+            }
+            catch (final IOException ex)
+            {
+                ex.printStackTrace();
+                m_failed = true;
+                session.closeConnection();
+            }
+
+            return new Session.Listener()
+            {
+                public void onDataReceived( RetainableByteBuffer data )
+                {
+                }
+
+                public void onConnectionClosed()
+                {
+                }
+            };
+        }
+
+        public void closeFile() throws IOException
+        {
+            if (m_fileChannel != null)
+                m_fileChannel.close();
+        }
+    }
+
+    private Main( File file, byte [] fileData )
+    {
+        m_file = file;
+        m_fileData = fileData;
+    }
+
+    private void run( SocketAddress addr, int rate, boolean shMem )
+    {
+        try
+        {
+            final Collider collider = Collider.create();
+            final TestAcceptor acceptor = new TestAcceptor( addr, rate, shMem );
+            collider.addAcceptor( acceptor );
+            collider.run();
+            acceptor.closeFile();
+        }
+        catch (final IOException ex)
+        {
+            ex.printStackTrace();
+        }
+
+        if (m_failed)
+            throw new AssertionError();
+    }
+
+    public static void main( String [] args ) throws IOException
+    {
+        final byte [] fileData = new byte[FILE_SIZE];
+        for (int pos=0; pos<FILE_SIZE; pos++)
+            fileData[pos] = (byte) (pos * 31 + (pos >> 16));
+
+        final File file = File.createTempFile( "session_send_file", ".dat" );
+        try
+        {
+            final FileOutputStream out = new FileOutputStream( file );
+            out.write( fileData );
+            out.close();
+
+            final Main main = new Main( file, fileData );
+            main.run( new InetSocketAddress(0), 0, false );
+            main.run( new InetSocketAddress(0), (16 * 1024 * 1024), false );
+            main.run( new InetSocketAddress(0), 0, true );
+            main.run( new LocalSocketAddress("session_send_file"), 0, false );
+        }
+        finally
+        {
+            if (!file.delete())
+                System.out.println( "Failed to remove " + file.getAbsolutePath() );
+        }
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-Collider framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.tests.session_spill;
+
+import org.jsl.collider.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+
+/*
+ * Sender threads send much more data than the spill threshold
+ * with all the sendData() flavours while the client does not read,
+ * then the client receives the data and checks it is intact
+ * and the messages of each sender are in order.
+ * The spill file is expected to exist while the client is blocked
+ * and to be removed when the session is closed.
+ */
+
+public class Main
+{
+    private static final int HEADER_SIZE = 12;
+    private static final int SPILL_THRESHOLD = (1024 * 1024);
+
+    private final int m_senders;
+    private final int m_messages;
+    private final File m_spillDirectory;
+    private volatile boolean m_failed;
+
+    private void fail( String msg )
+    {
+        System.out.println( msg );
+        m_failed = true;
+    }
+
+    private static int messageLength( int seq )
+    {
+        return (HEADER_SIZE + (seq * 7919) % 20000);
+    }
+
+    private static byte patternByte( int sender, int seq, int pos )
+    {
+        return (byte) (sender + seq + pos);
+    }
+
+    private static void fill( ByteBuffer buf, int sender, int seq, int length )
+    {
+        buf.putInt( length );
+        buf.putInt( sender );
+        buf.putInt( seq );
+        for (int pos=HEADER_SIZE; pos<length; pos++)
+            buf.put( patternByte(sender, seq, pos) );
+    }
+
+    private class Sender extends Thread
+    {
+        private final Session m_session;
+        private final int m_sender;
+
+        public Sender( Session session, int sender )
+        {
+            m_session = session;
+            m_sender = sender;
+        }
+
+        public void run()
+        {
+            for (int seq=0; seq<m_messages; seq++)
+            {
+                final int length = messageLength( seq );
+                switch (seq % 4)
+                {
+                    case 0:
+                    case 1:
+                    {
+                        final ByteBuffer msg = ((seq % 4) == 0)
+                                ? ByteBuffer.allocate( length )
+                                : ByteBuffer.allocateDirect( length );
+                        fill( msg, m_sender, seq, length );
+                        msg.flip();
+                        if ((seq % 8) == 1)
+                            m_session.sendDataSync( msg );
+                        else
+                            m_session.sendData( msg );
+                    }
+                    break;
+
+                    case 2:
+                    {
+                        final RetainableByteBuffer msg = m_session.reserve( length );
+                        fill( msg.getNioByteBuffer(), m_sender, seq, length );
+                        m_session.commit( msg );
+                    }
+                    break;
+
+                    default:
+                    {
+                        final RetainableByteBuffer msg = m_session.reserve( length );
+                        fill( msg.getNioByteBuffer(), m_sender, seq, length );
+                        msg.flip();
+                        m_session.sendData( msg );
+                        msg.release();
+                    }
+                }
+            }
+        }
+    }
+
+    private class Controller extends Thread
+    {
+        private final Session m_session;
+
+        public Controller( Session session )
+        {
+            m_session = session;
+        }
+
+        public void run()
+        {
+            final Sender [] senders = new Sender[m_senders];
+            for (int idx=0; idx<m_senders; idx++)
+            {
+                senders[idx] = new Sender( m_session, idx );
+                senders[idx].start();
+            }
+
+            try
+            {
+                for (Sender sender : senders)
+                    sender.join();
+            }
+            catch (final InterruptedException ex)
+            {
+                ex.printStackTrace();
+            }
+            m_session.closeConnection();
+        }
+    }
+
+    private class Client extends Thread
+    {
+        private final Collider m_collider;
+        private final int m_port;
+
+        public Client( Collider collider, int port )
+        {
+            m_collider = collider;
+            m_port = port;
+        }
+
+        private long getSpillFileSize()
+        {
+            final File [] files = m_spillDirectory.listFiles();
+            return (((files == null) || (files.length == 0)) ? -1 : files[0].length());
+        }
+
+        private void receive() throws IOException, InterruptedException
+        {
+            final SocketChannel socketChannel = SocketChannel.open( new InetSocketAddress("localhost", m_port) );
+
+            /* Let senders overflow the socket buffers and the threshold. */
+            Thread.sleep( 1000 );
+            final long spillFileSize = getSpillFileSize();
+            System.out.println( "Spill file size while the client is blocked: " + spillFileSize );
+            if (spillFileSize <= 0)
+                fail( "Data was not spilled." );
+
+            final ByteBuffer buf = ByteBuffer.allocate( 64 * 1024 );
+            final int [] next = new int[m_senders];
+            long bytesReceived = 0;
+            int messages = 0;
+
+            for (;;)
+            {
+                final int bytes = socketChannel.read( buf );
+                if (bytes < 0)
+                    break;
+                bytesReceived += bytes;
+
+                buf.flip();
+                while (buf.remaining() >= HEADER_SIZE)
+                {
+                    final int pos = buf.position();
+                    final int length = buf.getInt( pos );
+                    if (buf.remaining() < length)
+                        break;
+
+                    final int sender = buf.getInt( pos + 4 );
+                    final int seq = buf.getInt( pos + 8 );
+                    if ((sender < 0) || (sender >= m_senders) || (length != messageLength(seq)))
+                    {
+                        fail( "Invalid message at " + (bytesReceived - bytes + pos) + "." );
+                        return;
+                    }
+                    if (seq != next[sender])
+                    {
+                        fail( "Sender " + sender + ": received message " + seq + ", expected " + next[sender] + "." );
+                        return;
+                    }
+                    for (int idx=HEADER_SIZE; idx<length; idx++)
+                    {
+                        if (buf.get(pos+idx) != patternByte(sender, seq, idx))
+                        {
+                            fail( "Sender " + sender + ": message " + seq + " is corrupted at " + idx + "." );
+                            return;
+                        }
+                    }
+                    next[sender]++;
+                    messages++;
+                    buf.position( pos + length );
+                }
+                buf.compact();
+            }
+            socketChannel.close();
+
+            System.out.println( "Received " + messages + " messages, " + bytesReceived + " bytes." );
+            if (messages != (m_senders * m_messages))
+                fail( "Expected " + (m_senders * m_messages) + " messages." );
+
+            /* Spill file is removed when the session is closed. */
+            for (int idx=0; (idx<100) && (getSpillFileSize() >= 0); idx++)
+                Thread.sleep( 10 );
+            if (getSpillFileSize() >= 0)
+                fail( "Spill file was not removed." );
+        }
+
+        public void run()
+        {
+            try
+            {
+                receive();
+            }
+            catch (final Exception ex)
+            {
+                ex.printStackTrace();
+                m_failed = true;
+            }
+            m_collider.stop();
+        }
+    }
+
+    private class TestAcceptor extends Acceptor
+    {
+        public TestAcceptor()
+        {
+            super( new InetSocketAddress(0) );
+            spillThreshold = SPILL_THRESHOLD;
+            spillDirectory = m_spillDirectory;
+        }
+
+        public void onAcceptorStarted( Collider collider, int localPort )
+        {
+            new Client(collider, localPort).start();
+        }
+
+        public Session.Listener createSessionListener( Session session )
+        {
+            new Controller(session).start();
+            return new Session.Listener()
+            {
+                public void onDataReceived( RetainableByteBuffer data )
+                {
+                }
+
+                public void onConnectionClosed()
+                {
+                }
+            };
+        }
+    }
+
+    private Main( int senders, int messages, File spillDirectory )
+    {
+        m_senders = senders;
+        m_messages = messages;
+        m_spillDirectory = spillDirectory;
+    }
+
+    private void run()
+    {
+        try
+        {
+            final Collider collider = Collider.create();
+            collider.addAcceptor( new TestAcceptor() );
+            collider.run();
+        }
+        catch (final IOException ex)
+        {
+            ex.printStackTrace();
+        }
+
+        if (!m_spillDirectory.delete())
+            System.out.println( "Failed to remove " + m_spillDirectory.getAbsolutePath() );
+
+        if (m_failed)
+            throw new AssertionError();
+    }
+
+    public static void main( String [] args ) throws IOException
+    {
+        int senders = 2;
+        int messages = 5000;
+
+        if (args.length > 0)
+            senders = Integer.parseInt( args[0] );
+
+        if (args.length > 1)
+            messages = Integer.parseInt( args[1] );
+
+        final File spillDirectory = Files.createTempDirectory( "session_spill" ).toFile();
+        new Main(senders, messages, spillDirectory).run();
+    }
+}
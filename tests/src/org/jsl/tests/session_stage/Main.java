@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-Collider framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.tests.session_stage;
+
+import org.jsl.collider.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+
+/*
+ * Server sends heap buffers of random sizes, some of them larger
+ * than the socket send buffer, a plain blocking socket client
+ * with a small receive buffer reads them slowly, so the writes
+ * are partial. Client checks the data, server checks the buffers
+ * given to sendData() are not changed. Runs without and with
+ * staging of the heap buffers to the direct buffers.
+ */
+
+public class Main
+{
+    private static final int SOCKET_BUFFER_SIZE = (64 * 1024);
+
+    private final int m_messages;
+    private final boolean m_stageHeapBuffers;
+    private volatile boolean m_failed;
+    private volatile long m_bytesSent;
+
+    private void fail( String msg )
+    {
+        System.out.println( msg );
+        m_failed = true;
+    }
+
+    private class Sender extends Thread
+    {
+        private final Session m_session;
+
+        public Sender( Session session )
+        {
+            m_session = session;
+        }
+
+        public void run()
+        {
+            final Random random = new Random( 1 );
+            final ByteBuffer [] msgs = new ByteBuffer[m_messages];
+            long offset = 0;
+            for (int idx=0; idx<m_messages; idx++)
+            {
+                final int length = (((idx % 20) == 0)
+                        ? (SOCKET_BUFFER_SIZE + random.nextInt(SOCKET_BUFFER_SIZE * 3))
+                        : (1 + random.nextInt(2000)));
+                final ByteBuffer msg = ByteBuffer.allocate( length );
+                for (int pos=0; pos<length; pos++, offset++)
+                    msg.put( pos, (byte) offset );
+                msgs[idx] = msg;
+                m_session.sendData( msg );
+            }
+            m_bytesSent = offset;
+
+            for (int idx=0; idx<m_messages; idx++)
+            {
+                if ((msgs[idx].position() != 0) || (msgs[idx].limit() != msgs[idx].capacity()))
+                    fail( "Message " + idx + " buffer was changed by the framework." );
+            }
+            m_session.closeConnection();
+        }
+    }
+
+    private class Client extends Thread
+    {
+        private final Collider m_collider;
+        private final int m_port;
+
+        public Client( Collider collider, int port )
+        {
+            m_collider = collider;
+            m_port = port;
+        }
+
+        public void run()
+        {
+            try
+            {
+                final SocketChannel socketChannel = SocketChannel.open();
+                socketChannel.socket().setReceiveBufferSize( SOCKET_BUFFER_SIZE );
+                socketChannel.connect( new InetSocketAddress("localhost", m_port) );
+
+                final long startTime = System.nanoTime();
+                final ByteBuffer buf = ByteBuffer.allocateDirect( 16 * 1024 );
+                long bytesReceived = 0;
+                readLoop: for (;;)
+                {
+                    buf.clear();
+                    final int bytes = socketChannel.read( buf );
+                    if (bytes < 0)
+                        break;
+                    for (int pos=0; pos<bytes; pos++, bytesReceived++)
+                    {
+                        if (buf.get(pos) != (byte) bytesReceived)
+                        {
+                            fail( "Invalid data at " + bytesReceived + "." );
+                            break readLoop;
+                        }
+                    }
+                }
+                socketChannel.close();
+                final long endTime = System.nanoTime();
+
+                System.out.println(
+                        "Staging " + (m_stageHeapBuffers ? "enabled" : "disabled") + ": received " +
+                        bytesReceived + " bytes in " + ((endTime - startTime) / 1000000) + " ms." );
+                if (bytesReceived != m_bytesSent)
+                    fail( "Expected " + m_bytesSent + " bytes." );
+            }
+            catch (final IOException ex)
+            {
+                ex.printStackTrace();
+                m_failed = true;
+            }
+            m_collider.stop();
+        }
+    }
+
+    private class TestAcceptor extends Acceptor
+    {
+        public TestAcceptor()
+        {
+            super( new InetSocketAddress(0) );
+            socketSendBufSize = SOCKET_BUFFER_SIZE;
+        }
+
+        public void onAcceptorStarted( Collider collider, int localPort )
+        {
+            new Client(collider, localPort).start();
+        }
+
+        public Session.Listener createSessionListener( Session session )
+        {
+            new Sender(session).start();
+            return new Session.Listener()
+            {
+                public void onDataReceived( RetainableByteBuffer data )
+                {
+                }
+
+                public void onConnectionClosed()
+                {
+                }
+            };
+        }
+    }
+
+    private Main( int messages, boolean stageHeapBuffers )
+    {
+        m_messages = messages;
+        m_stageHeapBuffers = stageHeapBuffers;
+    }
+
+    private void run()
+    {
+        try
+        {
+            final Collider.Config config = new Collider.Config();
+            config.stageHeapBuffers = m_stageHeapBuffers;
+            final Collider collider = Collider.create( config );
+            collider.addAcceptor( new TestAcceptor() );
+            collider.run();
+        }
+        catch (final IOException ex)
+        {
+            ex.printStackTrace();
+        }
+
+        if (m_failed)
+            throw new AssertionError();
+    }
+
+    public static void main( String [] args )
+    {
+        int messages = 20000;
+
+        if (args.length > 0)
+            messages = Integer.parseInt( args[0] );
+
+        new Main(messages, false).run();
+        new Main(messages, true).run();
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-Collider framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.tests.session_suspend;
+
+import org.jsl.collider.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Client sends a number of messages and closes the session,
+ * server suspends reading from another thread right
+ * in the createSessionListener(), so the suspension races
+ * with the session initialization. Checks nothing is delivered
+ * while the session is suspended and all the data is delivered
+ * after it is resumed. Runs over TCP and the in-process transport.
+ */
+
+public class Main
+{
+    private static final int SETTLE_TIME = 300;
+
+    private final int m_messages;
+    private final int m_messageLength;
+
+    private class Controller extends Thread
+    {
+        private final Session m_session;
+        private final AtomicLong m_bytesReceived;
+
+        public Controller( Session session, AtomicLong bytesReceived )
+        {
+            m_session = session;
+            m_bytesReceived = bytesReceived;
+        }
+
+        private void checkSuspended( String stage ) throws InterruptedException
+        {
+            /* Data read before the suspension took effect
+             * still can be delivered, let it settle.
+             */
+            Thread.sleep( SETTLE_TIME );
+            final long bytesReceived = m_bytesReceived.get();
+            Thread.sleep( SETTLE_TIME );
+            final long delta = (m_bytesReceived.get() - bytesReceived);
+            System.out.println( m_session.getLocalAddress() + ": " + stage + ", received " + bytesReceived + " bytes." );
+            if (delta != 0)
+            {
+                System.out.println( "Received " + delta + " bytes while suspended." );
+                throw new AssertionError();
+            }
+        }
+
+        public void run()
+        {
+            try
+            {
+                m_session.suspendRead();
+                checkSuspended( "suspended" );
+
+                /* Repeated calls have the same effect as a single one. */
+                m_session.suspendRead();
+                m_session.resumeRead();
+                m_session.resumeRead();
+
+                Thread.sleep( SETTLE_TIME );
+                m_session.suspendRead();
+                checkSuspended( "suspended again" );
+                m_session.resumeRead();
+            }
+            catch (final InterruptedException ex)
+            {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private class ServerListener implements Session.Listener
+    {
+        private final Session m_session;
+        private final AtomicLong m_bytesReceived;
+
+        public ServerListener( Session session, AtomicLong bytesReceived )
+        {
+            m_session = session;
+            m_bytesReceived = bytesReceived;
+        }
+
+        public void onDataReceived( RetainableByteBuffer data )
+        {
+            m_bytesReceived.addAndGet( data.remaining() );
+        }
+
+        public void onConnectionClosed()
+        {
+            final long bytesReceived = m_bytesReceived.get();
+            System.out.println(
+                    m_session.getLocalAddress() + ": connection closed, received " + bytesReceived + " bytes." );
+            if (bytesReceived != ((long) m_messages * m_messageLength))
+                throw new AssertionError();
+            m_session.getCollider().stop();
+        }
+    }
+
+    private class TestConnector extends Connector
+    {
+        public TestConnector( SocketAddress addr )
+        {
+            super( addr );
+        }
+
+        public Session.Listener createSessionListener( Session session )
+        {
+            final ByteBuffer msg = ByteBuffer.allocateDirect( m_messageLength );
+            for (int idx=0; idx<m_messages; idx++)
+                session.sendData( msg );
+
+            /* Peer should receive all the data before the close. */
+            session.closeConnection();
+
+            return new Session.Listener()
+            {
+                public void onDataReceived( RetainableByteBuffer data )
+                {
+                }
+
+                public void onConnectionClosed()
+                {
+                }
+            };
+        }
+
+        public void onException( IOException ex )
+        {
+            ex.printStackTrace();
+        }
+    }
+
+    private class TestAcceptor extends Acceptor
+    {
+        public TestAcceptor( SocketAddress addr )
+        {
+            super( addr );
+        }
+
+        public void onAcceptorStarted( Collider collider, int localPort )
+        {
+            final SocketAddress addr = getSocketAddress();
+            collider.addConnector( new TestConnector(
+                    (addr instanceof LocalSocketAddress) ? addr : new InetSocketAddress("localhost", localPort)) );
+        }
+
+        public Session.Listener createSessionListener( Session session )
+        {
+            final AtomicLong bytesReceived = new AtomicLong();
+            new Controller(session, bytesReceived).start();
+            return new ServerListener( session, bytesReceived );
+        }
+    }
+
+    private Main( int messages, int messageLength )
+    {
+        m_messages = messages;
+        m_messageLength = messageLength;
+    }
+
+    private void run( SocketAddress addr )
+    {
+        try
+        {
+            final Collider collider = Collider.create();
+            collider.addAcceptor( new TestAcceptor(addr) );
+            collider.run();
+        }
+        catch (final IOException ex)
+        {
+            ex.printStackTrace();
+        }
+    }
+
+    public static void main( String [] args )
+    {
+        int messages = 1000;
+        int messageLength = (64 * 1024);
+
+        if (args.length > 0)
+            messages = Integer.parseInt( args[0] );
+
+        if (args.length > 1)
+            messageLength = Integer.parseInt( args[1] );
+
+        final Main main = new Main( messages, messageLength );
+        main.run( new InetSocketAddress(0) );
+        main.run( new LocalSocketAddress("session_suspend") );
+    }
+}
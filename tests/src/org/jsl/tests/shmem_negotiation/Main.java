@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-Collider framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.tests.shmem_negotiation;
+
+import org.jsl.collider.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/*
+ * Checks the shared memory IPC negotiation run by the framework:
+ * data received over the shared memory and retained by the listener
+ * should not be overwritten by the following data,
+ * removeAcceptor() should not wait for a peer never sending
+ * the negotiation request.
+ */
+
+public class Main
+{
+    private static final int BLOCK_SIZE = (4 * 1024);
+
+    private final int m_messages;
+    private final int m_messageLength;
+
+    private static byte patternByte( long offset )
+    {
+        return (byte) (offset % 251);
+    }
+
+    private class ServerListener implements Session.Listener
+    {
+        private final Session m_session;
+        private final ArrayList<RetainableByteBuffer> m_data;
+        private long m_bytesReceived;
+
+        public ServerListener( Session session )
+        {
+            m_session = session;
+            m_data = new ArrayList<RetainableByteBuffer>();
+        }
+
+        public void onDataReceived( RetainableByteBuffer data )
+        {
+            /* Keep all the data till the end of the test. */
+            m_bytesReceived += data.remaining();
+            m_data.add( data.duplicate() );
+
+            if (m_bytesReceived == ((long) m_messages * m_messageLength))
+            {
+                final int buffers = m_data.size();
+                long offset = 0;
+                for (RetainableByteBuffer buf : m_data)
+                {
+                    final int limit = buf.limit();
+                    for (int pos=buf.position(); pos<limit; pos++, offset++)
+                    {
+                        if (buf.get(pos) != patternByte(offset))
+                        {
+                            System.out.println( "Data at " + offset + " is overwritten." );
+                            throw new AssertionError();
+                        }
+                    }
+                    buf.release();
+                }
+                m_data.clear();
+
+                System.out.println(
+                        m_session.getRemoteAddress() + ": received " + m_bytesReceived +
+                        " bytes over shared memory in " + buffers + " buffers, data is intact." );
+                m_session.closeConnection();
+            }
+        }
+
+        public void onConnectionClosed()
+        {
+            System.out.println( m_session.getRemoteAddress() + ": connection closed." );
+            for (RetainableByteBuffer buf : m_data)
+                buf.release();
+
+            final Collider collider = m_session.getCollider();
+            new Thread() { public void run() { removeAcceptor(collider); } }.start();
+        }
+    }
+
+    private class TestAcceptor extends Acceptor
+    {
+        public TestAcceptor()
+        {
+            super( new InetSocketAddress(0) );
+            useShMem = true;
+            shMemBlockSize = BLOCK_SIZE;
+        }
+
+        public void onAcceptorStarted( Collider collider, int localPort )
+        {
+            System.out.println( "ShMem negotiation test started at port " + localPort );
+            m_port = localPort;
+            collider.addConnector( new TestConnector(localPort) );
+        }
+
+        public Session.Listener createSessionListener( Session session )
+        {
+            if (m_silentPeer)
+            {
+                System.out.println( "Session listener created for the silent peer." );
+                throw new AssertionError();
+            }
+            return new ServerListener( session );
+        }
+    }
+
+    private class TestConnector extends Connector
+    {
+        public TestConnector( int port )
+        {
+            super( new InetSocketAddress("localhost", port) );
+            useShMem = true;
+            shMemBlockSize = BLOCK_SIZE;
+        }
+
+        public Session.Listener createSessionListener( Session session )
+        {
+            long offset = 0;
+            for (int idx=0; idx<m_messages; idx++)
+            {
+                final ByteBuffer msg = ByteBuffer.allocate( m_messageLength );
+                for (int pos=0; pos<m_messageLength; pos++, offset++)
+                    msg.put( pos, patternByte(offset) );
+                session.sendData( msg );
+            }
+
+            return new Session.Listener()
+            {
+                public void onDataReceived( RetainableByteBuffer data )
+                {
+                }
+
+                public void onConnectionClosed()
+                {
+                }
+            };
+        }
+
+        public void onException( IOException ex )
+        {
+            ex.printStackTrace();
+        }
+    }
+
+    private TestAcceptor m_acceptor;
+    private volatile int m_port;
+    private volatile boolean m_silentPeer;
+
+    private void removeAcceptor( Collider collider )
+    {
+        /* Connect and never send the negotiation request. */
+        m_silentPeer = true;
+        try
+        {
+            final Socket socket = new Socket( "localhost", m_port );
+            Thread.sleep( 500 );
+
+            final long startTime = System.nanoTime();
+            collider.removeAcceptor( m_acceptor );
+            final long endTime = System.nanoTime();
+            System.out.println(
+                    "Acceptor with a silent peer removed in " +
+                    ((endTime - startTime) / 1000000) + " ms." );
+
+            socket.close();
+        }
+        catch (final Exception ex)
+        {
+            ex.printStackTrace();
+        }
+        collider.stop();
+    }
+
+    private Main( int messages, int messageLength )
+    {
+        m_messages = messages;
+        m_messageLength = messageLength;
+    }
+
+    private void run()
+    {
+        try
+        {
+            final Collider collider = Collider.create();
+            m_acceptor = new TestAcceptor();
+            collider.addAcceptor( m_acceptor );
+            collider.run();
+        }
+        catch (final IOException ex)
+        {
+            ex.printStackTrace();
+        }
+    }
+
+    public static void main( String [] args )
+    {
+        int messages = 10000;
+        int messageLength = 1000;
+
+        if (args.length > 0)
+            messages = Integer.parseInt( args[0] );
+
+        if (args.length > 1)
+            messageLength = Integer.parseInt( args[1] );
+
+        new Main(messages, messageLength).run();
+    }
+}